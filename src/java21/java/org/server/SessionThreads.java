@@ -0,0 +1,24 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Starts the threads serving blocking RTSP sessions (see BlockingRtspConnection).
+ *
+ * Java 21 version, packed in META-INF/versions/21 of the multi-release jar: sessions run on virtual threads.
+ * A virtual thread blocked in a socket read or write, or parked, releases its carrier thread, and its stack
+ * lives on the heap, sized by the frames in use. Code run on them avoids blocking while holding a monitor,
+ * which pins the carrier: locks held across I/O are ReentrantLocks.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SessionThreads
+{
+	static boolean isVirtual() {
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts a virtual thread running the task (virtual threads are
+	 * always daemon threads).
+	 * ----------------------------------------------------------------*/
+	static Thread start(Runnable task, String name) {
+		return Thread.ofVirtual().name(name).start(task);
+	}
+}
@@ -0,0 +1,53 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * JPEG re-encoding of a frame at the quality of each congestion level (0 = best quality).
+ * The frame is the first one of the video file, see VideoStreamBenchmark.
+ * ----------------------------------------------------------------------------------------------------------------*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageEncoderBenchmark
+{
+	@Param("movie.Mjpeg")
+	String videoFile;
+
+	@Param({"0", "1", "2", "3", "4"})
+	int level;
+
+	ImageEncoder encoder;
+	byte[] frame;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		// read the file directly, a VideoStream would start building the quality variants in the background
+		ByteBuffer view = MjpegFile.open(videoFile).getFrame(0);
+		frame = new byte[view.remaining()];
+		view.get(frame);
+		encoder = new ImageEncoder(QualityLadder.qualityOf(level));
+	}
+
+	@Benchmark
+	public byte[] compress() {
+		return encoder.compress(frame);
+	}
+}
@@ -0,0 +1,79 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Parsing of the RTCP packets received from clients: the bundled client's legacy report, a standard Receiver
+ * Report and a compound SR + RR + SDES packet.
+ * ----------------------------------------------------------------------------------------------------------------*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtcpPacketBenchmark
+{
+	final ByteBuffer legacy = legacyReport();
+	final ByteBuffer receiverReport = receiverReport(false);
+	final ByteBuffer compound = receiverReport(true);
+	final List<ReceptionReport> reports = new ArrayList<ReceptionReport>();
+
+	@Benchmark
+	public int parseLegacy() {
+		return parse(legacy);
+	}
+
+	@Benchmark
+	public int parseReceiverReport() {
+		return parse(receiverReport);
+	}
+
+	@Benchmark
+	public int parseCompound() {
+		return parse(compound);
+	}
+
+	private int parse(ByteBuffer packet)
+	{
+		reports.clear();
+		packet.rewind();
+		return RtcpPacket.parse(packet, reports, 0);
+	}
+
+	private static ByteBuffer legacyReport()
+	{
+		byte[] packet = new byte[64];
+		int length = new RtcpPacket(0.05f, 12, 4711).getPacket(packet);
+		return ByteBuffer.wrap(packet, 0, length).slice();
+	}
+
+	private static ByteBuffer receiverReport(boolean compound)
+	{
+		ByteBuffer packet = ByteBuffer.allocate(128);
+		if (compound)
+		{
+			packet.putInt(0x80C80006).putInt(0x1234);	// SR without report blocks
+			packet.putLong(0).putInt(0).putInt(0).putInt(0);
+		}
+		packet.putInt(0x81C90007).putInt(0x1234);		// RR with one report block
+		packet.putInt(0x5678).putInt((13 << 24) | 42).putInt(4711).putInt(90).putInt(0xABCD0000).putInt(65536);
+		if (compound)
+			packet.putInt(0x81CA0001).putInt(0x1234);	// empty SDES chunk
+		packet.flip();
+		return packet.slice();
+	}
+}
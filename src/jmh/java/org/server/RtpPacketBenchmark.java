@@ -0,0 +1,57 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * RTP packet construction: the RtpPacket object path of the original server, against the header written in
+ * place that the send path uses.
+ * ----------------------------------------------------------------------------------------------------------------*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtpPacketBenchmark
+{
+	byte[] payload = new byte[Server.RTP_MTU - RtpPacket.HEADER_SIZE];
+	byte[] packet = new byte[Server.RTP_MTU];
+	ByteBuffer header = ByteBuffer.allocateDirect(JpegPacketizer.MAX_HEADER_LENGTH);
+	RtpPacket rtpPacket;
+	int sequenceNumber;
+
+	@Setup
+	public void setup() {
+		rtpPacket = new RtpPacket(Server.MJPEG_TYPE, 0, 0, payload, payload.length);
+	}
+
+	@Benchmark
+	public RtpPacket construct() {
+		return new RtpPacket(Server.MJPEG_TYPE, sequenceNumber++, 4500, payload, payload.length);
+	}
+
+	@Benchmark
+	public int getPacket() {
+		return rtpPacket.getPacket(packet);
+	}
+
+	@Benchmark
+	public ByteBuffer writeHeader()
+	{
+		header.clear();
+		RtpPacket.writeHeader(header, false, Server.MJPEG_TYPE, sequenceNumber++, 4500, 0x12345678);
+		return header;
+	}
+}
@@ -0,0 +1,94 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Parsing of canned RTSP requests: the three-line requests of the bundled client and the standard requests
+ * of VLC or ffmpeg, one at a time and pipelined in a single read.
+ * ----------------------------------------------------------------------------------------------------------------*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtspParserBenchmark
+{
+	final static String CRLF = "\r\n";
+
+	final RtspParser legacyParser = new RtspParser(true);
+	final RtspParser standardParser = new RtspParser(false);
+
+	final ByteBuffer legacySetup = wrap(
+			"SETUP movie.Mjpeg RTSP/1.0" + CRLF
+			+ "CSeq: 1" + CRLF
+			+ "Transport: RTP/UDP; client_port= 25000" + CRLF);
+
+	final ByteBuffer standardSetup = wrap(
+			"SETUP rtsp://127.0.0.1:13569/movie.Mjpeg/trackID=0 RTSP/1.0" + CRLF
+			+ "CSeq: 3" + CRLF
+			+ "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)" + CRLF
+			+ "Transport: RTP/AVP;unicast;client_port=25000-25001" + CRLF
+			+ CRLF);
+
+	final ByteBuffer standardSession = wrap(
+			"OPTIONS rtsp://127.0.0.1:13569/movie.Mjpeg RTSP/1.0" + CRLF
+			+ "CSeq: 1" + CRLF
+			+ "User-Agent: LibVLC/3.0.18 (LIVE555 Streaming Media v2016.11.28)" + CRLF
+			+ CRLF
+			+ "DESCRIBE rtsp://127.0.0.1:13569/movie.Mjpeg RTSP/1.0" + CRLF
+			+ "CSeq: 2" + CRLF
+			+ "Accept: application/sdp" + CRLF
+			+ CRLF
+			+ "SETUP rtsp://127.0.0.1:13569/movie.Mjpeg/trackID=0 RTSP/1.0" + CRLF
+			+ "CSeq: 3" + CRLF
+			+ "Transport: RTP/AVP;unicast;client_port=25000-25001" + CRLF
+			+ CRLF
+			+ "PLAY rtsp://127.0.0.1:13569/movie.Mjpeg RTSP/1.0" + CRLF
+			+ "CSeq: 4" + CRLF
+			+ "Session: 123456" + CRLF
+			+ "Range: npt=0.000-" + CRLF
+			+ CRLF);
+
+	@Benchmark
+	public RtspRequest parseLegacySetup() {
+		return parse(legacyParser, legacySetup);
+	}
+
+	@Benchmark
+	public RtspRequest parseStandardSetup() {
+		return parse(standardParser, standardSetup);
+	}
+
+	@Benchmark
+	public void parsePipelined(Blackhole blackhole)
+	{
+		standardSession.rewind();
+		RtspRequest request;
+		while ((request = standardParser.parse(standardSession)) != null)
+			blackhole.consume(request);
+	}
+
+	private static RtspRequest parse(RtspParser parser, ByteBuffer request)
+	{
+		request.rewind();
+		return parser.parse(request);
+	}
+
+	private static ByteBuffer wrap(String request) {
+		return ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+	}
+}
@@ -0,0 +1,129 @@
+package org.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Measures how many RTP-sized packets one core sends per second over loopback:
+ *  - socket: the original send path, a packet assembled in a byte array and sent with DatagramSocket.send(),
+ *  - queue: packets queued in a SendQueue and drained one at a time,
+ *  - claimed: packets queued in a SendQueue and claimed BATCH_SIZE at a time, still one system call per packet,
+ *    so the gain over queue is the queue bookkeeping saved, not system calls.
+ * The rate is given per second of CPU time of the sending thread, so it does not depend on spare cores.
+ *
+ * usage: gradle sendBenchmark [-Pargs=packets]
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SendBenchmark
+{
+	static int PAYLOAD_SIZE = 1400 - 20;	// RTP/JPEG fragment with its headers at the default MTU
+	static int HEADER_SIZE = 20;			// RTP and JPEG headers of a fragment
+
+	public static void main(String[] args) throws Exception
+	{
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+		// a sink draining the packets, so the kernel does not drop them before they are counted as sent
+		final DatagramChannel sink = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
+				try {
+					while (true) {
+						buffer.clear();
+						sink.receive(buffer);
+					}
+				}
+				catch (Exception ex) {
+					// sink closed
+				}
+			}
+		}, "sink");
+		drainer.setDaemon(true);
+		drainer.start();
+
+		System.out.println("packets of " + (HEADER_SIZE + PAYLOAD_SIZE) + " bytes, datagram sender: " + DatagramSender.create().getClass().getSimpleName());
+		for (int round = 0; round < 2; round++)	// the first round warms up
+		{
+			report("socket", packets, sendSocket(sink.getLocalAddress(), packets));
+			report("queue", packets, sendQueue(sink.getLocalAddress(), packets, 1));
+			report("claimed", packets, sendQueue(sink.getLocalAddress(), packets, SendQueue.BATCH_SIZE));
+		}
+		sink.close();
+	}
+
+	/**----------------------------------------------------------------
+	 * Original path, returns the CPU time spent (ns).
+	 * ----------------------------------------------------------------*/
+	static long sendSocket(SocketAddress target, int packets) throws Exception
+	{
+		DatagramSocket socket = new DatagramSocket();
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		long start = cpuTime();
+		for (int i = 0; i < packets; i++)
+		{
+			byte[] packet = new byte[HEADER_SIZE + PAYLOAD_SIZE];
+			System.arraycopy(payload, 0, packet, HEADER_SIZE, PAYLOAD_SIZE);
+			socket.send(new DatagramPacket(packet, packet.length, target));
+		}
+		long cpu = cpuTime() - start;
+		socket.close();
+		return cpu;
+	}
+
+	/**----------------------------------------------------------------
+	 * Queued path drained on the same thread, returns the CPU time spent (ns).
+	 * ----------------------------------------------------------------*/
+	static long sendQueue(SocketAddress target, int packets, int batchSize) throws Exception
+	{
+		DatagramChannel channel = DatagramChannel.open();
+		channel.connect(target);
+		channel.configureBlocking(false);
+		SendQueue queue = new SendQueue(channel, 256, HEADER_SIZE, SendQueue.DROP_OLDEST, batchSize);
+		DatagramSender sender = DatagramSender.create();
+		ByteBuffer payload = ByteBuffer.allocateDirect(PAYLOAD_SIZE);
+
+		long start = cpuTime();
+		for (int i = 0; i < packets; i++)
+		{
+			SendQueue.Packet packet = queue.claim(false);
+			packet.header.position(HEADER_SIZE);
+			packet.header.flip();
+			packet.data = payload;
+			packet.offset = 0;
+			packet.length = PAYLOAD_SIZE;
+			queue.commit(packet);
+
+			// drain a frame's worth of packets at a time, as the pacer and the worker do
+			if (queue.getDepth() >= 64)
+			{
+				while (!queue.drain(sender))
+					Thread.yield();
+			}
+		}
+		while (!queue.drain(sender))
+			Thread.yield();
+		long cpu = cpuTime() - start;
+		channel.close();
+		return cpu;
+	}
+
+	static long cpuTime()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	static void report(String name, int packets, long cpuNanos)
+	{
+		System.out.println(String.format(Locale.US, "%-7s %10.0f packets/s per core", name, packets * 1e9 / cpuNanos));
+	}
+}
@@ -0,0 +1,72 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Frame reads from an MJPEG file: the zero-copy view, the copy into a caller array of the original server,
+ * and the parsed frame taken from the shared cache. The cursor wraps around at the end of the video.
+ * The file is relative to the working directory, another one can be given with -p videoFile=...
+ * ----------------------------------------------------------------------------------------------------------------*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoStreamBenchmark
+{
+	@Param("movie.Mjpeg")
+	String videoFile;
+
+	VideoStream stream;
+	byte[] frame;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		// a background build of the quality variants would compete with the measured iterations
+		QualityLadder.BUILD_IN_BACKGROUND = false;
+		stream = new VideoStream(videoFile);
+		frame = new byte[QualityLadder.MAX_FRAME_LENGTH];
+	}
+
+	@Benchmark
+	public ByteBuffer getNextFrame()
+	{
+		rewind();
+		return stream.getNextFrame();
+	}
+
+	@Benchmark
+	public int getNextFrameCopy() throws Exception
+	{
+		rewind();
+		return stream.getNextFrame(frame);
+	}
+
+	@Benchmark
+	public JpegFrame getNextJpegFrame()
+	{
+		rewind();
+		return stream.getNextJpegFrame(0);
+	}
+
+	private void rewind()
+	{
+		if (!stream.hasNextFrame())
+			stream.seek(0);
+	}
+}
@@ -0,0 +1,238 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Blocking RTSP control connection, served by a thread of its own (see SessionThreads): the thread reads the
+ * connection, handles the requests and writes the responses with plain blocking calls.
+ *
+ * A session streaming over the connection (RTP/AVP/TCP) gets a second thread, parked until the pacer schedules
+ * its packets and then writing them with gathering writes. Responses and packets are written under one lock,
+ * so neither is cut by the other; a ReentrantLock, as a virtual thread blocked in a write while holding a
+ * monitor would pin its carrier.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class BlockingRtspConnection implements ControlConnection, Runnable
+{
+	final SocketChannel channel;
+	final InetAddress clientIp;
+	private final RtspParser parser;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(RtspConnection.READ_BUFFER_SIZE);
+	private final SessionManager sessionManager;
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile SendQueue interleavedQueue;	// packets of the session streaming over this connection, null if none
+	private volatile Thread writer;					// thread writing the interleaved packets, null if none
+
+	Server session;					// session served over this connection
+
+	/**----------------------------------------------------------------
+	 * Constructor, the channel must be in blocking mode.
+	 * ----------------------------------------------------------------*/
+	public BlockingRtspConnection(SocketChannel channel, SessionManager sessionManager)
+	{
+		this.channel = channel;
+		this.sessionManager = sessionManager;
+		this.clientIp = channel.socket().getInetAddress();
+		this.parser = new RtspParser(Server.LEGACY_FRAMING);
+	}
+
+	/**----------------------------------------------------------------
+	 * Reads and handles requests until the connection is closed.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (!closed.get())
+			{
+				if (channel.read(readBuffer) < 0)
+				{
+					Log.info("Session " + session.rtspId + ": client disconnected");
+					break;
+				}
+
+				readBuffer.flip();
+				RtspRequest request;
+				while (!closed.get() && (request = parser.parse(readBuffer)) != null)
+				{
+					if (request.isInterleaved())
+					{
+						session.onInterleavedData(request.channel, request.data);
+						continue;
+					}
+					if (Log.isEnabled(Log.DEBUG))
+						Log.debug("RTSP Server - Received from Client: " + request);
+					session.handleRequest(request);
+					if (request.fatal)
+						closeAfterFlush();
+				}
+				readBuffer.clear();
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (!closed.get())
+				Log.info("Session " + session.rtspId + ": " + ioe);
+		}
+		catch (RuntimeException rex)
+		{
+			Log.error("Exception caught: " + rex);
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	@Override
+	public InetAddress getClientIp() {
+		return clientIp;
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes an RTSP message, returns once it is written.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void send(String message)
+	{
+		if (closed.get())
+			return;
+		ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
+		writeLock.lock();
+		try
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		catch (IOException ioe)
+		{
+			Log.error("Exception caught: " + ioe);
+			close();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Streams the packets of the queue over this connection, starting
+	 * the thread writing them.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void interleave(SendQueue queue)
+	{
+		interleavedQueue = queue;
+		if (writer == null)
+		{
+			writer = SessionThreads.start(new Runnable() {
+				@Override
+				public void run() {
+					writePackets();
+				}
+			}, "rtsp-writer-" + session.rtspId);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Wakes the writer up unless it is already scheduled. Safe to call
+	 * from any thread.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void scheduleWrite()
+	{
+		if (interleavedQueue.scheduled.compareAndSet(false, true))
+			LockSupport.unpark(writer);
+	}
+
+	/**----------------------------------------------------------------
+	 * Writer loop: parks until packets are scheduled, writes them all.
+	 * ----------------------------------------------------------------*/
+	private void writePackets()
+	{
+		try
+		{
+			while (!closed.get())
+			{
+				SendQueue queue = interleavedQueue;
+				if (!queue.scheduled.get())
+				{
+					LockSupport.park(this);
+					continue;
+				}
+
+				writeLock.lock();
+				try
+				{
+					while (!queue.drain(channel))
+						;		// a blocking channel only writes partially when interrupted
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+
+				// packets queued after the last poll and before the flag is cleared must not be stranded
+				queue.scheduled.set(false);
+				if (!queue.isEmpty())
+					queue.scheduled.compareAndSet(false, true);
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (!closed.get())
+				Log.info("Session " + session.rtspId + ": " + ioe);
+			close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes the connection: responses are written before send()
+	 * returns, none is pending.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void closeAfterFlush() {
+		close();
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes the connection and its session, which wakes the threads
+	 * blocked on it up. Safe to call more than once, from any thread.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void close()
+	{
+		if (!closed.compareAndSet(false, true))
+			return;
+		try {
+			channel.close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+		LockSupport.unpark(writer);
+		if (session != null)
+			sessionManager.closeSession(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes the connection right away, close() is thread-safe.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void closeLater() {
+		close();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed.get();
+	}
+}
@@ -0,0 +1,370 @@
+package org.server;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Live source capturing an MJPEG byte stream: a V4L2 camera, a named pipe or stdin.
+ *
+ * A capture thread reads the stream and splits it into frames on their JPEG markers: a frame starts with SOI
+ * and ends with the EOI that follows its entropy-coded data, segments are skipped by their length so markers
+ * inside them (e.g. of an EXIF thumbnail) do not split the frame. Each frame is timestamped when its SOI
+ * arrives and stored in a small ring of reusable buffers. read() always returns the latest complete frame and
+ * skips the older ones, so a slow reader adds no latency. The slot being read is never overwritten.
+ *
+ * Java can not drive V4L2 devices itself: a /dev/video* device is captured by V4L2_COMMAND, which has to copy
+ * the camera's MJPEG stream to its standard output without re-encoding it.
+ *
+ * A named pipe is opened by the capture thread, as opening it blocks until a writer opens the other end; a
+ * source closed meanwhile opens the pipe for writing itself to release the thread, which would otherwise take
+ * the next writer away from the next capture of the pipe. Standard input is shared by the process and never
+ * closed, so "-" can be captured again later.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class CaptureSource implements LiveSource, Runnable
+{
+	static int FRAME_RING_SIZE = 4;					// frames kept by the capture thread, at least 3
+	static int MAX_FRAME_SIZE = 4 * 1024 * 1024;	// larger frames are discarded (bytes)
+	static int READ_SIZE = 64 * 1024;				// bytes read from the stream at a time
+	static String V4L2_COMMAND = "ffmpeg -loglevel error -f v4l2 -input_format mjpeg -i %s -c:v copy -f mjpeg -";
+
+	// scanner states
+	private final static int SEEK_SOI = 0;		// between frames
+	private final static int MARKER = 1;		// expecting a marker
+	private final static int LENGTH = 2;		// reading a segment length
+	private final static int SEGMENT = 3;		// copying a segment
+	private final static int ENTROPY = 4;		// copying entropy-coded data
+
+	private final String name;
+	private final Process process;		// capture command, null if none
+	private InputStream in;				// stream captured, null until the capture thread opened it; guarded by this
+
+	// ring, guarded by this
+	private final byte[][] frames = new byte[FRAME_RING_SIZE][];
+	private final int[] lengths = new int[FRAME_RING_SIZE];
+	private final long[] captureTimes = new long[FRAME_RING_SIZE];
+	private int latest = -1;			// slot of the latest complete frame, -1 if none
+	private long latestSequence;		// frames completed so far
+	private long readSequence;			// latestSequence at the last read()
+	private int reading = -1;			// slot returned by the last read()
+	private long captureTime;			// capture time of the frame returned by the last read()
+	private volatile boolean closed;	// no more frames, at the end of the stream or once released
+	private boolean released;			// close() was called
+
+	// capture thread state
+	private int writing;				// slot being filled
+	private int fill;					// bytes of the frame in the slot
+	private long frameStart;			// capture time of the frame being filled
+	private int state = SEEK_SOI;
+	private int segmentType;			// marker of the current segment
+	private int lengthBytes;			// bytes of the segment length read so far
+	private int remaining;				// bytes of the segment still to be copied
+	private boolean escape;				// the previous byte was 0xFF
+
+	/**----------------------------------------------------------------
+	 * Captures the stream, started by the process if not null, or the
+	 * file of the given name opened by the capture thread if in is null.
+	 * ----------------------------------------------------------------*/
+	CaptureSource(String name, InputStream in, Process process)
+	{
+		this.name = name;
+		this.in = in;
+		this.process = process;
+		for (int i = 0; i < FRAME_RING_SIZE; i++)
+			frames[i] = new byte[64 * 1024];
+
+		Thread thread = new Thread(this, "capture-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**----------------------------------------------------------------
+	 * Captures stdin ("-"), a V4L2 device (/dev/video*) or a named pipe.
+	 * ----------------------------------------------------------------*/
+	public static CaptureSource open(String name) throws IOException
+	{
+		if (name.equals("-"))
+			return new CaptureSource("stdin", System.in, null);
+
+		if (name.startsWith("/dev/video"))
+		{
+			List<String> command = new ArrayList<String>();
+			for (String token : String.format(V4L2_COMMAND, name).split(" "))
+			{
+				if (!token.isEmpty())
+					command.add(token);
+			}
+			Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			return new CaptureSource(name, process.getInputStream(), process);
+		}
+
+		return new CaptureSource(name, null, null);
+	}
+
+	/**----------------------------------------------------------------
+	 * Capture loop, runs until the end of the stream or close().
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void run()
+	{
+		byte[] chunk = new byte[READ_SIZE];
+		try
+		{
+			InputStream stream = in != null ? in : new FileInputStream(name);
+			synchronized (this)
+			{
+				if (released && stream != in)
+				{
+					stream.close();		// closed while waiting for a writer
+					return;
+				}
+				in = stream;
+				writing = nextSlot();
+			}
+			int count;
+			while (!closed && (count = stream.read(chunk)) >= 0)
+				scan(chunk, count);
+		}
+		catch (IOException ioe)
+		{
+			if (!closed)
+				Log.error("Exception caught: " + ioe);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Feeds bytes of the stream to the frame scanner. All bytes of a read are timestamped with
+	 * the time the read returned.
+	 * --------------------------------------------------------------------------------------------*/
+	private void scan(byte[] chunk, int count)
+	{
+		long now = System.nanoTime();
+		for (int i = 0; i < count; i++)
+		{
+			int b = chunk[i] & 0xFF;
+			if (state != SEEK_SOI && !append(b))
+			{
+				state = SEEK_SOI;		// frame too large, wait for the next one
+				escape = false;
+				continue;
+			}
+
+			switch (state)
+			{
+				case SEEK_SOI:
+					if (escape && b == JpegFrame.SOI)
+					{
+						frameStart = now;
+						fill = 0;
+						append(0xFF);
+						append(b);
+						state = MARKER;
+					}
+					escape = b == 0xFF;
+					break;
+
+				case MARKER:
+					if (b == 0xFF)
+						escape = true;			// marker prefix or fill byte
+					else if (escape)
+						onMarker(b, now);
+					else
+						state = SEEK_SOI;		// garbage, resynchronize on the next SOI
+					break;
+
+				case LENGTH:
+					remaining = (remaining << 8) | b;
+					if (++lengthBytes == 2)
+					{
+						remaining -= 2;
+						if (remaining < 0)
+							state = SEEK_SOI;
+						else
+							state = remaining > 0 ? SEGMENT : afterSegment();
+					}
+					break;
+
+				case SEGMENT:
+					if (--remaining == 0)
+						state = afterSegment();
+					break;
+
+				case ENTROPY:
+					// 0xFF00 is a stuffed byte, 0xFFD0-0xFFD7 are restart markers
+					if (escape && b != 0 && b != 0xFF && (b < 0xD0 || b > 0xD7))
+						onMarker(b, now);
+					else
+						escape = b == 0xFF;
+					break;
+			}
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Handles the marker just read.
+	 * ----------------------------------------------------------------*/
+	private void onMarker(int code, long now)
+	{
+		escape = false;
+		if (code == JpegFrame.EOI)
+		{
+			publish();
+			state = SEEK_SOI;
+		}
+		else if (code == JpegFrame.SOI)
+		{
+			// a frame cut short, start over with the new one
+			frameStart = now;
+			fill = 0;
+			append(0xFF);
+			append(code);
+			state = MARKER;
+		}
+		else if (code == 0x01 || (code >= 0xD0 && code <= 0xD7))
+		{
+			state = MARKER;		// markers without a length
+		}
+		else
+		{
+			segmentType = code;
+			lengthBytes = 0;
+			remaining = 0;
+			state = LENGTH;
+		}
+	}
+
+	private int afterSegment() {
+		return segmentType == JpegFrame.SOS ? ENTROPY : MARKER;
+	}
+
+	/**----------------------------------------------------------------
+	 * Appends a byte to the frame being filled, growing its buffer.
+	 * Returns false if the frame exceeds MAX_FRAME_SIZE.
+	 * ----------------------------------------------------------------*/
+	private boolean append(int b)
+	{
+		byte[] frame = frames[writing];
+		if (fill == frame.length)
+		{
+			if (fill >= MAX_FRAME_SIZE)
+				return false;
+			frame = frames[writing] = Arrays.copyOf(frame, Math.min(MAX_FRAME_SIZE, fill * 2));
+		}
+		frame[fill++] = (byte) b;
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Makes the frame filled the latest one and moves on to a slot
+	 * that is neither the latest nor being read.
+	 * ----------------------------------------------------------------*/
+	private synchronized void publish()
+	{
+		lengths[writing] = fill;
+		captureTimes[writing] = frameStart;
+		latest = writing;
+		latestSequence++;
+		writing = nextSlot();
+		fill = 0;
+		notifyAll();
+	}
+
+	private int nextSlot()
+	{
+		int slot = writing;
+		do {
+			slot = (slot + 1) % FRAME_RING_SIZE;
+		} while (slot == latest || slot == reading);
+		return slot;
+	}
+
+	/**----------------------------------------------------------------
+	 * Blocks until a frame newer than the one read last is captured
+	 * and returns the latest frame, null once the source is closed.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public synchronized ByteBuffer read() throws IOException
+	{
+		while (!closed && latestSequence == readSequence)
+		{
+			try {
+				wait();
+			}
+			catch (InterruptedException ie) {
+				return null;
+			}
+		}
+		if (latestSequence == readSequence)
+			return null;
+
+		readSequence = latestSequence;
+		reading = latest;
+		captureTime = captureTimes[reading];
+		return ByteBuffer.wrap(frames[reading], 0, lengths[reading]);
+	}
+
+	/**----------------------------------------------------------------
+	 * Completes the open of the pipe by the capture thread, which then
+	 * closes it.
+	 * ----------------------------------------------------------------*/
+	private void releaseOpen()
+	{
+		try {
+			new FileOutputStream(name).close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+	}
+
+	@Override
+	public synchronized long getCaptureTime() {
+		return captureTime;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Stops capturing: closes the stream and the capture command. Standard input stays open, the
+	 * capture thread ends after its pending read.
+	 * --------------------------------------------------------------------------------------------*/
+	@Override
+	public void close()
+	{
+		InputStream stream;
+		synchronized (this)
+		{
+			if (released)
+				return;
+			released = true;
+			closed = true;
+			stream = in;
+			notifyAll();
+
+			// the capture thread is opening the pipe: does not block, as the thread is a reader of it
+			if (stream == null)
+				releaseOpen();
+		}
+		try {
+			if (stream != null && stream != System.in)
+				stream.close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+		if (process != null)
+			process.destroy();
+		Log.info("Capture of " + name + " stopped");
+	}
+}
@@ -0,0 +1,34 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Congestion control strategy of a session.
+ * Turns the client's feedback into a target bitrate, which the session maps onto a quality level and a
+ * frame pacing interval. Implementations are driven by a single thread and must not read clocks, so that
+ * feedback traces replay against them deterministically (see CongestionTrace in the tests).
+ * ----------------------------------------------------------------------------------------------------------------*/
+public interface CongestionControl
+{
+	/**--------------------------------------------------------------------------------------------
+	 * Feeds a reception report received at the given time (ns): the fraction of packets lost since
+	 * the previous report, and the session's smoothed RTT (ms, -1 until measured) and jitter (ms).
+	 * --------------------------------------------------------------------------------------------*/
+	void onFeedback(long now, float fractionLost, double rtt, double jitter);
+
+	/**----------------------------------------------------------------
+	 * Returns the bitrate the session should send at (bits/s).
+	 * ----------------------------------------------------------------*/
+	int getTargetBitrate();
+
+	/**--------------------------------------------------------------------------------------------
+	 * Creates the strategy with the given name: "loss" for the loss buckets of the original server,
+	 * "rate" for the delay and loss based rate controller.
+	 * --------------------------------------------------------------------------------------------*/
+	static CongestionControl create(String name, int initialBitrate)
+	{
+		if ("loss".equals(name))
+			return new LossBasedControl(initialBitrate);
+		if ("rate".equals(name))
+			return new RateControl(initialBitrate);
+		throw new IllegalArgumentException("Unknown congestion control: " + name);
+	}
+}
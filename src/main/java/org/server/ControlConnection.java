@@ -0,0 +1,49 @@
+package org.server;
+
+import java.net.InetAddress;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * RTSP control connection, as seen by the session it serves.
+ *
+ * RtspConnection serves the connection from an RtspEventLoop shared with other connections, BlockingRtspConnection
+ * from a thread of its own (see RtspServer.BLOCKING_SESSIONS). Either way, the session's requests are handled one
+ * at a time, on the thread reading the connection.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public interface ControlConnection
+{
+	InetAddress getClientIp();
+
+	/**----------------------------------------------------------------
+	 * Sends an RTSP message, in order with the previous ones.
+	 * ----------------------------------------------------------------*/
+	void send(String message);
+
+	/**----------------------------------------------------------------
+	 * Streams the packets of the queue over this connection.
+	 * ----------------------------------------------------------------*/
+	void interleave(SendQueue queue);
+
+	/**----------------------------------------------------------------
+	 * Has the interleaved packets queued written. Safe to call from
+	 * any thread.
+	 * ----------------------------------------------------------------*/
+	void scheduleWrite();
+
+	/**----------------------------------------------------------------
+	 * Closes the connection once the responses sent are written.
+	 * ----------------------------------------------------------------*/
+	void closeAfterFlush();
+
+	/**----------------------------------------------------------------
+	 * Closes the connection and its session. Safe to call more than once.
+	 * ----------------------------------------------------------------*/
+	void close();
+
+	/**----------------------------------------------------------------
+	 * Closes the connection and its session on the thread serving the
+	 * connection. Safe to call from any thread.
+	 * ----------------------------------------------------------------*/
+	void closeLater();
+
+	boolean isClosed();
+}
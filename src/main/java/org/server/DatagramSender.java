@@ -0,0 +1,43 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Sends a run of datagrams claimed together from a SendQueue on a connected, non-blocking channel.
+ *
+ * The JDK sends one datagram per system call, and so does GatheringDatagramSender, the only implementation
+ * here: claiming packets several at a time saves queue bookkeeping per packet, not system calls. A sender
+ * submitting the run at once (sendmmsg, UDP GSO) would need native code; one can be plugged in by naming its
+ * class in the org.server.datagramSender system property, GatheringDatagramSender is the fallback.
+ * An instance is only used by one sender thread at a time.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public interface DatagramSender
+{
+	/**--------------------------------------------------------------------------------------------
+	 * Sends datagrams[offset] to datagrams[offset + count - 1], each given as the buffers it is
+	 * gathered from. Returns the number of datagrams sent, fewer than count if the socket's send
+	 * buffer filled up or sending the next one failed. The buffers of a datagram not sent are left
+	 * untouched. Throws only for datagrams[offset], which the caller then drops.
+	 * --------------------------------------------------------------------------------------------*/
+	int send(DatagramChannel channel, ByteBuffer[][] datagrams, int offset, int count) throws IOException;
+
+	/**----------------------------------------------------------------
+	 * Creates the configured datagram sender.
+	 * ----------------------------------------------------------------*/
+	static DatagramSender create()
+	{
+		String name = System.getProperty("org.server.datagramSender");
+		if (name != null)
+		{
+			try {
+				return (DatagramSender) Class.forName(name).getDeclaredConstructor().newInstance();
+			}
+			catch (Exception ex) {
+				Log.info("Datagram sender " + name + " not available, using gathering writes: " + ex);
+			}
+		}
+		return new GatheringDatagramSender();
+	}
+}
@@ -0,0 +1,190 @@
+package org.server;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Process-wide cache of frames ready to be packetized, shared by all sessions.
+ *
+ * Frames are keyed by (file, frame number, quality level), so a popular file is parsed once, and a
+ * frame re-encoded for a congested session is reused by every other session at the same level.
+ * The cache is bounded by the total size of the cached frames and evicts with the CLOCK algorithm:
+ * hits only set a reference bit (no locking), the eviction hand clears bits and evicts the first
+ * entry that has not been referenced since the hand last passed it.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class FrameCache
+{
+	static long CAPACITY_BYTES = 64L * 1024 * 1024;
+
+	private final static FrameCache shared = new FrameCache(CAPACITY_BYTES);
+
+	/**--------------------------------------------------------------------------------------------
+	 * Cache key: identity of the mapped file, frame number and quality level (0 = original).
+	 * --------------------------------------------------------------------------------------------*/
+	static final class Key
+	{
+		final MjpegFile file;
+		final int frame;
+		final int quality;
+
+		Key(MjpegFile file, int frame, int quality)
+		{
+			this.file = file;
+			this.frame = frame;
+			this.quality = quality;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return file == other.file && frame == other.frame && quality == other.quality;
+		}
+
+		@Override
+		public int hashCode() {
+			return (System.identityHashCode(file) * 31 + frame) * 31 + quality;
+		}
+	}
+
+	private static final class Entry
+	{
+		final Key key;
+		final JpegFrame frame;
+		final int size;
+		volatile boolean referenced;
+
+		Entry(Key key, JpegFrame frame, int size)
+		{
+			this.key = key;
+			this.frame = frame;
+			this.size = size;
+		}
+	}
+
+	private final long capacity;
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	private final ArrayList<Entry> clock = new ArrayList<Entry>();	// guarded by this
+	private int hand;				// guarded by this
+	private long size;				// guarded by this
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public FrameCache(long capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the cache shared by all sessions of the process.
+	 * ----------------------------------------------------------------*/
+	public static FrameCache getShared() {
+		return shared;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the cached frame, or null (and counts a miss) if it is not cached.
+	 * ----------------------------------------------------------------*/
+	public JpegFrame get(Key key)
+	{
+		Entry entry = entries.get(key);
+		if (entry == null)
+		{
+			misses.increment();
+			return null;
+		}
+		entry.referenced = true;
+		hits.increment();
+		return entry.frame;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Caches the frame, evicting other frames as needed. If another session cached the same frame
+	 * in the meantime, that frame is returned instead. Frames larger than the whole cache are not cached.
+	 * --------------------------------------------------------------------------------------------*/
+	public JpegFrame put(Key key, JpegFrame frame)
+	{
+		int frameSize = frame.data.limit();
+		if (frameSize > capacity)
+			return frame;
+
+		synchronized (this)
+		{
+			Entry existing = entries.get(key);
+			if (existing != null)
+				return existing.frame;
+
+			while (size + frameSize > capacity && !clock.isEmpty())
+				evictOne();
+
+			Entry entry = new Entry(key, frame, frameSize);
+			clock.add(entry);
+			entries.put(key, entry);
+			size += frameSize;
+		}
+		return frame;
+	}
+
+	/**----------------------------------------------------------------
+	 * Advances the clock hand until an unreferenced entry is found and evicts it.
+	 * ----------------------------------------------------------------*/
+	private void evictOne()
+	{
+		while (true)
+		{
+			if (hand >= clock.size())
+				hand = 0;
+			Entry entry = clock.get(hand);
+			if (entry.referenced)
+			{
+				entry.referenced = false;
+				hand++;
+				continue;
+			}
+
+			// swap-remove keeps removal O(1), the moved entry is examined next
+			int last = clock.size() - 1;
+			clock.set(hand, clock.get(last));
+			clock.remove(last);
+			entries.remove(entry.key);
+			size -= entry.size;
+			evictions.increment();
+			return;
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		long h = getHits();
+		long m = getMisses();
+		return "[FrameCache] Entries: " + getEntryCount() + ", Size: " + getSize() + "/" + capacity
+			   + ", Hits: " + h + ", Misses: " + m + ", Hit ratio: " + (h + m == 0 ? 0 : 100 * h / (h + m)) + "%"
+			   + ", Evictions: " + getEvictions();
+	}
+}
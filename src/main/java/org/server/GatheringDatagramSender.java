@@ -0,0 +1,34 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Pure Java datagram sender: one gathering write, and thus one system call, per datagram.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class GatheringDatagramSender implements DatagramSender
+{
+	@Override
+	public int send(DatagramChannel channel, ByteBuffer[][] datagrams, int offset, int count) throws IOException
+	{
+		for (int i = 0; i < count; i++)
+		{
+			try {
+				if (channel.write(datagrams[offset + i]) == 0)
+					return i;
+			}
+			catch (PortUnreachableException pue) {
+				// ICMP from a client that is not listening yet, the packet is lost like any other
+			}
+			catch (IOException ioe) {
+				// report the datagrams sent, the error is thrown again by the next call
+				if (i > 0)
+					return i;
+				throw ioe;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,80 @@
+package org.server;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Runs the streaming server without a GUI, until the process is terminated (SIGTERM or Ctrl-C).
+ * Options override the settings of the properties file, see ServerConfig.
+ *
+ * usage: java org.server.HeadlessMain [-config file] [-port port] [-file name] [-live source] [-legacy]
+ *        [-blocking] [-metrics port] [-log level]
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class HeadlessMain
+{
+	static int SHUTDOWN_TIMEOUT = 5000;		// time given to the sessions to close on termination (ms)
+
+	public static void main(String[] args) throws Exception
+	{
+		// re-encoding uses AWT images, which must not look for a display
+		System.setProperty("java.awt.headless", "true");
+
+		ServerConfig config = new ServerConfig();
+		for (int i = 0; i < args.length; i++)
+		{
+			String option = args[i];
+			if (option.equals("-config") && i + 1 < args.length)
+			{
+				Properties properties = new Properties();
+				InputStream in = new FileInputStream(args[++i]);
+				try {
+					properties.load(in);
+				}
+				finally {
+					in.close();
+				}
+				config.load(properties);
+			}
+			else if (option.equals("-port") && i + 1 < args.length)
+				config.setRtspPort(Integer.parseInt(args[++i]));
+			else if (option.equals("-file") && i + 1 < args.length)
+				config.setVideoFile(args[++i]);
+			else if (option.equals("-live") && i + 1 < args.length)
+				config.setLiveSource(args[++i]);
+			else if (option.equals("-legacy"))
+				config.setLegacyFraming(true);
+			else if (option.equals("-blocking"))
+				config.setBlockingSessions(true);
+			else if (option.equals("-metrics") && i + 1 < args.length)
+				config.setMetricsPort(Integer.parseInt(args[++i]));
+			else if (option.equals("-log") && i + 1 < args.length)
+				config.setLogLevel(args[++i]);
+			else
+			{
+				System.out.println("unknown option: " + option);
+				System.exit(2);
+			}
+		}
+
+		final StreamServer server = new StreamServer(config);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				server.stop();
+				try {
+					server.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException ie) {
+					// exiting anyway
+				}
+				Log.flush();
+			}
+		}, "shutdown"));
+
+		server.start();
+		server.awaitTermination();
+	}
+}
@@ -0,0 +1,117 @@
+package org.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Concurrent histogram of non-negative values with HDR-style log-linear buckets: values below 2^(SUB_BITS+1)
+ * have a bucket each, then every power of two is split in 2^SUB_BITS buckets, so percentiles are within
+ * 1/2^SUB_BITS of the recorded values. Recording neither allocates nor locks. Values above 2^MAX_BITS - 1
+ * are counted in the last bucket, negative values in the first one.
+ *
+ * Bucket index of v: shift = max(0, floor(log2(v)) - SUB_BITS), index = (shift << SUB_BITS) + (v >>> shift).
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class Histogram
+{
+	final static int SUB_BITS = 5;		// 32 buckets per power of two, 3% precision
+	final static int MAX_BITS = 36;		// highest value tracked: about 19 hours in us
+	private final static int BUCKETS = bucketOf((1L << MAX_BITS) - 1) + 1;
+
+	final String name;
+	final String unit;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram(String name, String unit)
+	{
+		this.name = name;
+		this.unit = unit;
+	}
+
+	static int bucketOf(long value)
+	{
+		if (value <= 0)
+			return 0;
+		if (value >= 1L << MAX_BITS)
+			value = (1L << MAX_BITS) - 1;
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return (shift << SUB_BITS) + (int)(value >>> shift);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the highest value counted in the bucket.
+	 * ----------------------------------------------------------------*/
+	static long highestOf(int bucket)
+	{
+		int shift = Math.max(0, (bucket >> SUB_BITS) - 1);
+		long mantissa = bucket - (shift << SUB_BITS);
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	public void record(long value)
+	{
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		sum.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the value at or below which the given fraction of the
+	 * values recorded falls, 0 if none was recorded. Values recorded
+	 * during the call may or may not be taken into account.
+	 * ----------------------------------------------------------------*/
+	public long getPercentile(double fraction)
+	{
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**----------------------------------------------------------------
+	 * Appends the count, sum, maximum and usual quantiles in the text
+	 * format of the metrics endpoint.
+	 * ----------------------------------------------------------------*/
+	void appendTo(StringBuilder out)
+	{
+		String metric = name + "_" + unit;
+		out.append("# TYPE ").append(metric).append(" summary\n");
+		double[] quantiles = { 0.5, 0.9, 0.99, 0.999 };
+		for (double q : quantiles)
+			out.append(metric).append("{quantile=\"").append(q).append("\"} ").append(getPercentile(q)).append('\n');
+		out.append(metric).append("_count ").append(getCount()).append('\n');
+		out.append(metric).append("_sum ").append(sum.sum()).append('\n');
+		out.append(metric).append("_max ").append(getMax()).append('\n');
+	}
+}
@@ -28,6 +28,7 @@ public class ImageEncoder
 
 	/**----------------------------------------------------------------
 	 * Constructor.
+	 * Throws IllegalStateException if no JPEG writer is available.
 	 * ----------------------------------------------------------------*/
 	public ImageEncoder(float quality)
 	{
@@ -49,29 +50,34 @@ public class ImageEncoder
 		}
 		catch (Exception ex)
 		{
-			System.out.println("Error encoding Exception caught: "+ex);
-			System.exit(0);
+			throw new IllegalStateException("No " + IMAGE_FORMAT + " encoder available", ex);
 		}
 	}
 
 	/**--------------------------------------------------------------------------------------------
 	 * Compresses given array of bytes (input byte stream) into specified image format.
+	 * Returns null if the image can not be decoded or encoded.
 	 * --------------------------------------------------------------------------------------------*/
 	public byte[] compress(byte[] imageBytes)
 	{
 		/* reset count field and reuse allocated buffer space to append a complete single image
 		 * stream to the output. The output is assigned to an output stream with "setOutput". */
+		long start = System.nanoTime();
 		try
 		{
 			byteArrayOutputStream.reset();
 			bufferedImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
+			if (bufferedImage == null)
+				return null;
 			imageWriter.write(null, new IIOImage(bufferedImage, null, null), imageWriterParam);
 		}
 		catch (Exception ex)
 		{
-			System.out.println("Exception caught: "+ex);
-			System.exit(0);
+			// a broken frame must not take the server down
+			Log.error("Exception caught: "+ex);
+			return null;
 		}
+		Metrics.encoderTime.record((System.nanoTime() - start) / 1000);
 		return byteArrayOutputStream.toByteArray();
 	}
 
@@ -0,0 +1,166 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Baseline JPEG frame split into the parts RFC 2435 transports: the frame parameters carried in the
+ * RTP/JPEG header, the quantization tables and the entropy-coded scan data.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class JpegFrame
+{
+	// JPEG markers
+	final static int SOI = 0xD8;
+	final static int EOI = 0xD9;
+	final static int SOF0 = 0xC0;
+	final static int SOF1 = 0xC1;
+	final static int DQT = 0xDB;
+	final static int DRI = 0xDD;
+	final static int SOS = 0xDA;
+
+	final ByteBuffer data;		// complete JFIF frame, position 0 is the SOI marker
+	int width;					// frame width in pixels
+	int height;					// frame height in pixels
+	int type;					// RFC 2435 type: 0 for 4:2:2, 1 for 4:2:0 sampling, +64 with restart markers
+	int restartInterval;		// MCUs between restart markers, 0 if none
+	byte[] qTables;				// quantization tables (luma, chroma) in zig-zag order
+	int qPrecision;				// bit i is set if table i uses 16-bit precision
+	int scanOffset;				// offset of the entropy-coded data within data
+	int scanLength;				// length of the entropy-coded data, EOI excluded
+
+	private JpegFrame(ByteBuffer data)
+	{
+		this.data = data;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Parses a JFIF frame. Returns null if the frame can not be carried by RFC 2435, i.e. it is not
+	 * a 3-component baseline frame with 4:2:2 or 4:2:0 sampling of at most 2040x2040 pixels, or if it
+	 * has no scan data.
+	 * Only absolute reads are used, the buffer position is left untouched.
+	 * --------------------------------------------------------------------------------------------*/
+	public static JpegFrame parse(ByteBuffer data)
+	{
+		int limit = data.limit();
+		if (limit < 4 || (data.get(0) & 0xFF) != 0xFF || (data.get(1) & 0xFF) != SOI)
+			return null;
+
+		JpegFrame frame = new JpegFrame(data);
+		byte[][] tables = new byte[4][];
+		int[] componentTables = new int[3];
+		boolean sof = false;
+
+		int pos = 2;
+		while (pos + 4 <= limit)
+		{
+			if ((data.get(pos) & 0xFF) != 0xFF)
+				return null;
+			int marker = data.get(pos + 1) & 0xFF;
+			if (marker == 0xFF) {		// fill byte
+				pos++;
+				continue;
+			}
+			int segmentLength = ((data.get(pos + 2) & 0xFF) << 8) | (data.get(pos + 3) & 0xFF);
+			int segment = pos + 4;
+			int next = pos + 2 + segmentLength;
+			if (next > limit)
+				return null;
+
+			switch (marker)
+			{
+				case DQT:
+					while (segment < next)
+					{
+						int pqTq = data.get(segment++) & 0xFF;
+						int size = (pqTq >> 4) == 0 ? 64 : 128;
+						int id = pqTq & 0x0F;
+						if (id > 3 || segment + size > next)
+							return null;
+						tables[id] = new byte[size];
+						for (int i = 0; i < size; i++)
+							tables[id][i] = data.get(segment + i);
+						segment += size;
+					}
+					break;
+
+				case SOF0:
+				case SOF1:
+					if (segmentLength < 2 + 6 + 3 * 3 || (data.get(segment + 5) & 0xFF) != 3)
+						return null;
+					frame.height = ((data.get(segment + 1) & 0xFF) << 8) | (data.get(segment + 2) & 0xFF);
+					frame.width = ((data.get(segment + 3) & 0xFF) << 8) | (data.get(segment + 4) & 0xFF);
+					int lumaSampling = data.get(segment + 7) & 0xFF;
+					if (lumaSampling == 0x21)
+						frame.type = 0;
+					else if (lumaSampling == 0x22)
+						frame.type = 1;
+					else
+						return null;
+					for (int c = 0; c < 3; c++)
+					{
+						int sampling = data.get(segment + 7 + c * 3) & 0xFF;
+						if (c > 0 && sampling != 0x11)
+							return null;
+						componentTables[c] = data.get(segment + 8 + c * 3) & 0xFF;
+					}
+					sof = true;
+					break;
+
+				case DRI:
+					if (segmentLength < 4)
+						return null;
+					frame.restartInterval = ((data.get(segment) & 0xFF) << 8) | (data.get(segment + 1) & 0xFF);
+					break;
+
+				case SOS:
+					if (!sof)
+						return null;
+					frame.scanOffset = next;
+					frame.scanLength = findEndOfImage(data, next) - next;
+					if (frame.scanLength <= 0)
+						return null;		// no scan data: truncated, or SOS directly followed by EOI
+					return frame.setTables(tables, componentTables) ? frame : null;
+
+				default:
+					// progressive, lossless and arithmetic coded frames are not supported
+					if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC)
+						return null;
+			}
+			pos = next;
+		}
+		return null;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the position of the trailing EOI marker, or the limit if it is missing.
+	 * ----------------------------------------------------------------*/
+	private static int findEndOfImage(ByteBuffer data, int scanStart)
+	{
+		for (int pos = data.limit() - 2; pos >= scanStart; pos--)
+		{
+			if ((data.get(pos) & 0xFF) == 0xFF && (data.get(pos + 1) & 0xFF) == EOI)
+				return pos;
+		}
+		return data.limit();
+	}
+
+	/**----------------------------------------------------------------
+	 * Collects the luma and chroma tables, both chroma components must share a table.
+	 * ----------------------------------------------------------------*/
+	private boolean setTables(byte[][] tables, int[] componentTables)
+	{
+		if (componentTables[1] != componentTables[2])
+			return false;
+		byte[] luma = tables[componentTables[0]];
+		byte[] chroma = tables[componentTables[1]];
+		if (luma == null || chroma == null || width > 2040 || height > 2040)
+			return false;
+		if (restartInterval > 0)
+			type += 64;
+
+		qTables = new byte[luma.length + chroma.length];
+		System.arraycopy(luma, 0, qTables, 0, luma.length);
+		System.arraycopy(chroma, 0, qTables, luma.length, chroma.length);
+		qPrecision = (luma.length == 128 ? 1 : 0) | (chroma.length == 128 ? 2 : 0);
+		return true;
+	}
+}
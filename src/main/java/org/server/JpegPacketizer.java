@@ -0,0 +1,120 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Splits JPEG frames into RTP packets according to RFC 2435.
+ *
+ * Every packet carries the 8-byte RTP/JPEG header with the fragment offset of its scan data, a restart
+ * marker header if the frame uses restart intervals, and the first packet of a frame additionally
+ * carries the quantization tables in-band (Q = 255). Packets never exceed the configured MTU, so a lost
+ * packet costs one fragment of a frame instead of the whole frame.
+ *
+ * RTP/JPEG header:
+ *		0				   1				   2				   3
+ *		0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ *		+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *		| Type-specific |			  Fragment Offset				  |
+ *		+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *		|	  Type	 |	   Q	   |	 Width	 |	 Height	|
+ *		+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class JpegPacketizer
+{
+	final static int JPEG_HEADER_SIZE = 8;
+	final static int RESTART_HEADER_SIZE = 4;
+	final static int QTABLE_HEADER_SIZE = 4;
+	final static int DYNAMIC_Q = 255;		// quantization tables are sent in-band
+
+	// largest RTP + payload header: two 16-bit quantization tables
+	final static int MAX_HEADER_LENGTH = RtpPacket.HEADER_SIZE + JPEG_HEADER_SIZE + RESTART_HEADER_SIZE + QTABLE_HEADER_SIZE + 256;
+
+	final static int RTP_CLOCK_RATE = 90000;	// RTP/JPEG timestamp clock (Hz)
+
+	private final int mtu;
+
+	/**----------------------------------------------------------------
+	 * Constructor.
+	 * mtu: maximum size of a complete RTP packet (RTP header included) in bytes.
+	 * ----------------------------------------------------------------*/
+	public JpegPacketizer(int mtu)
+	{
+		if (mtu <= MAX_HEADER_LENGTH)
+			throw new IllegalArgumentException("MTU too small: " + mtu);
+		this.mtu = mtu;
+	}
+
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the size of the payload headers of the fragment starting at the given offset.
+	 * ----------------------------------------------------------------*/
+	int headerLength(JpegFrame frame, int offset)
+	{
+		int length = JPEG_HEADER_SIZE;
+		if (frame.restartInterval > 0)
+			length += RESTART_HEADER_SIZE;
+		if (offset == 0)
+			length += QTABLE_HEADER_SIZE + frame.qTables.length;
+		return length;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of scan data bytes carried by the fragment starting at the given offset.
+	 * ----------------------------------------------------------------*/
+	public int fragmentLength(JpegFrame frame, int offset)
+	{
+		return Math.min(frame.scanLength - offset, mtu - RtpPacket.HEADER_SIZE - headerLength(frame, offset));
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets the frame is split into.
+	 * ----------------------------------------------------------------*/
+	public int packetCount(JpegFrame frame)
+	{
+		int count = 0;
+		for (int offset = 0; offset < frame.scanLength; offset += fragmentLength(frame, offset))
+			count++;
+		return count;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Writes the payload headers of the fragment starting at the given offset at the buffer's position,
+	 * i.e. right after the RTP header. The scan data itself is not copied, it is gathered from the frame buffer.
+	 * --------------------------------------------------------------------------------------------*/
+	public void writeHeaders(JpegFrame frame, int offset, ByteBuffer packet)
+	{
+		// main JPEG header
+		packet.putInt(offset & 0x00FFFFFF);		// type-specific = 0
+		packet.put((byte) frame.type);
+		packet.put((byte) DYNAMIC_Q);
+		packet.put((byte)(frame.width >> 3));
+		packet.put((byte)(frame.height >> 3));
+
+		// restart marker header, the whole frame is one chunk of restart intervals (F = L = 1)
+		if (frame.restartInterval > 0)
+		{
+			packet.putShort((short) frame.restartInterval);
+			packet.putShort((short) 0xFFFF);
+		}
+
+		// quantization table header and tables, first fragment only
+		if (offset == 0)
+		{
+			packet.put((byte) 0);
+			packet.put((byte) frame.qPrecision);
+			packet.putShort((short) frame.qTables.length);
+			packet.put(frame.qTables);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Converts a media time in milliseconds into an RTP/JPEG timestamp.
+	 * ----------------------------------------------------------------*/
+	static int timestamp(long millis)
+	{
+		return (int)(millis * (RTP_CLOCK_RATE / 1000));
+	}
+}
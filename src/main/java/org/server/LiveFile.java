@@ -0,0 +1,47 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Plays an MJPEG file as a live source: frames become available at the video frame rate, as if they were
+ * captured, and the file starts over at its end. Frames are zero-copy views of the shared mapping.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class LiveFile implements LiveSource
+{
+	private final MjpegFile file;
+	private final long start = System.nanoTime();
+	private long frameCounter;			// frames read so far
+	private long captureTime;
+	private volatile boolean closed;
+
+	public LiveFile(String fileName) throws IOException
+	{
+		file = MjpegFile.open(fileName);
+	}
+
+	@Override
+	public ByteBuffer read()
+	{
+		long due = start + frameCounter * Server.FRAME_PERIOD * 1000000L;
+		long wait;
+		while (!closed && (wait = due - System.nanoTime()) > 0)
+			LockSupport.parkNanos(this, wait);
+		if (closed || file.getFrameCount() == 0)
+			return null;
+
+		captureTime = due;
+		return file.getFrame((int)(frameCounter++ % file.getFrameCount()));
+	}
+
+	@Override
+	public long getCaptureTime() {
+		return captureTime;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
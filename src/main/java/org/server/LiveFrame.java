@@ -0,0 +1,129 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * A frame of a live source, read and packetized once and shared by all subscribers of the source.
+ *
+ * The frame owns a copy of the JPEG data and the headers of all its packets, built with zero sequence
+ * number, timestamp and SSRC: a subscriber copies a packet's header into its send queue, rewrites these
+ * three fields and references the payload in place. Frames are reference counted and return to their
+ * hub's pool once the hub's ring and every subscriber's queued packets have released them.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public final class LiveFrame
+{
+	private final LiveHub hub;
+	private final AtomicInteger refCount = new AtomicInteger();
+
+	volatile long sequence = -1;	// position in the hub's ring
+	long captureTime;				// System.nanoTime() at capture
+	int mediaTime;					// capture time relative to the start of the hub (ms)
+	JpegFrame frame;				// parsed view of data
+	ByteBuffer data;				// JPEG data, reused across the frame's lives
+	int packetCount;
+	byte[] headers = new byte[0];	// headers of all packets, back to back
+	int[] headerEnd = new int[0];	// end of each packet's header in headers
+	int[] payloadOffset = new int[0];	// scan data of each packet in data
+	int[] payloadLength = new int[0];
+
+	LiveFrame(LiveHub hub) {
+		this.hub = hub;
+	}
+
+	/**----------------------------------------------------------------
+	 * Takes a reference, unless the frame was released meanwhile.
+	 * ----------------------------------------------------------------*/
+	boolean retain()
+	{
+		for (;;)
+		{
+			int count = refCount.get();
+			if (count <= 0)
+				return false;
+			if (refCount.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Drops a reference, the last one recycles the frame.
+	 * ----------------------------------------------------------------*/
+	void release()
+	{
+		if (refCount.decrementAndGet() == 0)
+			hub.recycle(this);
+	}
+
+	/**----------------------------------------------------------------
+	 * Takes the first reference of a new life, before publishing.
+	 * ----------------------------------------------------------------*/
+	void publish(long sequence)
+	{
+		this.sequence = sequence;
+		refCount.set(1);
+	}
+
+	/**----------------------------------------------------------------
+	 * Copies the JPEG data, growing the buffer if needed.
+	 * ----------------------------------------------------------------*/
+	void copy(ByteBuffer jpeg)
+	{
+		if (data == null || data.capacity() < jpeg.remaining())
+			data = ByteBuffer.allocateDirect(jpeg.remaining() * 3 / 2);
+		data.clear();
+		data.put(jpeg);
+		data.flip();
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Builds the headers of all packets of the frame, returns false if the frame can not be sent.
+	 * --------------------------------------------------------------------------------------------*/
+	boolean packetize(JpegPacketizer packetizer)
+	{
+		frame = JpegFrame.parse(data);
+		if (frame == null)
+			return false;
+
+		packetCount = packetizer.packetCount(frame);
+		if (packetCount == 0)
+			return false;
+		if (headerEnd.length < packetCount)
+		{
+			headerEnd = new int[packetCount];
+			payloadOffset = new int[packetCount];
+			payloadLength = new int[packetCount];
+		}
+		int capacity = packetCount * (RtpPacket.HEADER_SIZE + JpegPacketizer.JPEG_HEADER_SIZE + JpegPacketizer.RESTART_HEADER_SIZE)
+				+ JpegPacketizer.QTABLE_HEADER_SIZE + frame.qTables.length;
+		if (headers.length < capacity)
+			headers = new byte[capacity];
+
+		ByteBuffer buffer = ByteBuffer.wrap(headers);
+		int offset = 0;
+		for (int i = 0; i < packetCount; i++)
+		{
+			int length = packetizer.fragmentLength(frame, offset);
+			RtpPacket.writeHeader(buffer, i == packetCount - 1, Server.MJPEG_TYPE, 0, 0, 0);
+			packetizer.writeHeaders(frame, offset, buffer);
+			headerEnd[i] = buffer.position();
+			payloadOffset[i] = frame.scanOffset + offset;
+			payloadLength[i] = length;
+			offset += length;
+		}
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes the header of the given packet with the session's fields.
+	 * ----------------------------------------------------------------*/
+	void writeHeader(int packet, ByteBuffer target, int sequenceNumber, int timestamp, int ssrc)
+	{
+		int start = packet == 0 ? 0 : headerEnd[packet - 1];
+		int position = target.position();
+		target.put(headers, start, headerEnd[packet] - start);
+		target.putShort(position + 2, (short) sequenceNumber);
+		target.putInt(position + 4, timestamp);
+		target.putInt(position + 8, ssrc);
+	}
+}
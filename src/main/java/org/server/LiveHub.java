@@ -0,0 +1,210 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Fan-out of a live source to all sessions subscribed to it.
+ *
+ * A producer thread reads every frame of the source once, packetizes it once into a LiveFrame and publishes
+ * it on a single-producer/multi-consumer ring (Disruptor-style): the frame is stored in its slot, then the
+ * cursor is advanced. Each subscriber keeps its own position and reads the frames behind the cursor without
+ * locking; the producer never waits for a subscriber. A subscriber falling more than the ring behind skips
+ * to the latest frame, as live viewers should, and new subscribers start with the latest frame.
+ *
+ * Subscribers waiting for a frame are out of their pacer's queue (PacketPacer.WAIT), publishing a frame wakes
+ * them up.
+ *
+ * Frames are reference counted: the ring holds one reference until the slot is overwritten, subscribers
+ * take one while their packets are queued. Released frames return to a pool with their buffers.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class LiveHub implements Runnable
+{
+	static int RING_SIZE = 8;				// frames kept for the subscribers, a power of 2
+	static int DEFAULT_FRAME_LENGTH = 20000;	// frame size assumed until the first frame (bytes)
+
+	final String source;			// name of the live source
+	private final SessionManager sessionManager;
+	private final LiveSource liveSource;
+	private final JpegPacketizer packetizer = new JpegPacketizer(Server.RTP_MTU);
+	private final AtomicReferenceArray<LiveFrame> ring = new AtomicReferenceArray<LiveFrame>(RING_SIZE);
+	private final AtomicLong cursor = new AtomicLong(-1);	// position of the latest frame published
+	private final ConcurrentLinkedQueue<LiveFrame> pool = new ConcurrentLinkedQueue<LiveFrame>();
+	private final Set<Server> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Server, Boolean>());
+	private final Thread producer;
+	private long startTime = -1;
+	private volatile int averageFrameLength = DEFAULT_FRAME_LENGTH;
+	private volatile boolean running = true;
+
+	/**----------------------------------------------------------------
+	 * Opens the source and starts the producer thread.
+	 * ----------------------------------------------------------------*/
+	public LiveHub(String source, SessionManager sessionManager) throws Exception
+	{
+		this.source = source;
+		this.sessionManager = sessionManager;
+		liveSource = LiveSource.open(source);
+		producer = new Thread(this, "live-" + source);
+		producer.setDaemon(true);
+		producer.start();
+		Log.info("Live hub started for " + source);
+	}
+
+	/**----------------------------------------------------------------
+	 * Producer loop: reads, packetizes and publishes frames until the
+	 * source ends or the hub is closed. A source ending or failing on
+	 * its own ends the hub and its sessions.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void run()
+	{
+		try
+		{
+			ByteBuffer jpeg;
+			while (running && (jpeg = liveSource.read()) != null)
+			{
+				LiveFrame frame = pool.poll();
+				if (frame == null)
+					frame = new LiveFrame(this);
+
+				frame.copy(jpeg);
+				if (!frame.packetize(packetizer))
+				{
+					Log.warn("[" + source + "] Frame is not RFC 2435 compatible, skipped");
+					pool.add(frame);
+					continue;
+				}
+
+				frame.captureTime = liveSource.getCaptureTime();
+				if (startTime < 0)
+					startTime = frame.captureTime;
+				frame.mediaTime = (int)((frame.captureTime - startTime) / 1000000L);
+				averageFrameLength += (frame.data.limit() - averageFrameLength) / 8;
+				publish(frame);
+			}
+		}
+		catch (Exception ex)
+		{
+			Log.error("Exception caught: " + ex);
+		}
+		finally
+		{
+			liveSource.close();
+			if (running)
+				sessionManager.endLive(this);
+		}
+	}
+
+	private void publish(LiveFrame frame)
+	{
+		long position = cursor.get() + 1;
+		frame.publish(position);
+		LiveFrame previous = ring.getAndSet((int) position & (RING_SIZE - 1), frame);
+		cursor.set(position);		// ordered before the wake-ups, a session about to wait sees the frame
+		if (previous != null)
+			previous.release();
+
+		for (Server session : subscribers)
+		{
+			PacketPacer.Handle handle = session.pacerHandle;
+			if (handle != null)
+				handle.wake();
+		}
+	}
+
+	void recycle(LiveFrame frame) {
+		pool.add(frame);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the frame at the given position, or the latest one if it was overwritten already,
+	 * with a reference taken for the caller. Returns null if no frame was published at or past the
+	 * position yet. The caller continues at the returned frame's sequence + 1.
+	 * --------------------------------------------------------------------------------------------*/
+	LiveFrame poll(long position)
+	{
+		for (;;)
+		{
+			long published = cursor.get();
+			if (position > published)
+				return null;
+			if (published - position >= RING_SIZE)
+				position = published;	// lagging, skip to the latest frame
+
+			LiveFrame frame = ring.get((int) position & (RING_SIZE - 1));
+			if (frame != null && frame.retain())
+			{
+				if (frame.sequence == position)
+					return frame;
+				frame.release();	// recycled and published again meanwhile
+			}
+			position = Math.max(position, cursor.get() - RING_SIZE + 1);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the position new subscribers start reading at.
+	 * ----------------------------------------------------------------*/
+	long getLatest() {
+		return Math.max(0, cursor.get());
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the capture time of the latest frame relative to the
+	 * start of the hub (ms).
+	 * ----------------------------------------------------------------*/
+	int getMediaTime()
+	{
+		LiveFrame frame = ring.get((int) getLatest() & (RING_SIZE - 1));
+		return frame == null ? 0 : frame.mediaTime;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the running average frame size (bytes).
+	 * ----------------------------------------------------------------*/
+	public int getAverageFrameLength() {
+		return averageFrameLength;
+	}
+
+	public long getFramesPublished() {
+		return cursor.get() + 1;
+	}
+
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	void subscribe(Server session) {
+		subscribers.add(session);
+	}
+
+	Collection<Server> getSubscribers() {
+		return subscribers;
+	}
+
+	/**----------------------------------------------------------------
+	 * Removes the session, returns true if it was the last subscriber.
+	 * ----------------------------------------------------------------*/
+	boolean unsubscribe(Server session)
+	{
+		subscribers.remove(session);
+		return subscribers.isEmpty();
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops the producer and releases the source.
+	 * ----------------------------------------------------------------*/
+	void close()
+	{
+		running = false;
+		liveSource.close();
+		producer.interrupt();
+		Log.info("Live hub for " + source + " closed");
+	}
+}
@@ -0,0 +1,40 @@
+package org.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Source of live JPEG frames, read by the producer thread of a LiveHub.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public interface LiveSource
+{
+	/**--------------------------------------------------------------------------------------------
+	 * Blocks until the next frame is available and returns it, null at the end of the source.
+	 * The buffer is only valid until the next call.
+	 * --------------------------------------------------------------------------------------------*/
+	ByteBuffer read() throws IOException;
+
+	/**----------------------------------------------------------------
+	 * Returns the capture time of the frame last read (System.nanoTime()).
+	 * ----------------------------------------------------------------*/
+	long getCaptureTime();
+
+	/**----------------------------------------------------------------
+	 * Releases the source, a blocked read() returns null.
+	 * ----------------------------------------------------------------*/
+	void close();
+
+	/**--------------------------------------------------------------------------------------------
+	 * Opens a source by name: "-" for stdin, a V4L2 device (/dev/video*) or a named pipe are
+	 * captured as MJPEG byte streams, a regular file is an MJPEG file played in real time, from
+	 * the start again at its end.
+	 * --------------------------------------------------------------------------------------------*/
+	static LiveSource open(String name) throws Exception
+	{
+		File file = new File(name);
+		if (name.equals("-") || name.startsWith("/dev/video") || (file.exists() && !file.isFile()))
+			return CaptureSource.open(name);
+		return new LiveFile(name);
+	}
+}
@@ -0,0 +1,290 @@
+package org.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * End-to-end streaming benchmark: runs N SimulatedClients against a server on loopback, started in this JVM
+ * or already running, and reports per stream and overall:
+ *  - frames received complete, packets lost (injected drops included), late and malformed packets,
+ *  - frame-delivery latency percentiles and inter-frame jitter percentiles (ms), interarrival jitter (ms),
+ *  - the server's CPU time per stream, measured on its own threads when it runs in this JVM, or from
+ *    /proc/<pid>/stat (Linux) for a server given with -pid.
+ * Statistics are recorded over -duration seconds, once all clients are started and -warmup seconds passed.
+ *
+ * usage: java org.server.LoadGenerator [-clients n] [-duration s] [-warmup s] [-ramp ms] [-file name]
+ *        [-live source] [-legacy] [-loss fraction] [-delay ms] [-jitter ms] [-remote host[:port]] [-pid pid]
+ *        [-blocking] [-verbose]
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class LoadGenerator
+{
+	static int CLIENTS = 10;
+	static int DURATION = 30;			// measurement window (s)
+	static int WARMUP = 5;				// time between the last client started and the window (s)
+	static int RAMP = 20;				// interval between two clients started (ms)
+	static int CLOCK_TICKS = 100;		// USER_HZ, unit of the CPU times in /proc/<pid>/stat
+
+	int clients = CLIENTS;
+	int duration = DURATION;
+	int warmup = WARMUP;
+	int ramp = RAMP;
+	String file = Server.VIDEO_FILE;
+	String live;						// live source served by the in-process server, null for the file
+	boolean legacyFraming;
+	boolean blockingSessions = RtspServer.BLOCKING_SESSIONS;	// session threads of the in-process server
+	double loss;
+	int delay;
+	int delayJitter;
+	InetSocketAddress remote;			// server to load, null to start one in this JVM
+	int pid = -1;
+	boolean verbose;
+
+	private final PrintStream out = System.out;
+	private StreamServer streamServer;
+	private final Set<Long> clientThreads = new HashSet<Long>();
+
+	public static void main(String[] args) throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i < args.length; i++)
+		{
+			String option = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			if (option.equals("-clients"))
+				generator.clients = Integer.parseInt(args[++i]);
+			else if (option.equals("-duration"))
+				generator.duration = Integer.parseInt(args[++i]);
+			else if (option.equals("-warmup"))
+				generator.warmup = Integer.parseInt(args[++i]);
+			else if (option.equals("-ramp"))
+				generator.ramp = Integer.parseInt(args[++i]);
+			else if (option.equals("-file"))
+				generator.file = args[++i];
+			else if (option.equals("-live"))
+				generator.live = args[++i];
+			else if (option.equals("-legacy"))
+				generator.legacyFraming = true;
+			else if (option.equals("-loss"))
+				generator.loss = Double.parseDouble(args[++i]);
+			else if (option.equals("-delay"))
+				generator.delay = Integer.parseInt(args[++i]);
+			else if (option.equals("-jitter"))
+				generator.delayJitter = Integer.parseInt(args[++i]);
+			else if (option.equals("-pid"))
+				generator.pid = Integer.parseInt(args[++i]);
+			else if (option.equals("-blocking"))
+				generator.blockingSessions = true;
+			else if (option.equals("-verbose"))
+				generator.verbose = true;
+			else if (option.equals("-remote") && value != null)
+			{
+				i++;
+				int colon = value.lastIndexOf(':');
+				generator.remote = colon < 0 ? new InetSocketAddress(value, Server.RTSP_PORT)
+						: new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+			}
+			else
+			{
+				System.out.println("unknown option: " + option);
+				return;
+			}
+		}
+		generator.run();
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Starts the server if needed and the clients, measures over the window and prints the report.
+	 * --------------------------------------------------------------------------------------------*/
+	void run() throws Exception
+	{
+		InetSocketAddress address = remote;
+		if (address == null)
+			address = startServer();
+
+		String url = "rtsp://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/" + file;
+		SimulatedClient[] simulated = new SimulatedClient[clients];
+		Thread[] threads = new Thread[clients];
+		clientThreads.add(Thread.currentThread().getId());
+		try
+		{
+			for (int i = 0; i < clients; i++)
+			{
+				simulated[i] = new SimulatedClient(i, address, url, legacyFraming, loss, delay, delayJitter, i);
+				threads[i] = new Thread(simulated[i], "client-" + i);
+				threads[i].setDaemon(true);
+				clientThreads.add(threads[i].getId());
+				threads[i].start();
+				Thread.sleep(ramp);
+			}
+
+			long start = System.nanoTime() + warmup * 1000000000L;
+			long end = start + duration * 1000000000L;
+			for (SimulatedClient client : simulated)
+				client.setWindow(start, end);
+
+			sleepUntil(start);
+			long cpuStart = serverCpuTime();
+			sleepUntil(end);
+			long cpuEnd = serverCpuTime();
+
+			for (SimulatedClient client : simulated)
+				client.stop();
+			for (Thread thread : threads)
+				thread.join(SimulatedClient.RTSP_TIMEOUT * 2);
+
+			report(simulated, cpuStart >= 0 && cpuEnd >= 0 ? cpuEnd - cpuStart : -1, end - start);
+		}
+		finally
+		{
+			stopServer();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts an RTSP server in this JVM, on a loopback address.
+	 * ----------------------------------------------------------------*/
+	private InetSocketAddress startServer() throws Exception
+	{
+		streamServer = new StreamServer(new ServerConfig().setVideoFile(file).setLiveSource(live).setLegacyFraming(legacyFraming)
+				.setBlockingSessions(blockingSessions).setMaxSessions(Math.max(clients, SessionManager.MAX_SESSIONS))
+				.setLogLevel(verbose ? "info" : "warn"));	// the sessions log every request at info
+		streamServer.start();
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), streamServer.getPort());
+	}
+
+	private void stopServer()
+	{
+		if (streamServer == null)
+			return;
+		streamServer.stop();
+		try {
+			streamServer.awaitTermination(SimulatedClient.RTSP_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ie) {
+			// exiting anyway
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the CPU time of the server so far (ns), -1 if unknown.
+	 * ----------------------------------------------------------------*/
+	private long serverCpuTime()
+	{
+		if (streamServer != null)
+		{
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (!threads.isThreadCpuTimeSupported())
+				return -1;
+			long total = 0;
+			for (long id : threads.getAllThreadIds())
+			{
+				long time = clientThreads.contains(id) ? -1 : threads.getThreadCpuTime(id);
+				if (time > 0)
+					total += time;
+			}
+			return total;
+		}
+
+		if (pid < 0)
+			return -1;
+		try
+		{
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+			try
+			{
+				// utime and stime are the 14th and 15th fields, counted after the parenthesized command name
+				String stat = reader.readLine();
+				String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+				return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * (1000000000L / CLOCK_TICKS);
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (Exception ex)
+		{
+			System.out.println("Exception caught: " + ex);
+			return -1;
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Prints one line per stream and the overall line.
+	 * --------------------------------------------------------------------------------------------*/
+	private void report(SimulatedClient[] simulated, long cpuTime, long window)
+	{
+		out.println(String.format(Locale.US, "%d clients, %d s after a %d s warm-up, %s framing, loss %.1f%%, delay %d ms + up to %d ms%s",
+				clients, duration, warmup, legacyFraming ? "legacy" : "standard", loss * 100, delay, delayJitter,
+				remote != null ? "" : blockingSessions ? ", " + (SessionThreads.isVirtual() ? "virtual" : "platform") + " thread per session" : ", event loops"));
+		out.println("stream  frames broken packets   lost dropped  late  bad | latency p50    p95    p99    max"
+				+ " | inter-frame p50    p99 | jitter");
+
+		SimulatedClient.Samples latency = new SimulatedClient.Samples();
+		SimulatedClient.Samples interFrame = new SimulatedClient.Samples();
+		int frames = 0;
+		int broken = 0;
+		int packets = 0;
+		int lost = 0;
+		int dropped = 0;
+		int late = 0;
+		int malformed = 0;
+		int replays = 0;
+		int streaming = 0;
+		double jitter = 0;
+		for (SimulatedClient client : simulated)
+		{
+			out.println(line(String.valueOf(client.id), client.frames, client.brokenFrames, client.packets, client.lost,
+					client.dropped, client.late, client.malformed, client.latency, client.interFrame, client.getJitter())
+					+ (client.error != null ? "  " + client.error : client.ended ? "  ended" : ""));
+			latency.addAll(client.latency);
+			interFrame.addAll(client.interFrame);
+			frames += client.frames;
+			broken += client.brokenFrames;
+			packets += client.packets;
+			lost += client.lost;
+			dropped += client.dropped;
+			late += client.late;
+			malformed += client.malformed;
+			jitter += client.getJitter();
+			replays += client.replays;
+			if (client.error == null && client.frames > 0)
+				streaming++;
+		}
+		out.println(line("all", frames, broken, packets, lost, dropped, late, malformed, latency, interFrame, jitter / simulated.length));
+
+		out.println(String.format(Locale.US, "%d of %d streams delivered, %.1f frames/s per stream, %d replays",
+				streaming, clients, streaming == 0 ? 0 : frames * 1e9 / window / streaming, replays));
+		if (cpuTime >= 0 && streaming > 0)
+			out.println(String.format(Locale.US, "server CPU: %.1f%% of a core, %.2f%% per stream",
+					cpuTime * 100.0 / window, cpuTime * 100.0 / window / streaming));
+		else
+			out.println("server CPU: unknown (give the server's -pid)");
+	}
+
+	private static String line(String name, int frames, int broken, int packets, int lost, int dropped, int late, int malformed,
+			SimulatedClient.Samples latency, SimulatedClient.Samples interFrame, double jitter)
+	{
+		return String.format(Locale.US, "%-6s %7d %6d %7d %6d %7d %5d %4d | %11.1f %6.1f %6.1f %6.1f | %15.1f %6.1f | %6.1f",
+				name, frames, broken, packets, lost, dropped, late, malformed,
+				latency.percentile(0.5) / 1000.0, latency.percentile(0.95) / 1000.0,
+				latency.percentile(0.99) / 1000.0, latency.percentile(1) / 1000.0,
+				interFrame.percentile(0.5) / 1000.0, interFrame.percentile(0.99) / 1000.0, jitter);
+	}
+
+	private static void sleepUntil(long time) throws InterruptedException
+	{
+		long remaining;
+		while ((remaining = time - System.nanoTime()) > 0)
+			Thread.sleep(Math.max(1, remaining / 1000000L));
+	}
+}
@@ -0,0 +1,173 @@
+package org.server;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Level-gated asynchronous logger. Messages below the level are discarded before anything else happens;
+ * the others are queued and written to System.out by a daemon thread, so callers never wait for the console.
+ * When the queue is full, messages are dropped and counted. Messages still queued at exit are written by a
+ * shutdown hook.
+ *
+ * Building a message costs a string concatenation on the caller's thread: on hot paths, test isEnabled()
+ * first, e.g. if (Log.isEnabled(Log.DEBUG)) Log.debug("frame #" + n).
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class Log
+{
+	final static int ERROR = 0;
+	final static int WARN = 1;
+	final static int INFO = 2;
+	final static int DEBUG = 3;
+	private final static String[] NAMES = { "ERROR", "WARN", "INFO", "DEBUG" };
+
+	static volatile int LEVEL = parseLevel(System.getProperty("org.server.log"), INFO);	// most verbose level written
+	static int QUEUE_SIZE = 8192;		// messages waiting for the writer, more are dropped
+
+	private final static ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private final static AtomicLong dropped = new AtomicLong();
+	private final static SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");	// lock serializing the writes
+	private static volatile Thread writer;
+
+	/**----------------------------------------------------------------
+	 * A queued message, formatted by the writer.
+	 * ----------------------------------------------------------------*/
+	private static class Entry
+	{
+		final int level;
+		final long time;
+		final String thread;
+		final String message;
+
+		Entry(int level, String message)
+		{
+			this.level = level;
+			this.time = System.currentTimeMillis();
+			this.thread = Thread.currentThread().getName();
+			this.message = message;
+		}
+	}
+
+	static boolean isEnabled(int level) {
+		return level <= LEVEL;
+	}
+
+	static void error(String message) {
+		log(ERROR, message);
+	}
+
+	static void warn(String message) {
+		log(WARN, message);
+	}
+
+	static void info(String message) {
+		log(INFO, message);
+	}
+
+	static void debug(String message) {
+		log(DEBUG, message);
+	}
+
+	static void log(int level, String message)
+	{
+		if (level > LEVEL)
+			return;
+		if (writer == null)
+			startWriter();
+		if (!queue.offer(new Entry(level, message)))
+			dropped.incrementAndGet();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the level named (error, warn, info or debug, any case),
+	 * or the default if the name is null or unknown.
+	 * ----------------------------------------------------------------*/
+	static int parseLevel(String name, int defaultLevel)
+	{
+		for (int i = 0; name != null && i < NAMES.length; i++)
+		{
+			if (NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		}
+		return defaultLevel;
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes the queued messages on the caller's thread.
+	 * ----------------------------------------------------------------*/
+	static void flush()
+	{
+		List<Entry> batch = new ArrayList<Entry>();
+		synchronized (timeFormat)
+		{
+			queue.drainTo(batch);
+			write(batch);
+		}
+	}
+
+	private static synchronized void startWriter()
+	{
+		if (writer != null)
+			return;
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				List<Entry> batch = new ArrayList<Entry>();
+				try
+				{
+					while (true)
+					{
+						Entry first = queue.take();
+						synchronized (timeFormat)
+						{
+							batch.add(first);
+							queue.drainTo(batch);
+							write(batch);
+						}
+						batch.clear();
+					}
+				}
+				catch (InterruptedException ie)
+				{
+					// not interrupted by the server, the thread is a daemon
+				}
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "log-flush"));
+	}
+
+	/**----------------------------------------------------------------
+	 * Formats and prints a batch, with a note of the messages dropped
+	 * since the previous one. Called with the timeFormat lock held.
+	 * ----------------------------------------------------------------*/
+	private static void write(List<Entry> batch)
+	{
+		StringBuilder out = new StringBuilder(batch.size() * 96);
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			out.append(timeFormat.format(new Date())).append(" WARN  [log] ").append(lost).append(" messages dropped\n");
+		for (Entry entry : batch)
+		{
+			out.append(timeFormat.format(new Date(entry.time))).append(' ');
+			out.append(NAMES[entry.level]);
+			for (int i = NAMES[entry.level].length(); i < 6; i++)
+				out.append(' ');
+			out.append('[').append(entry.thread).append("] ").append(entry.message).append('\n');
+		}
+		System.out.print(out);
+		System.out.flush();
+	}
+}
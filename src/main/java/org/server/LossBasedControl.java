@@ -0,0 +1,42 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Congestion control of the original server: the loss of the last report is mapped onto five congestion
+ * levels, each level lowering the bitrate by a fifth of the initial one. Ignores delay.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class LossBasedControl implements CongestionControl
+{
+	private final int initialBitrate;
+	private int level;		// congestion level, 0 to 4
+
+	public LossBasedControl(int initialBitrate)
+	{
+		this.initialBitrate = initialBitrate;
+	}
+
+	@Override
+	public void onFeedback(long now, float fractionLost, double rtt, double jitter)
+	{
+		//set congestion level between 0 to 4
+		if ((fractionLost >= 0) && (fractionLost <= 0.01)) {
+			level = 0;	//less than 0.01 assume negligible
+		}
+		else if ((fractionLost > 0.01) && (fractionLost <= 0.25)) {
+			level = 1;
+		}
+		else if ((fractionLost > 0.25) && (fractionLost <= 0.5)) {
+			level = 2;
+		}
+		else if ((fractionLost > 0.5) && (fractionLost <= 0.75)) {
+			level = 3;
+		}
+		else {
+			level = 4;
+		}
+	}
+
+	@Override
+	public int getTargetBitrate() {
+		return (int)(initialBitrate * (1.0 - 0.2 * level));
+	}
+}
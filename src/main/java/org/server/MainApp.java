@@ -30,7 +30,7 @@ public class MainApp extends Application
 	@Override
 	public void start(Stage primaryStage) throws Exception
 	{
-		CommunicationService service = new CommunicationService(new Server());
+		CommunicationService service = new CommunicationService(Server.RTSP_PORT);
 
         primaryStage.setTitle("Stream Server");
         Button closeButton = new Button();
@@ -40,7 +40,7 @@ public class MainApp extends Application
         closeButton.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent event) {
-                System.out.println("Stopping stream server");
+                Log.info("Stopping stream server");
                 service.cancel();
                 stop(primaryStage);
             }
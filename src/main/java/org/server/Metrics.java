@@ -0,0 +1,82 @@
+package org.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Process-wide counters and histograms, updated on the send and feedback paths without allocating or locking.
+ * They are exposed by ServerMetrics (JMX) and MetricsEndpoint (HTTP), together with per-session values read
+ * from the sessions.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class Metrics
+{
+	final static LongAdder framesSent = new LongAdder();		// frames handed to the packetizer
+	final static LongAdder framesDropped = new LongAdder();		// frames skipped under congestion or lag
+	final static LongAdder packetsSent = new LongAdder();
+	final static LongAdder bytesSent = new LongAdder();			// RTP/RTCP packets, headers included
+	final static LongAdder packetsDropped = new LongAdder();	// packets evicted from full send queues
+	final static LongAdder rtcpReports = new LongAdder();		// reception reports received
+	final static LongAdder sessionsOpened = new LongAdder();
+
+	final static Histogram sendLatency = new Histogram("send_latency", "us");		// send queue to socket
+	final static Histogram pacingError = new Histogram("pacing_error", "us");		// pacer wake-up after the deadline
+	final static Histogram encoderTime = new Histogram("encoder_time", "us");		// JPEG re-encoding of a frame
+	final static Histogram rtcpLoss = new Histogram("rtcp_loss", "permille");		// fraction lost reported
+	final static Histogram rtcpJitter = new Histogram("rtcp_jitter", "us");			// interarrival jitter reported
+	final static Histogram rtcpRtt = new Histogram("rtcp_rtt", "us");				// round-trip time measured
+
+	private final static Histogram[] histograms = { sendLatency, pacingError, encoderTime, rtcpLoss, rtcpJitter, rtcpRtt };
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the global metrics, followed by the metrics of every session if sessionManager is
+	 * not null, in the Prometheus text format. Session values are read without synchronization.
+	 * --------------------------------------------------------------------------------------------*/
+	static String scrape(SessionManager sessionManager)
+	{
+		StringBuilder out = new StringBuilder(4096);
+		counter(out, "frames_sent_total", framesSent.sum());
+		counter(out, "frames_dropped_total", framesDropped.sum());
+		counter(out, "packets_sent_total", packetsSent.sum());
+		counter(out, "bytes_sent_total", bytesSent.sum());
+		counter(out, "packets_dropped_total", packetsDropped.sum());
+		counter(out, "rtcp_reports_total", rtcpReports.sum());
+		counter(out, "sessions_opened_total", sessionsOpened.sum());
+		for (Histogram histogram : histograms)
+			histogram.appendTo(out);
+
+		if (sessionManager == null)
+			return out.toString();
+
+		out.append("# TYPE sessions_active gauge\nsessions_active ").append(sessionManager.getSessionCount()).append('\n');
+		for (Server session : sessionManager.getSessions())
+		{
+			String id = "{session=\"" + session.rtspId + "\"}";
+			out.append("session_frames_sent_total").append(id).append(' ').append(session.framesSent).append('\n');
+			out.append("session_frames_dropped_total").append(id).append(' ').append(session.getFramesDropped()).append('\n');
+			out.append("session_packets_sent_total").append(id).append(' ').append(session.packetCount & 0xFFFFFFFFL).append('\n');
+			out.append("session_payload_bytes_sent_total").append(id).append(' ').append(session.octetCount & 0xFFFFFFFFL).append('\n');
+			out.append("session_packets_dropped_total").append(id).append(' ').append(session.getPacketsDropped()).append('\n');
+			out.append("session_send_queue_depth").append(id).append(' ').append(session.getSendQueueDepth()).append('\n');
+			out.append("session_send_latency_us").append(id).append(' ').append(session.getSendLatency()).append('\n');
+			out.append("session_target_bitrate").append(id).append(' ').append(session.getTargetBitrate()).append('\n');
+			out.append("session_rtcp_loss").append(id).append(' ').append(session.getFractionLost()).append('\n');
+			out.append("session_rtcp_jitter_ms").append(id).append(' ').append(session.getJitter()).append('\n');
+			out.append("session_rtcp_rtt_ms").append(id).append(' ').append(session.getRtt()).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**----------------------------------------------------------------
+	 * Accounts for a reception report received about any stream.
+	 * ----------------------------------------------------------------*/
+	static void onReceptionReport(ReceptionReport report)
+	{
+		rtcpReports.increment();
+		rtcpLoss.record((long)(report.fractionLost * 1000));
+		if (!report.legacy)
+			rtcpJitter.record(report.jitter * 1000000L / JpegPacketizer.RTP_CLOCK_RATE);
+	}
+
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+	}
+}
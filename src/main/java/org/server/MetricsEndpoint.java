@@ -0,0 +1,74 @@
+package org.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Local HTTP endpoint serving the metrics as text on GET /metrics, for curl or a Prometheus scraper.
+ * Bound to the loopback address only; requests are served one at a time on the endpoint's dispatcher thread.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class MetricsEndpoint
+{
+	private final SessionManager sessionManager;
+	private HttpServer httpServer;
+
+	MetricsEndpoint(SessionManager sessionManager)
+	{
+		this.sessionManager = sessionManager;
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts serving on the given port, 0 for an ephemeral port.
+	 * ----------------------------------------------------------------*/
+	void start(int port) throws IOException
+	{
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				try
+				{
+					if (!"GET".equals(exchange.getRequestMethod()))
+					{
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					byte[] body = Metrics.scrape(sessionManager).getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+				finally
+				{
+					exchange.close();
+				}
+			}
+		});
+		httpServer.start();
+		Log.info("Metrics served on http://" + httpServer.getAddress().getAddress().getHostAddress() + ":" + getPort() + "/metrics");
+	}
+
+	void stop()
+	{
+		if (httpServer != null)
+			httpServer.stop(0);
+		httpServer = null;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bound port, -1 if not started.
+	 * ----------------------------------------------------------------*/
+	int getPort() {
+		return httpServer != null ? httpServer.getAddress().getPort() : -1;
+	}
+}
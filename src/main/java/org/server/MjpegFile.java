@@ -0,0 +1,278 @@
+package org.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Memory-mapped MJPEG video file.
+ *
+ * The file is a sequence of frames, each prefixed with its length as 5 ASCII digits. The whole file is
+ * mapped read-only once and indexed on open, frames are then served as zero-copy slices of the mapping.
+ * The index is persisted next to the file, so later opens do not walk the file at all.
+ * Files are shared process-wide: every session streaming the same file uses the same mapping and index.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class MjpegFile
+{
+	final static int LENGTH_PREFIX_SIZE = 5;
+
+	// persisted index: <video file>.idx
+	final static String INDEX_SUFFIX = ".idx";
+	final static int INDEX_MAGIC = 0x4D4A4958;		// "MJIX"
+	final static int INDEX_VERSION = 1;
+
+	private final static ConcurrentHashMap<String, MjpegFile> openFiles = new ConcurrentHashMap<String, MjpegFile>();
+
+	final String path;				// canonical path of the file
+	final long lastModified;		// modification time of the file when it was mapped
+	private final MappedByteBuffer mapping;
+	private int[] offsets;			// offset of each frame's JPEG data within the mapping
+	private int[] lengths;			// length of each frame's JPEG data
+	private int averageFrameLength = -1;	// computed on first use
+	private int frameCount;
+
+	private MjpegFile(String path, File file) throws IOException
+	{
+		this.path = path;
+		this.lastModified = file.lastModified();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Video file larger than 2 GB: " + path);
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			raf.close();	// the mapping stays valid after the channel is closed
+		}
+
+		// reuse the persisted index if it matches the file, otherwise rebuild and persist it
+		File indexFile = new File(path + INDEX_SUFFIX);
+		if (!loadIndex(indexFile, mapping.limit()))
+		{
+			buildIndex();
+			saveIndex(indexFile);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Builds the frame index by walking the length prefixes.
+	 * ----------------------------------------------------------------*/
+	private void buildIndex()
+	{
+		int capacity = 1024;
+		int[] frameOffsets = new int[capacity];
+		int[] frameLengths = new int[capacity];
+		int count = 0;
+		int pos = 0;
+		int limit = mapping.limit();
+		while (pos + LENGTH_PREFIX_SIZE <= limit)
+		{
+			int length = parseLength(mapping, pos);
+			if (length < 0 || pos + LENGTH_PREFIX_SIZE + length > limit)
+			{
+				Log.warn("Corrupt or truncated frame #" + count + " in " + path + ", indexed " + count + " frames");
+				break;
+			}
+			if (count == capacity)
+			{
+				capacity *= 2;
+				frameOffsets = Arrays.copyOf(frameOffsets, capacity);
+				frameLengths = Arrays.copyOf(frameLengths, capacity);
+			}
+			frameOffsets[count] = pos + LENGTH_PREFIX_SIZE;
+			frameLengths[count] = length;
+			count++;
+			pos += LENGTH_PREFIX_SIZE + length;
+		}
+
+		offsets = Arrays.copyOf(frameOffsets, count);
+		lengths = Arrays.copyOf(frameLengths, count);
+		frameCount = count;
+	}
+
+	/**----------------------------------------------------------------
+	 * Loads the persisted index. Returns false if it is missing, stale or unreadable.
+	 * ----------------------------------------------------------------*/
+	private boolean loadIndex(File indexFile, long fileLength)
+	{
+		if (!indexFile.isFile())
+			return false;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+					|| in.readLong() != fileLength || in.readLong() != lastModified)
+				return false;
+
+			int count = in.readInt();
+			int[] frameOffsets = new int[count];
+			int[] frameLengths = new int[count];
+			for (int i = 0; i < count; i++)
+			{
+				frameOffsets[i] = in.readInt();
+				frameLengths[i] = in.readInt();
+				if (frameOffsets[i] < 0 || frameLengths[i] < 0 || (long) frameOffsets[i] + frameLengths[i] > fileLength)
+					return false;
+			}
+
+			offsets = frameOffsets;
+			lengths = frameLengths;
+			frameCount = count;
+			return true;
+		}
+		catch (IOException ioe)
+		{
+			Log.warn("Ignoring unreadable index " + indexFile + ": " + ioe);
+			return false;
+		}
+		finally
+		{
+			closeQuietly(in);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Persists the index next to the video file. Failing to do so (e.g. in a
+	 * read-only directory) only costs a rebuild on the next start.
+	 * ----------------------------------------------------------------*/
+	private void saveIndex(File indexFile)
+	{
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(INDEX_VERSION);
+			out.writeLong(mapping.limit());
+			out.writeLong(lastModified);
+			out.writeInt(frameCount);
+			for (int i = 0; i < frameCount; i++)
+			{
+				out.writeInt(offsets[i]);
+				out.writeInt(lengths[i]);
+			}
+		}
+		catch (IOException ioe)
+		{
+			Log.warn("Could not persist index " + indexFile + ": " + ioe);
+		}
+		finally
+		{
+			closeQuietly(out);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		try {
+			if (closeable != null)
+				closeable.close();
+		}
+		catch (IOException ignored) {
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the shared, mapped and indexed instance of the file. The file is remapped if it
+	 * changed on disk since it was first opened.
+	 * --------------------------------------------------------------------------------------------*/
+	public static MjpegFile open(String fileName) throws IOException
+	{
+		File file = new File(fileName);
+		if (!file.isFile())
+			throw new FileNotFoundException(fileName);
+		String path = file.getCanonicalPath();
+
+		MjpegFile mjpegFile = openFiles.get(path);
+		if (mjpegFile != null && mjpegFile.lastModified == file.lastModified())
+			return mjpegFile;
+
+		synchronized (openFiles)
+		{
+			mjpegFile = openFiles.get(path);
+			if (mjpegFile == null || mjpegFile.lastModified != file.lastModified())
+			{
+				mjpegFile = new MjpegFile(path, file);
+				openFiles.put(path, mjpegFile);
+				Log.info("Mapped " + path + ": " + mjpegFile.frameCount + " frames");
+			}
+			return mjpegFile;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of frames in the file.
+	 * ----------------------------------------------------------------*/
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the length of the given frame in bytes.
+	 * ----------------------------------------------------------------*/
+	public int getFrameLength(int frame) {
+		return lengths[frame];
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average frame length in bytes.
+	 * ----------------------------------------------------------------*/
+	public int getAverageFrameLength()
+	{
+		if (averageFrameLength < 0)
+		{
+			long total = 0;
+			for (int i = 0; i < frameCount; i++)
+				total += lengths[i];
+			averageFrameLength = frameCount == 0 ? 0 : (int)(total / frameCount);
+		}
+		return averageFrameLength;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns a read-only, zero-copy view of the given frame (0-based).
+	 * The view starts at position 0 and its limit is the frame length.
+	 * ----------------------------------------------------------------*/
+	public ByteBuffer getFrame(int frame)
+	{
+		ByteBuffer view = mapping.duplicate();
+		view.position(offsets[frame]);
+		view.limit(offsets[frame] + lengths[frame]);
+		return view.slice();
+	}
+
+	/**----------------------------------------------------------------
+	 * Parses the 5-digit ASCII length prefix at the given position, -1 if invalid.
+	 * ----------------------------------------------------------------*/
+	private static int parseLength(ByteBuffer buffer, int pos)
+	{
+		int length = 0;
+		for (int i = 0; i < LENGTH_PREFIX_SIZE; i++)
+		{
+			int digit = buffer.get(pos + i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			length = length * 10 + digit;
+		}
+		return length;
+	}
+}
@@ -0,0 +1,454 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * One-to-many distribution of a video source to an IP multicast group.
+ *
+ * The group packetizes and paces every frame once and sends it to the group address, so server CPU and egress
+ * do not depend on the number of viewers. Viewers are sessions set up with "Transport: RTP/AVP;multicast"; the
+ * group plays while at least one of them is PLAYING and loops the video like a live source, on a fixed media
+ * clock. Sender Reports go to the group's RTCP port, where the viewers send their reports as well; the group
+ * joins it and keeps the latest report of every viewer, which are aggregated per group.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class MulticastGroup implements PacketPacer.Stream, RtcpReceiver.Listener
+{
+	static String MULTICAST_ADDRESS = "239.255.42.1";	// address of the first group, each source gets the next one
+	static int MULTICAST_PORT = 22000;					// RTP port of the groups, RTCP on the next port
+	static int MULTICAST_TTL = 1;						// keeps the streams on the local network
+	static String MULTICAST_INTERFACE = null;			// network interface name, null for the first multicast interface
+	static long RECEIVER_TIMEOUT = 10000;				// time after which a silent viewer no longer counts (ms)
+
+	final String source;			// video file of the group
+	final int index;				// offset of the group's address from MULTICAST_ADDRESS
+	final InetAddress address;
+	final int port;
+	final int ssrc;
+
+	private final PacketPacer pacer;
+	private final PacketSender sender;
+	private final RtcpReceiver rtcpReceiver;
+	private final VideoStream videoStream;
+	private final JpegPacketizer packetizer;
+	private final DatagramChannel rtpChannel;
+	private final DatagramChannel rtcpChannel;		// joined to the group, receives the viewers' reports
+	private final InetSocketAddress rtcpAddress;
+	private final SendQueue sendQueue;
+	private final ByteBuffer reportBuffer;
+
+	private final Set<Server> members = Collections.newSetFromMap(new ConcurrentHashMap<Server, Boolean>());	// sessions set up
+	private final Set<Server> viewers = Collections.newSetFromMap(new ConcurrentHashMap<Server, Boolean>());	// sessions PLAYING
+	private final ConcurrentHashMap<Integer, ReceptionReport> reports = new ConcurrentHashMap<Integer, ReceptionReport>();
+
+	// pacing state, used on the pacer thread
+	private PacketPacer.Handle pacerHandle;
+	private volatile boolean starting;	// set by play(), the next onPace() resets the clock
+	private long frameDeadline;
+	private long mediaFrame;			// frames sent or dropped since the group was created, the media clock
+	private JpegFrame currentFrame;
+	private int fragmentOffset;
+	private int frameTimeStamp;
+	private int packetsSent;
+	private int packetsPerTick;
+	private long tickInterval;
+	private volatile int sequenceNumber;
+	private int packetCount;
+	private int octetCount;
+	private long nextSenderReport;
+
+	/**----------------------------------------------------------------
+	 * Opens the group of the index-th source.
+	 * ----------------------------------------------------------------*/
+	public MulticastGroup(String source, int index, SessionManager sessionManager) throws Exception
+	{
+		this.source = source;
+		this.index = index;
+		this.pacer = sessionManager.getPacer();
+		this.sender = sessionManager.getSender();
+		this.rtcpReceiver = sessionManager.getRtcpReceiver();
+		this.address = groupAddress(index);
+		this.port = MULTICAST_PORT;
+
+		Random random = new Random();
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = random.nextInt(0x10000);
+
+		videoStream = new VideoStream(source);
+		packetizer = new JpegPacketizer(Server.RTP_MTU);
+		reportBuffer = ByteBuffer.allocateDirect(RtcpPacket.HEADER_SIZE + RtcpPacket.SENDER_INFO_SIZE);
+
+		NetworkInterface networkInterface = multicastInterface();
+		rtpChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+		rtpChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+		rtpChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+		rtpChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		rtpChannel.connect(new InetSocketAddress(address, port));
+		rtpChannel.configureBlocking(false);
+		sendQueue = new SendQueue(rtpChannel, Server.SEND_QUEUE_SIZE, JpegPacketizer.MAX_HEADER_LENGTH, Server.SEND_DROP_POLICY);
+
+		rtcpAddress = new InetSocketAddress(address, port + 1);
+		rtcpChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+		rtcpChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		rtcpChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+		rtcpChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		rtcpChannel.bind(new InetSocketAddress(port + 1));
+		rtcpChannel.join(address, networkInterface);
+		rtcpReceiver.register(ssrc, this);
+		rtcpReceiver.addChannel(rtcpChannel);
+
+		Log.info("Multicast group " + address.getHostAddress() + ":" + port + " opened for " + source);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns MULTICAST_ADDRESS + index, carrying into the upper bytes.
+	 * Throws if the address is past the end of the multicast range.
+	 * ----------------------------------------------------------------*/
+	static InetAddress groupAddress(int index) throws IOException
+	{
+		long base = ByteBuffer.wrap(InetAddress.getByName(MULTICAST_ADDRESS).getAddress()).getInt() & 0xFFFFFFFFL;
+		long value = base + index;
+		InetAddress address = null;
+		if (value <= 0xFFFFFFFFL)
+			address = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt((int) value).array());
+		if (address == null || !address.isMulticastAddress())
+			throw new IOException("No multicast address left for group " + index + " from " + MULTICAST_ADDRESS);
+		return address;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the configured interface, or the first interface up and
+	 * supporting multicast, preferring non-loopback ones.
+	 * ----------------------------------------------------------------*/
+	private static NetworkInterface multicastInterface() throws SocketException
+	{
+		if (MULTICAST_INTERFACE != null)
+		{
+			NetworkInterface configured = NetworkInterface.getByName(MULTICAST_INTERFACE);
+			if (configured == null)
+				throw new SocketException("No network interface " + MULTICAST_INTERFACE);
+			return configured;
+		}
+
+		NetworkInterface loopback = null;
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while (interfaces.hasMoreElements())
+		{
+			NetworkInterface candidate = interfaces.nextElement();
+			if (!candidate.isUp() || !candidate.supportsMulticast())
+				continue;
+			if (!candidate.isLoopback())
+				return candidate;
+			loopback = candidate;
+		}
+		if (loopback == null)
+			throw new SocketException("No multicast capable network interface");
+		return loopback;
+	}
+
+	//------------------------------------
+	// membership, invoked on the sessions' event loop threads
+	//------------------------------------
+
+	void join(Server session) {
+		members.add(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts sending when the first viewer plays.
+	 * ----------------------------------------------------------------*/
+	synchronized void play(Server session)
+	{
+		if (viewers.add(session) && viewers.size() == 1)
+		{
+			// the pacing state is only written on the shard thread, where a just-cancelled handle may still run
+			starting = true;
+			pacerHandle = pacer.schedule(this, System.nanoTime());
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops sending when the last viewer pauses.
+	 * ----------------------------------------------------------------*/
+	synchronized void pause(Server session)
+	{
+		if (viewers.remove(session) && viewers.isEmpty())
+			pacerHandle.cancel();
+	}
+
+	boolean isPlaying(Server session) {
+		return viewers.contains(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Removes the session, returns true if it was the last member.
+	 * ----------------------------------------------------------------*/
+	synchronized boolean leave(Server session)
+	{
+		pause(session);
+		members.remove(session);
+		return members.isEmpty();
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops sending and releases the group's sockets.
+	 * ----------------------------------------------------------------*/
+	synchronized void close()
+	{
+		if (pacerHandle != null)
+			pacerHandle.cancel();
+		rtcpReceiver.unregister(ssrc, this);
+		try
+		{
+			rtpChannel.close();
+			rtcpChannel.close();
+		}
+		catch (IOException ioe)
+		{
+			Log.error("Exception caught: " + ioe);
+		}
+		Log.info("Multicast group " + address.getHostAddress() + ":" + port + " closed");
+	}
+
+	//------------------------------------
+	// sending, invoked on the pacer thread
+	//------------------------------------
+
+	/**--------------------------------------------------------------------------------------------
+	 * Pacer callback, see Server.onPace(). The group never slows its clock down: frames that are
+	 * due already are dropped.
+	 * --------------------------------------------------------------------------------------------*/
+	@Override
+	public long onPace(long now)
+	{
+		long period = Server.FRAME_PERIOD * 1000000L;
+		if (starting)
+		{
+			starting = false;
+			frameDeadline = now;
+			nextSenderReport = now;
+		}
+		try
+		{
+			if (currentFrame == null)
+			{
+				while (now - frameDeadline > period)
+				{
+					skipFrame();
+					frameDeadline += period;
+				}
+
+				loadNextFrame();
+				if (currentFrame == null)
+					return frameDeadline += period;
+				if (now - nextSenderReport >= 0)
+					sendSenderReport(now);
+			}
+
+			for (int i = 0; i < packetsPerTick && currentFrame != null; i++)
+				sendPacket();
+			sender.schedule(sendQueue);
+
+			if (currentFrame == null)
+				return frameDeadline += period;
+			return frameDeadline + (packetsSent / packetsPerTick) * tickInterval;
+		}
+		catch (Exception ex)
+		{
+			Log.error("Exception caught: " + ex);
+			stop();
+			return PacketPacer.STOP;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops the group after a failure: all viewers are paused, the
+	 * next PLAY of a member starts the group again.
+	 * ----------------------------------------------------------------*/
+	synchronized void stop()
+	{
+		if (pacerHandle != null)
+			pacerHandle.cancel();
+		pacerHandle = null;
+		viewers.clear();
+		currentFrame = null;
+		Log.warn("Multicast group " + address.getHostAddress() + ":" + port + " stopped, viewers paused");
+	}
+
+	private void skipFrame()
+	{
+		if (!videoStream.hasNextFrame())
+			videoStream.seek(0);
+		videoStream.skipFrame();
+		mediaFrame++;
+	}
+
+	/**----------------------------------------------------------------
+	 * Loads the next frame, from the start at the end of the video.
+	 * Leaves currentFrame null if the frame can not be sent.
+	 * ----------------------------------------------------------------*/
+	private void loadNextFrame()
+	{
+		if (!videoStream.hasNextFrame())
+			videoStream.seek(0);
+		mediaFrame++;
+
+		JpegFrame jpegFrame = videoStream.getNextJpegFrame(0);
+		if (jpegFrame == null)
+			return;
+		int framePackets = packetizer.packetCount(jpegFrame);
+		if (framePackets == 0)
+			return;
+
+		currentFrame = jpegFrame;
+		fragmentOffset = 0;
+		packetsSent = 0;
+		frameTimeStamp = JpegPacketizer.timestamp(mediaFrame * Server.FRAME_PERIOD);
+
+		long window = (long)(Server.FRAME_PERIOD * 1000000L * Server.PACING_SPREAD);
+		int ticks = (int) Math.max(1, Math.min(framePackets, window / Server.MIN_PACKET_INTERVAL));
+		packetsPerTick = Math.max(1, (framePackets + ticks - 1) / ticks);
+		tickInterval = window / ticks;
+	}
+
+	/**----------------------------------------------------------------
+	 * Queues the next fragment of the current frame, see Server.sendPacket().
+	 * ----------------------------------------------------------------*/
+	private void sendPacket()
+	{
+		JpegFrame jpegFrame = currentFrame;
+		int fragmentLength = packetizer.fragmentLength(jpegFrame, fragmentOffset);
+		boolean last = fragmentOffset + fragmentLength == jpegFrame.scanLength;
+
+		SendQueue.Packet packet = sendQueue.claim(last);
+		if (packet != null)
+		{
+			RtpPacket.writeHeader(packet.header, last, Server.MJPEG_TYPE, sequenceNumber, frameTimeStamp, ssrc);
+			packetizer.writeHeaders(jpegFrame, fragmentOffset, packet.header);
+			packet.header.flip();
+			packet.data = jpegFrame.data;
+			packet.offset = jpegFrame.scanOffset + fragmentOffset;
+			packet.length = fragmentLength;
+			sendQueue.commit(packet);
+
+			packetCount++;
+			octetCount += packet.header.limit() - RtpPacket.HEADER_SIZE + fragmentLength;
+		}
+
+		sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+		fragmentOffset += fragmentLength;
+		packetsSent++;
+		if (last)
+			currentFrame = null;
+	}
+
+	private void sendSenderReport(long now) throws IOException
+	{
+		int rtpTime = frameTimeStamp + (int)((now - frameDeadline) * (JpegPacketizer.RTP_CLOCK_RATE / 1000) / 1000000L);
+
+		reportBuffer.clear();
+		RtcpPacket.writeSenderReport(reportBuffer, ssrc, RtcpPacket.ntpTimestamp(now), rtpTime, packetCount, octetCount);
+		reportBuffer.flip();
+		rtcpChannel.send(reportBuffer, rtcpAddress);
+
+		nextSenderReport = now + Server.SR_PERIOD * 1000000L;
+	}
+
+	//------------------------------------
+	// viewers' reports
+	//------------------------------------
+
+	/**----------------------------------------------------------------
+	 * Keeps the latest report of every viewer, on the RTCP receiver thread.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void onReceptionReport(ReceptionReport report)
+	{
+		reports.put(report.reporterSsrc, report);
+		Metrics.onReceptionReport(report);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the reports received within RECEIVER_TIMEOUT, dropping older ones.
+	 * ----------------------------------------------------------------*/
+	private ReceptionReport[] recentReports()
+	{
+		long oldest = System.nanoTime() - RECEIVER_TIMEOUT * 1000000L;
+		for (ReceptionReport report : reports.values())
+		{
+			if (report.arrivalTime - oldest < 0)
+				reports.remove(report.reporterSsrc, report);
+		}
+		return reports.values().toArray(new ReceptionReport[0]);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of viewers that reported recently.
+	 * ----------------------------------------------------------------*/
+	public int getReceiverCount() {
+		return recentReports().length;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the highest fraction lost reported by a viewer recently.
+	 * ----------------------------------------------------------------*/
+	public float getWorstLoss()
+	{
+		float worst = 0;
+		for (ReceptionReport report : recentReports())
+			worst = Math.max(worst, report.fractionLost);
+		return worst;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average fraction lost reported by the viewers recently.
+	 * ----------------------------------------------------------------*/
+	public float getAverageLoss()
+	{
+		ReceptionReport[] recent = recentReports();
+		float sum = 0;
+		for (ReceptionReport report : recent)
+			sum += report.fractionLost;
+		return recent.length == 0 ? 0 : sum / recent.length;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average jitter reported by the viewers recently (ms).
+	 * ----------------------------------------------------------------*/
+	public double getAverageJitter()
+	{
+		ReceptionReport[] recent = recentReports();
+		double sum = 0;
+		for (ReceptionReport report : recent)
+			sum += report.jitter * 1000.0 / JpegPacketizer.RTP_CLOCK_RATE;
+		return recent.length == 0 ? 0 : sum / recent.length;
+	}
+
+	public int getViewerCount() {
+		return viewers.size();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the sequence number and RTP timestamp viewers joining now
+	 * start with, for the RTP-Info header.
+	 * ----------------------------------------------------------------*/
+	int getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	long getTimestamp() {
+		return JpegPacketizer.timestamp((mediaFrame + 1) * Server.FRAME_PERIOD) & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,209 @@
+package org.server;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * High-resolution scheduler driving the packet sending of all streams.
+ *
+ * Streams are distributed over a fixed number of shard threads. Each shard keeps its streams
+ * in a deadline-ordered queue and parks until the earliest deadline, using the monotonic System.nanoTime()
+ * clock. Streams compute their next deadline from their own ideal schedule rather than from the time they
+ * were actually invoked, so a late wake-up delays one send but never shifts the stream's clock.
+ *
+ * A stream waiting for data rather than for a time (a live viewer between frames) returns WAIT and leaves the
+ * queue until its producer calls Handle.wake(), so it costs nothing while idle.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class PacketPacer
+{
+	static int PACER_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/** Deadline returned by a stream that does not want to be invoked again. */
+	public final static long STOP = Long.MIN_VALUE;
+
+	/** Deadline returned by a stream that wants to be invoked once woken, see Handle.wake(). */
+	public final static long WAIT = Long.MIN_VALUE + 1;
+
+	// handle states
+	private final static int QUEUED = 0;		// in its shard's queue
+	private final static int RUNNING = 1;		// being invoked
+	private final static int WOKEN = 2;			// being invoked, woken meanwhile
+	private final static int WAITING = 3;		// out of the queue until woken
+
+	/**--------------------------------------------------------------------------------------------
+	 * A paced stream. onPace() is invoked on a shard thread at (or shortly after) the deadline and
+	 * returns the next deadline in System.nanoTime() units, or STOP.
+	 * --------------------------------------------------------------------------------------------*/
+	public interface Stream
+	{
+		long onPace(long now);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Scheduling handle of a stream, used to cancel or wake it.
+	 * --------------------------------------------------------------------------------------------*/
+	public static class Handle
+	{
+		final Stream stream;
+		private final Shard shard;
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+		long deadline;
+		volatile boolean cancelled;
+
+		Handle(Stream stream, Shard shard, long deadline)
+		{
+			this.stream = stream;
+			this.shard = shard;
+			this.deadline = deadline;
+		}
+
+		/**----------------------------------------------------------------
+		 * Has a stream that returned WAIT invoked right away; one being
+		 * invoked is invoked again if it returns WAIT. Safe to call from
+		 * any thread, does nothing for a queued stream.
+		 * ----------------------------------------------------------------*/
+		public void wake()
+		{
+			for (;;)
+			{
+				int current = state.get();
+				if (current == WAITING && state.compareAndSet(WAITING, QUEUED))
+				{
+					deadline = System.nanoTime();
+					shard.add(this);
+					return;
+				}
+				if (current == RUNNING && state.compareAndSet(RUNNING, WOKEN))
+					return;
+				if (current == QUEUED || current == WOKEN)
+					return;
+			}
+		}
+
+		/**----------------------------------------------------------------
+		 * Stops invoking the stream. An invocation in progress completes.
+		 * ----------------------------------------------------------------*/
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final Shard[] shards;
+
+	public PacketPacer(int threads)
+	{
+		shards = new Shard[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			shards[i] = new Shard();
+			Thread thread = new Thread(shards[i], "pacer-" + i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			shards[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Schedules the stream to be invoked at the given deadline.
+	 * A stream always lands on the same shard, so a stream cancelled and scheduled again
+	 * is never invoked by two threads at once.
+	 * ----------------------------------------------------------------*/
+	public Handle schedule(Stream stream, long deadline)
+	{
+		Shard shard = shards[(System.identityHashCode(stream) & Integer.MAX_VALUE) % shards.length];
+		Handle handle = new Handle(stream, shard, deadline);
+		shard.add(handle);
+		return handle;
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops all shard threads.
+	 * ----------------------------------------------------------------*/
+	public void shutdown()
+	{
+		for (Shard shard : shards)
+		{
+			shard.running = false;
+			LockSupport.unpark(shard.thread);
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * A pacer thread with its deadline-ordered stream queue.
+	 * --------------------------------------------------------------------------------------------*/
+	private static class Shard implements Runnable
+	{
+		private final PriorityQueue<Handle> queue = new PriorityQueue<Handle>(64, new Comparator<Handle>() {
+			@Override
+			public int compare(Handle a, Handle b) {
+				return Long.signum(a.deadline - b.deadline);	// overflow-safe for nanoTime values
+			}
+		});
+		Thread thread;
+		volatile boolean running = true;
+
+		void add(Handle handle)
+		{
+			synchronized (queue) {
+				queue.add(handle);
+			}
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run()
+		{
+			while (running)
+			{
+				Handle handle;
+				long now = System.nanoTime();
+				synchronized (queue)
+				{
+					handle = queue.peek();
+					if (handle != null && (handle.cancelled || handle.deadline - now <= 0))
+						queue.poll();
+				}
+
+				if (handle == null) {
+					LockSupport.park(this);
+					continue;
+				}
+				if (handle.cancelled)
+					continue;
+				if (handle.deadline - now > 0) {
+					LockSupport.parkNanos(this, handle.deadline - now);
+					continue;
+				}
+
+				Metrics.pacingError.record((now - handle.deadline) / 1000);
+				handle.state.set(RUNNING);
+				long next;
+				try {
+					next = handle.stream.onPace(now);
+				}
+				catch (RuntimeException rex) {
+					// a failing stream must not stop the shard
+					Log.error("Exception caught: " + rex);
+					next = STOP;
+				}
+
+				if (next == STOP || handle.cancelled)
+					continue;
+				if (next == WAIT)
+				{
+					if (handle.state.compareAndSet(RUNNING, WAITING))
+						continue;
+					next = System.nanoTime();	// woken while running
+				}
+				handle.state.set(QUEUED);
+				handle.deadline = next;
+				synchronized (queue) {
+					queue.add(handle);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * I/O workers draining the sessions' SendQueues onto their non-blocking RTP channels.
+ *
+ * A queue is pinned to one worker. The pacer schedules it after queuing packets; the worker sends until the
+ * queue is empty or the socket's send buffer is full, in which case it waits for the channel to become
+ * writable on its selector. A full socket buffer therefore only holds back the packets of its own session.
+ * Packets are claimed from the queue several at a time and handed to the worker's DatagramSender, which
+ * still sends them with one system call each.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class PacketSender
+{
+	static int SENDER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	private final Worker[] workers;
+
+	public PacketSender(int threads)
+	{
+		workers = new Worker[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			try {
+				workers[i] = new Worker();
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException("Can not open selector", ioe);
+			}
+			Thread thread = new Thread(workers[i], "sender-" + i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Has the queue drained unless it is already scheduled.
+	 * ----------------------------------------------------------------*/
+	public void schedule(SendQueue queue)
+	{
+		if (queue.scheduled.compareAndSet(false, true))
+			workers[(System.identityHashCode(queue) & Integer.MAX_VALUE) % workers.length].add(queue);
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops the worker threads, queued packets are discarded.
+	 * ----------------------------------------------------------------*/
+	public void shutdown()
+	{
+		for (Worker worker : workers)
+			worker.stop();
+	}
+
+	private static class Worker implements Runnable
+	{
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SendQueue> ready = new ConcurrentLinkedQueue<SendQueue>();
+		private final AtomicBoolean wakenUp = new AtomicBoolean();
+		private final DatagramSender datagramSender = DatagramSender.create();
+		private volatile boolean running = true;
+
+		Worker() throws IOException {
+			selector = Selector.open();
+		}
+
+		void add(SendQueue queue)
+		{
+			ready.add(queue);
+			if (wakenUp.compareAndSet(false, true))
+				selector.wakeup();
+		}
+
+		void stop()
+		{
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (running)
+				{
+					wakenUp.set(false);
+					if (ready.isEmpty())
+						selector.select();
+					else
+						selector.selectNow();
+
+					// channels that became writable again
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext())
+					{
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (key.isValid())
+						{
+							key.interestOps(0);
+							drain((SendQueue) key.attachment());
+						}
+					}
+
+					SendQueue queue;
+					while ((queue = ready.poll()) != null)
+						drain(queue);
+				}
+			}
+			catch (IOException ioe)
+			{
+				Log.error("Exception caught: " + ioe);
+			}
+			finally
+			{
+				try {
+					selector.close();
+				}
+				catch (IOException ioe) {
+					Log.error("Exception caught: " + ioe);
+				}
+			}
+		}
+
+		private void drain(SendQueue queue)
+		{
+			try
+			{
+				if (!queue.drain(datagramSender))
+				{
+					// wait until the socket accepts packets again, the queue stays scheduled
+					SelectionKey key = queue.channel.keyFor(selector);
+					if (key == null)
+						queue.channel.register(selector, SelectionKey.OP_WRITE, queue);
+					else
+						key.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+
+				// packets queued after the last check and before the flag is cleared must not be stranded
+				queue.scheduled.set(false);
+				if (!queue.isEmpty() && queue.scheduled.compareAndSet(false, true))
+					ready.add(queue);
+			}
+			catch (ClosedChannelException cce)
+			{
+				// session closed, the queue stays scheduled and is never served again
+			}
+			catch (IOException ioe)
+			{
+				// drop the packet that failed and carry on, the queue stays scheduled
+				if (queue.dropSending())
+					Log.warn("Send failed, dropping packets until a send succeeds: " + ioe);
+				ready.add(queue);
+			}
+		}
+	}
+}
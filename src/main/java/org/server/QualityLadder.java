@@ -0,0 +1,263 @@
+package org.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Pre-encoded quality variants of a video file, one per congestion level.
+ *
+ * Level 0 is the original file, levels 1 to 4 are re-encoded with JPEG quality 1.0 - 0.2 * level and
+ * stored next to it as "<video>.q<level>" in the same MJPEG format. Frame n of every variant is frame n of
+ * the original, so all variants share the frame numbering and a session switches quality by switching
+ * files between two frames, without any encoding on the send path.
+ *
+ * Missing or outdated variants are built by a low-priority background thread, or offline with
+ * "java org.server.QualityLadder <video>...". Until a variant is ready, getVariant() returns null.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class QualityLadder
+{
+	final static int LEVELS = 5;						// congestion levels 0 to 4
+	final static String VARIANT_SUFFIX = ".q";
+	final static int MAX_FRAME_LENGTH = 99999;			// largest length the 5-digit prefix can hold
+	static boolean BUILD_IN_BACKGROUND = true;
+
+	private final static ConcurrentHashMap<String, QualityLadder> ladders = new ConcurrentHashMap<String, QualityLadder>();
+	private final static ExecutorService transcoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "ladder-transcoder");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	final MjpegFile original;
+	private final MjpegFile[] variants = new MjpegFile[LEVELS];	// guarded by this, null until ready
+	private boolean building;									// guarded by this
+
+	private QualityLadder(MjpegFile original)
+	{
+		this.original = original;
+		variants[0] = original;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the shared ladder of the video file, opening the variants that are up to date and
+	 * scheduling a background build of the others.
+	 * --------------------------------------------------------------------------------------------*/
+	public static QualityLadder open(String fileName) throws IOException
+	{
+		MjpegFile original = MjpegFile.open(fileName);
+		QualityLadder ladder = ladders.get(original.path);
+		if (ladder == null || ladder.original != original)
+		{
+			synchronized (ladders)
+			{
+				ladder = ladders.get(original.path);
+				if (ladder == null || ladder.original != original)
+				{
+					ladder = new QualityLadder(original);
+					ladder.openVariants();
+					ladders.put(original.path, ladder);
+				}
+			}
+		}
+		if (BUILD_IN_BACKGROUND)
+			ladder.scheduleBuild();
+		return ladder;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the variant of the given level, or null if it is not built yet.
+	 * ----------------------------------------------------------------*/
+	public synchronized MjpegFile getVariant(int level) {
+		return variants[level];
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true once every level has a variant.
+	 * ----------------------------------------------------------------*/
+	public synchronized boolean isComplete()
+	{
+		for (MjpegFile variant : variants)
+		{
+			if (variant == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average frame length of the given level in bytes.
+	 * Until its variant is built, frames are assumed to shrink with the quality.
+	 * ----------------------------------------------------------------*/
+	public int getAverageFrameLength(int level)
+	{
+		MjpegFile variant = getVariant(level);
+		if (variant != null)
+			return variant.getAverageFrameLength();
+		return (int)(original.getAverageFrameLength() * qualityOf(level));
+	}
+
+	static float qualityOf(int level) {
+		return 1.0f - (level * 0.2f);
+	}
+
+	/**----------------------------------------------------------------
+	 * Opens the variants on disk that are newer than the original and match its frame count.
+	 * ----------------------------------------------------------------*/
+	private void openVariants()
+	{
+		for (int level = 1; level < LEVELS; level++)
+		{
+			File file = variantFile(level);
+			if (!file.isFile() || file.lastModified() < original.lastModified)
+				continue;
+			try
+			{
+				MjpegFile variant = MjpegFile.open(file.getPath());
+				if (variant.getFrameCount() == original.getFrameCount())
+					setVariant(level, variant);
+			}
+			catch (IOException ioe)
+			{
+				Log.warn("Ignoring quality variant " + file + ": " + ioe);
+			}
+		}
+	}
+
+	private synchronized void setVariant(int level, MjpegFile variant) {
+		variants[level] = variant;
+	}
+
+	private File variantFile(int level) {
+		return new File(original.path + VARIANT_SUFFIX + level);
+	}
+
+	/**----------------------------------------------------------------
+	 * Queues a background build of the missing variants, unless one is already queued.
+	 * ----------------------------------------------------------------*/
+	private void scheduleBuild()
+	{
+		synchronized (this)
+		{
+			if (building || isComplete())
+				return;
+			building = true;
+		}
+
+		transcoder.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					build();
+				}
+				finally {
+					synchronized (QualityLadder.this) {
+						building = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Builds every missing variant. Each one is written to a temporary file and renamed once
+	 * complete, so a partially written variant is never opened.
+	 * --------------------------------------------------------------------------------------------*/
+	void build()
+	{
+		ImageEncoder encoder;
+		try {
+			encoder = new ImageEncoder(qualityOf(1));
+		}
+		catch (IllegalStateException ise) {
+			Log.warn("Could not build quality variants of " + original.path + ": " + ise);
+			return;
+		}
+		for (int level = 1; level < LEVELS; level++)
+		{
+			if (getVariant(level) != null)
+				continue;
+
+			File target = variantFile(level);
+			File temp = new File(target.getPath() + ".tmp");
+			long start = System.currentTimeMillis();
+			try
+			{
+				encoder.setCompressionQuality(qualityOf(level));
+				writeVariant(encoder, temp);
+				if (!temp.renameTo(target))
+					throw new IOException("Could not rename " + temp + " to " + target);
+
+				setVariant(level, MjpegFile.open(target.getPath()));
+				Log.info("Built quality variant " + target + " in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			catch (IOException ioe)
+			{
+				Log.warn("Could not build quality variant " + target + ": " + ioe);
+				temp.delete();
+				return;
+			}
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Re-encodes every frame of the original into the given file.
+	 * Frames that can not be re-encoded smaller than the 5-digit length
+	 * limit are copied unchanged, so the frame numbering is preserved.
+	 * ----------------------------------------------------------------*/
+	private void writeVariant(ImageEncoder encoder, File file) throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			int frameCount = original.getFrameCount();
+			for (int i = 0; i < frameCount; i++)
+			{
+				ByteBuffer frame = original.getFrame(i);
+				byte[] image = new byte[frame.remaining()];
+				frame.get(image);
+
+				byte[] encoded = encoder.compress(image);
+				if (encoded == null || encoded.length > MAX_FRAME_LENGTH)
+					encoded = image;
+
+				out.write(String.format("%05d", encoded.length).getBytes(StandardCharsets.US_ASCII));
+				out.write(encoded);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Builds the quality variants of the given video files offline.
+	 * ----------------------------------------------------------------*/
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.out.println("usage: java org.server.QualityLadder <video file>...");
+			return;
+		}
+
+		BUILD_IN_BACKGROUND = false;
+		for (String fileName : args)
+			open(fileName).build();
+	}
+}
@@ -0,0 +1,98 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Rate controller combining a delay-based and a loss-based estimate, after Google Congestion Control,
+ * capped by the TCP-friendly rate of TFRC (RFC 5348) once losses are reported.
+ *
+ * Delay: the RTT trend (an exponentially smoothed RTT gradient) and the queuing delay above the lowest RTT
+ * detect a queue building up before packets are dropped. On overuse the rate is cut multiplicatively,
+ * while the path is underused it is held, otherwise it grows by INCREASE_RATE per second. Rising jitter
+ * counts as delay, as a filling queue makes arrivals irregular.
+ * Loss: above HIGH_LOSS the rate is cut in proportion to the loss, below LOW_LOSS it grows slowly.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RateControl implements CongestionControl
+{
+	static int MIN_BITRATE = 64000;				// bits/s
+	static int MAX_BITRATE = 50000000;			// bits/s
+	static double OVERUSE_GRADIENT = 2.0;		// smoothed RTT growth per report signalling overuse (ms)
+	static double MAX_QUEUING_DELAY = 100;		// queuing delay signalling overuse (ms)
+	static double DECREASE_FACTOR = 0.85;		// delay-based cut on overuse
+	static double INCREASE_RATE = 0.08;			// delay-based growth per second
+	static double GRADIENT_GAIN = 0.3;			// weight of a new sample in the smoothed gradient
+	static double HIGH_LOSS = 0.10;
+	static double LOW_LOSS = 0.02;
+	static int PACKET_SIZE = 1400 * 8;			// bits, TFRC segment size
+
+	private double delayRate;		// delay-based estimate (bits/s)
+	private double lossRate;		// loss-based estimate (bits/s)
+	private double tfrcRate = Double.MAX_VALUE;
+	private double lastRtt = -1;
+	private double minRtt = -1;
+	private double lastJitter;
+	private double gradient;		// smoothed RTT and jitter growth per report (ms)
+	private long lastFeedback = -1;
+
+	public RateControl(int initialBitrate)
+	{
+		delayRate = initialBitrate;
+		lossRate = initialBitrate;
+	}
+
+	@Override
+	public void onFeedback(long now, float fractionLost, double rtt, double jitter)
+	{
+		double elapsed = lastFeedback < 0 ? 0 : (now - lastFeedback) / 1e9;
+		lastFeedback = now;
+
+		// delay-based estimate
+		if (rtt >= 0)
+		{
+			if (lastRtt >= 0)
+				gradient += GRADIENT_GAIN * ((rtt - lastRtt) + (jitter - lastJitter) - gradient);
+			lastRtt = rtt;
+			lastJitter = jitter;
+			minRtt = minRtt < 0 ? rtt : Math.min(minRtt, rtt);
+
+			if (gradient > OVERUSE_GRADIENT || rtt - minRtt > MAX_QUEUING_DELAY)
+				delayRate *= DECREASE_FACTOR;
+			else if (gradient >= -OVERUSE_GRADIENT)
+				delayRate *= Math.pow(1 + INCREASE_RATE, elapsed);
+			// underuse: the queue is draining, hold the rate until it is empty
+		}
+		else
+		{
+			delayRate *= Math.pow(1 + INCREASE_RATE, elapsed);
+		}
+
+		// loss-based estimate
+		if (fractionLost > HIGH_LOSS)
+			lossRate *= 1 - 0.5 * fractionLost;
+		else if (fractionLost < LOW_LOSS)
+			lossRate *= 1.05;
+
+		// TCP-friendly ceiling, X = s / (R * sqrt(2p/3) + 4R * 3 * sqrt(3p/8) * p * (1 + 32p^2))
+		if (fractionLost > 0 && rtt > 0)
+		{
+			double p = fractionLost;
+			double r = rtt / 1000;
+			tfrcRate = PACKET_SIZE / (r * Math.sqrt(2 * p / 3) + 4 * r * 3 * Math.sqrt(3 * p / 8) * p * (1 + 32 * p * p));
+		}
+		else
+		{
+			tfrcRate = Double.MAX_VALUE;
+		}
+
+		// neither estimate runs away from the one limiting the rate
+		delayRate = clamp(Math.min(delayRate, 1.5 * lossRate));
+		lossRate = clamp(Math.min(lossRate, 1.5 * delayRate));
+	}
+
+	@Override
+	public int getTargetBitrate() {
+		return (int) clamp(Math.min(tfrcRate, Math.min(delayRate, lossRate)));
+	}
+
+	private static double clamp(double rate) {
+		return Math.max(MIN_BITRATE, Math.min(MAX_BITRATE, rate));
+	}
+}
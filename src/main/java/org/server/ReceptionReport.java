@@ -0,0 +1,27 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * One reception report block (RFC 3550 6.4.1) sent by a client about a stream of this server.
+ * Reports of the bundled client, which uses its own float-based layout, are mapped onto the same fields.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class ReceptionReport
+{
+	int reporterSsrc;		// SSRC of the client sending the report
+	int sourceSsrc;			// SSRC of the reported stream, 0 in legacy reports
+	float fractionLost;		// fraction of packets lost since the previous report (0 to 1)
+	int cumLost;			// packets lost since the beginning of reception
+	int highSeqNumber;		// extended highest sequence number received
+	int jitter;				// interarrival jitter, in RTP timestamp units
+	int lsr;				// middle 32 bits of the NTP timestamp of the last SR received, 0 if none
+	int dlsr;				// delay since that SR, in 1/65536 s
+	long arrivalTime;		// System.nanoTime() at reception
+	boolean legacy;			// true for the float-based layout of the bundled client
+
+	@Override
+	public String toString()
+	{
+		return "[RTCP] SSRC: " + Integer.toHexString(sourceSsrc) + ", Fraction Lost: " + fractionLost
+				+ ", Cumulative Lost: " + cumLost + ", Highest Seq Num: " + highSeqNumber
+				+ ", Jitter: " + jitter + ", LSR: " + Integer.toHexString(lsr) + ", DLSR: " + dlsr;
+	}
+}
@@ -1,8 +1,10 @@
 package org.server;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
-// RR: Receiver Report RTCP Packet
+// RR: Receiver Report RTCP Packet (RFC 3550 6.4.2), SR (6.4.1) carries the same report blocks
+// after 20 bytes of sender info
 
 //		 0				   1				   2				   3
 //		 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
@@ -24,11 +26,25 @@ import java.nio.ByteBuffer;
 //		|				   delay since last SR (DLSR)				  |
 //		+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
 
+// The bundled client sends a single 32 byte RR with the length field set to the packet size
+// and a body of float fraction lost, cumulative lost and highest sequence number. This class
+// builds and reads that layout; parse() reads both it and standard compound packets.
+
 class RtcpPacket
 {
 	final static int HEADER_SIZE = 8;
 	final static int BODY_SIZE = 24;
 
+	final static int SR = 200;					// Sender Report packet type
+	final static int RR = 201;					// Receiver Report packet type
+	final static int SENDER_INFO_SIZE = 20;		// NTP and RTP timestamps, packet and octet counts of an SR
+	final static int REPORT_BLOCK_SIZE = 24;
+
+	// wall clock anchored to the monotonic clock, so NTP timestamps never jump backwards
+	private final static long NTP_EPOCH_OFFSET = 2208988800L;	// seconds from 1900 to 1970
+	private final static long CLOCK_BASE_MILLIS = System.currentTimeMillis();
+	private final static long CLOCK_BASE_NANOS = System.nanoTime();
+
 	public int version;			// Version number 2
 	public int padding;			// Padding of packet
 	public int reportCount; 	// Reception report count = 1 for one receiver
@@ -38,9 +54,9 @@ class RtcpPacket
 	public float fractionLost;	// The fraction of RTP data packets from sender lost since the previous RR packet was sent
 	public int cumLost;			// The total number of RTP data packets from sender that have been lost since the beginning of reception.
 	public int highSeqNumber;	// Highest sequence number received
-	public int jitter;			// Not used
-	public int LSR;				// Not used
-	public int DLSR;			// Not used
+	public int jitter;			// Not used by the bundled client, see ReceptionReport
+	public int LSR;				// Not used by the bundled client, see ReceptionReport
+	public int DLSR;			// Not used by the bundled client, see ReceptionReport
 
 	public byte[] header;	// Bitstream of header
 	public byte[] body;		// Bitstream of the body
@@ -127,4 +143,132 @@ class RtcpPacket
 		return "[RTCP] Version: " + version + ", Fraction Lost: " + fractionLost
 			   + ", Cumulative Lost: " + cumLost + ", Highest Seq Num: " + highSeqNumber;
 	}
-}
\ No newline at end of file
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns true if the datagram has the layout of the bundled client: a lone RR whose length
+	 * field holds the packet size in bytes, which can not be a standard length in 32-bit words minus one.
+	 * --------------------------------------------------------------------------------------------*/
+	static boolean isLegacy(ByteBuffer packet)
+	{
+		int p = packet.position();
+		return packet.remaining() == HEADER_SIZE + BODY_SIZE
+				&& (packet.get(p + 1) & 0xFF) == RR
+				&& (packet.getShort(p + 2) & 0xFFFF) == HEADER_SIZE + BODY_SIZE;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Parses an RTCP datagram (a compound packet, or the bundled client's layout) and appends its
+	 * reception report blocks to the list. Packets other than SR and RR are skipped.
+	 * Returns the number of reports appended, or -1 if the datagram is malformed.
+	 * --------------------------------------------------------------------------------------------*/
+	static int parse(ByteBuffer packet, List<ReceptionReport> reports, long arrivalTime)
+	{
+		if (isLegacy(packet))
+		{
+			int p = packet.position();
+			ReceptionReport report = new ReceptionReport();
+			report.reporterSsrc = packet.getInt(p + 4);
+			report.fractionLost = packet.getFloat(p + HEADER_SIZE);
+			report.cumLost = packet.getInt(p + HEADER_SIZE + 4);
+			report.highSeqNumber = packet.getInt(p + HEADER_SIZE + 8);
+			report.arrivalTime = arrivalTime;
+			report.legacy = true;
+			reports.add(report);
+			return 1;
+		}
+
+		int count = 0;
+		int p = packet.position();
+		while (p + 4 <= packet.limit())
+		{
+			int first = packet.get(p) & 0xFF;
+			int type = packet.get(p + 1) & 0xFF;
+			int end = p + ((packet.getShort(p + 2) & 0xFFFF) + 1) * 4;
+			if (first >> 6 != 2 || end > packet.limit())
+				return -1;
+
+			if (type == SR || type == RR)
+			{
+				int blocks = first & 0x1F;
+				int block = p + HEADER_SIZE + (type == SR ? SENDER_INFO_SIZE : 0);
+				if (block + blocks * REPORT_BLOCK_SIZE > end)
+					return -1;
+
+				int reporter = packet.getInt(p + 4);
+				for (int i = 0; i < blocks; i++, block += REPORT_BLOCK_SIZE)
+				{
+					ReceptionReport report = new ReceptionReport();
+					report.reporterSsrc = reporter;
+					report.sourceSsrc = packet.getInt(block);
+					int lost = packet.getInt(block + 4);
+					report.fractionLost = (lost >>> 24) / 256f;
+					report.cumLost = (lost << 8) >> 8;	// 24-bit signed
+					report.highSeqNumber = packet.getInt(block + 8);
+					report.jitter = packet.getInt(block + 12);
+					report.lsr = packet.getInt(block + 16);
+					report.dlsr = packet.getInt(block + 20);
+					report.arrivalTime = arrivalTime;
+					reports.add(report);
+					count++;
+				}
+			}
+			p = end;
+		}
+		return count;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Converts a System.nanoTime() instant into a 64-bit NTP timestamp (seconds since 1900 in the
+	 * upper 32 bits, fraction of a second in the lower 32 bits).
+	 * --------------------------------------------------------------------------------------------*/
+	static long ntpTimestamp(long nanoTime)
+	{
+		long nanos = CLOCK_BASE_MILLIS * 1000000L + (nanoTime - CLOCK_BASE_NANOS);
+		long seconds = nanos / 1000000000L + NTP_EPOCH_OFFSET;
+		long fraction = ((nanos % 1000000000L) << 32) / 1000000000L;
+		return (seconds << 32) | fraction;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the middle 32 bits of an NTP timestamp, as echoed in LSR.
+	 * ----------------------------------------------------------------*/
+	static int ntpMiddle(long ntpTimestamp) {
+		return (int)(ntpTimestamp >>> 16);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Writes a Sender Report without report blocks (the server receives no streams): the NTP time
+	 * and the RTP timestamp of the same instant, and the packets and payload octets sent so far.
+	 * --------------------------------------------------------------------------------------------*/
+	static void writeSenderReport(ByteBuffer packet, int ssrc, long ntpTimestamp, int rtpTime, int packetCount, int octetCount)
+	{
+		packet.put((byte)(2 << 6));
+		packet.put((byte) SR);
+		packet.putShort((short)((HEADER_SIZE + SENDER_INFO_SIZE) / 4 - 1));
+		packet.putInt(ssrc);
+		packet.putLong(ntpTimestamp);
+		packet.putInt(rtpTime);
+		packet.putInt(packetCount);
+		packet.putInt(octetCount);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Writes a Receiver Report with a single report block about the given source, as a standard
+	 * client sends it. The fraction lost is clamped to 0-1, the cumulative count to 24 bits.
+	 * --------------------------------------------------------------------------------------------*/
+	static void writeReceiverReport(ByteBuffer packet, int ssrc, int sourceSsrc, float fractionLost, int cumLost,
+			int highSeqNumber, int jitter, int lsr, int dlsr)
+	{
+		packet.put((byte)((2 << 6) | 1));
+		packet.put((byte) RR);
+		packet.putShort((short)((HEADER_SIZE + REPORT_BLOCK_SIZE) / 4 - 1));
+		packet.putInt(ssrc);
+		packet.putInt(sourceSsrc);
+		int fraction = Math.max(0, Math.min(255, (int)(fractionLost * 256)));
+		packet.putInt((fraction << 24) | (Math.max(-0x800000, Math.min(0x7FFFFF, cumLost)) & 0xFFFFFF));
+		packet.putInt(highSeqNumber);
+		packet.putInt(jitter);
+		packet.putInt(lsr);
+		packet.putInt(dlsr);
+	}
+}
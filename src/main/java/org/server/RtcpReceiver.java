@@ -0,0 +1,268 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Receives the RTCP reports of all sessions on a single non-blocking channel.
+ *
+ * Reports are routed to their session by the SSRC of the reported stream. Reports without one (the bundled
+ * client's layout) are routed by source address: the client's RTCP port (RTP port + 1), or else the
+ * client's IP address as long as it identifies a single session. An address matched that way is remembered.
+ * The channel is bound on the first session set up, to RTCP_RCV_PORT or an ephemeral port if it is taken.
+ * Sessions send their Sender Reports from the same channel, so the clients' reports come back to it.
+ * Multicast groups receive the reports of their viewers on channels of their own, added to the same selector.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtcpReceiver implements Runnable
+{
+	static int MAX_PACKET_SIZE = 1500;
+
+	/**--------------------------------------------------------------------------------------------
+	 * Receiver of the reports about a stream, invoked on the receiver thread.
+	 * --------------------------------------------------------------------------------------------*/
+	public interface Listener
+	{
+		void onReceptionReport(ReceptionReport report);
+	}
+
+	private final int port;
+	private final ConcurrentHashMap<Integer, Listener> bySsrc = new ConcurrentHashMap<Integer, Listener>();
+	private final ConcurrentHashMap<SocketAddress, Server> byAddress = new ConcurrentHashMap<SocketAddress, Server>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+	private final List<ReceptionReport> reports = new ArrayList<ReceptionReport>();
+	private final ConcurrentLinkedQueue<DatagramChannel> pendingChannels = new ConcurrentLinkedQueue<DatagramChannel>();
+	private Selector selector;
+	private volatile DatagramChannel channel;
+	private volatile boolean running;
+
+	public RtcpReceiver(int port)
+	{
+		this.port = port;
+	}
+
+	/**----------------------------------------------------------------
+	 * Routes the reports about the session's stream to the session,
+	 * binding the channel and starting the receiver thread if needed.
+	 * ----------------------------------------------------------------*/
+	public void register(Server session) throws IOException
+	{
+		open();
+		bySsrc.put(session.ssrc, session);
+		byAddress.put(new InetSocketAddress(session.clientIp, session.rtpDestPort + 1), session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops routing reports to the session.
+	 * ----------------------------------------------------------------*/
+	public void unregister(Server session)
+	{
+		bySsrc.remove(session.ssrc, session);
+		while (byAddress.values().remove(session));
+	}
+
+	/**----------------------------------------------------------------
+	 * Routes the reports about the stream with the given SSRC
+	 * to the listener.
+	 * ----------------------------------------------------------------*/
+	public void register(int ssrc, Listener listener) throws IOException
+	{
+		open();
+		bySsrc.put(ssrc, listener);
+	}
+
+	public void unregister(int ssrc, Listener listener) {
+		bySsrc.remove(ssrc, listener);
+	}
+
+	/**----------------------------------------------------------------
+	 * Receives the reports arriving on another bound channel, until
+	 * the channel is closed.
+	 * ----------------------------------------------------------------*/
+	public void addChannel(DatagramChannel channel) throws IOException
+	{
+		open();
+		channel.configureBlocking(false);
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the local RTCP port, advertised as server_port.
+	 * ----------------------------------------------------------------*/
+	public synchronized int getLocalPort() {
+		return channel == null ? -1 : channel.socket().getLocalPort();
+	}
+
+	/**----------------------------------------------------------------
+	 * Sends an RTCP packet to a client. Safe to call from any thread,
+	 * a datagram that can not be sent right away is dropped.
+	 * ----------------------------------------------------------------*/
+	public void send(ByteBuffer packet, SocketAddress target) throws IOException
+	{
+		DatagramChannel channel = this.channel;
+		if (channel != null && channel.isOpen())
+			channel.send(packet, target);
+	}
+
+	private synchronized void open() throws IOException
+	{
+		if (running)
+			return;
+
+		channel = DatagramChannel.open();
+		try {
+			channel.bind(new InetSocketAddress(port));
+		}
+		catch (BindException be) {
+			channel.bind(new InetSocketAddress(0));
+		}
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ, channel);
+
+		running = true;
+		Thread thread = new Thread(this, "rtcp-receiver");
+		thread.setDaemon(true);
+		thread.start();
+		Log.info("RTCP receiver listening on port " + getLocalPort());
+	}
+
+	/**----------------------------------------------------------------
+	 * Receive loop, runs until stop() is called.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (running)
+			{
+				selector.select();
+
+				DatagramChannel added;
+				while ((added = pendingChannels.poll()) != null)
+				{
+					if (added.isOpen())
+						added.register(selector, SelectionKey.OP_READ, added);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						receive((DatagramChannel) key.attachment());
+					}
+					catch (ClosedChannelException cce) {
+						// a multicast group closed its channel, the key is cancelled
+					}
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (running)
+				Log.error("Exception caught: " + ioe);
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops receiving. The receive loop then closes the channel.
+	 * ----------------------------------------------------------------*/
+	public synchronized void stop()
+	{
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	private synchronized void close()
+	{
+		running = false;
+		try
+		{
+			if (channel != null)
+				channel.close();
+			if (selector != null)
+				selector.close();
+		}
+		catch (IOException ioe)
+		{
+			Log.error("Exception caught: " + ioe);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Drains every datagram queued on the channel since the last wake-up.
+	 * ----------------------------------------------------------------*/
+	private void receive(DatagramChannel channel) throws IOException
+	{
+		SocketAddress source;
+		while (running && (source = channel.receive(buffer)) != null)
+		{
+			buffer.flip();
+			dispatch(source, System.nanoTime());
+			buffer.clear();
+		}
+	}
+
+	private void dispatch(SocketAddress source, long arrivalTime)
+	{
+		reports.clear();
+		if (RtcpPacket.parse(buffer, reports, arrivalTime) < 0)
+		{
+			Log.warn("[RTCP] Malformed packet from " + source + " dropped");
+			return;
+		}
+
+		for (ReceptionReport report : reports)
+		{
+			Listener listener = route(report, source);
+			if (listener != null)
+				listener.onReceptionReport(report);
+		}
+	}
+
+	private Listener route(ReceptionReport report, SocketAddress source)
+	{
+		if (!report.legacy)
+			return bySsrc.get(report.sourceSsrc);	// null if about a stream of another server
+
+		Server session = byAddress.get(source);
+		if (session != null)
+			return session;
+
+		// fall back to the client's IP address if it has a single session
+		InetAddress ip = ((InetSocketAddress) source).getAddress();
+		for (Server candidate : byAddress.values())
+		{
+			if (candidate.clientIp.equals(ip) && candidate != session)
+			{
+				if (session != null)
+					return null;	// ambiguous
+				session = candidate;
+			}
+		}
+		if (session != null)
+			byAddress.put(source, session);
+		return session;
+	}
+}
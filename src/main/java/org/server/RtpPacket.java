@@ -1,5 +1,6 @@
 package org.server;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class RtpPacket
@@ -61,6 +62,19 @@ public class RtpPacket
 		payload = Arrays.copyOf(data, payloadSize);
 	}
 
+	//------------------------------------------------------------------------------
+	// Writes a fixed RTP header at the buffer's position, without building an
+	// RtpPacket object (no allocation on the send path).
+	//------------------------------------------------------------------------------
+	static void writeHeader(ByteBuffer packet, boolean marker, int pType, int seqNum, int time, int ssrc)
+	{
+		packet.put((byte)(2 << 6));
+		packet.put((byte)((marker ? 0x80 : 0) | (pType & 0x7F)));
+		packet.putShort((short) seqNum);
+		packet.putInt(time);
+		packet.putInt(ssrc);
+	}
+
 	//------------------------------------------------------------------------------
 	// RtpPacket constructor from the packet bistream.
 	//------------------------------------------------------------------------------
@@ -162,8 +176,7 @@ public class RtpPacket
 	//--------------------------
 	public void printheader()
 	{
-		System.out.print("[RTP-Header] ");
-		System.out.println("Version: " + version
+		Log.debug("[RTP-Header] Version: " + version
 						   + ", Padding: " + padding
 						   + ", Extension: " + extension
 						   + ", CC: " + csrcCount
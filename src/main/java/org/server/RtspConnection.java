@@ -0,0 +1,220 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Non-blocking RTSP control connection.
+ * Owned by a single RtspEventLoop thread: reads are parsed incrementally and dispatched to the
+ * session, responses are queued and written as the socket becomes writable.
+ *
+ * A session streaming over the connection (RTP/AVP/TCP) queues its packets, framed for interleaving, in a
+ * SendQueue drained by the same thread with gathering writes. Responses and packets are never mixed: the one
+ * written partially is completed first, and a full socket buffer only holds back this connection.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspConnection implements ControlConnection
+{
+	static int READ_BUFFER_SIZE = 4096;
+
+	final SocketChannel channel;
+	final InetAddress clientIp;
+	private final SelectionKey key;
+	private final RtspParser parser;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	private final SessionManager sessionManager;
+	private final RtspEventLoop eventLoop;
+	private SendQueue interleavedQueue;		// packets of the session streaming over this connection, null if none
+
+	Server session;					// session served over this connection
+	private boolean closeAfterFlush;
+	private volatile boolean closeRequested;	// set by closeLater(), from any thread
+	private boolean closed;
+
+	public RtspConnection(SocketChannel channel, SelectionKey key, SessionManager sessionManager, RtspEventLoop eventLoop)
+	{
+		this.channel = channel;
+		this.key = key;
+		this.sessionManager = sessionManager;
+		this.eventLoop = eventLoop;
+		this.clientIp = channel.socket().getInetAddress();
+		this.parser = new RtspParser(Server.LEGACY_FRAMING);
+	}
+
+	/**----------------------------------------------------------------
+	 * Reads available bytes and handles every complete request.
+	 * ----------------------------------------------------------------*/
+	void onReadable() throws IOException
+	{
+		int n = channel.read(readBuffer);
+		if (n < 0)
+		{
+			Log.info("Session " + session.rtspId + ": client disconnected");
+			close();
+			return;
+		}
+
+		readBuffer.flip();
+		RtspRequest request;
+		while (!closed && !closeAfterFlush && (request = parser.parse(readBuffer)) != null)
+		{
+			if (request.isInterleaved())
+			{
+				session.onInterleavedData(request.channel, request.data);
+				continue;
+			}
+			if (Log.isEnabled(Log.DEBUG))
+				Log.debug("RTSP Server - Received from Client: " + request);
+			session.handleRequest(request);
+			if (request.fatal)
+				closeAfterFlush();
+		}
+		readBuffer.clear();
+	}
+
+	@Override
+	public InetAddress getClientIp() {
+		return clientIp;
+	}
+
+	/**----------------------------------------------------------------
+	 * Queues an RTSP message and writes as much of it as the socket accepts.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void send(String message)
+	{
+		if (closed)
+			return;
+		writeQueue.add(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+		try {
+			flush();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+			close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Streams the packets of the queue over this connection.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void interleave(SendQueue queue) {
+		interleavedQueue = queue;
+	}
+
+	/**----------------------------------------------------------------
+	 * Has the interleaved packets written by the event loop, unless
+	 * they are already scheduled. Safe to call from any thread.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void scheduleWrite()
+	{
+		if (interleavedQueue.scheduled.compareAndSet(false, true))
+			eventLoop.scheduleWrite(this);
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes queued messages and interleaved packets, waits for
+	 * OP_WRITE if the socket buffer is full.
+	 * ----------------------------------------------------------------*/
+	void flush() throws IOException
+	{
+		if (closed)
+			return;
+		if (closeRequested)
+		{
+			close();
+			return;
+		}
+
+		// complete the packets being written before a response, then the responses before more packets
+		SendQueue queue = interleavedQueue;
+		if ((queue != null && queue.isWriting() && !queue.drain(channel)) || !writeResponses()
+				|| (queue != null && !queue.drain(channel)))
+		{
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+
+		// packets queued after the last check and before the flag is cleared must not be stranded
+		if (queue != null)
+		{
+			queue.scheduled.set(false);
+			if (!queue.isEmpty() && queue.scheduled.compareAndSet(false, true))
+				eventLoop.scheduleWrite(this);
+		}
+
+		if (closeAfterFlush)
+			close();
+		else if (key.isValid())
+			key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes queued messages, returns false if the socket buffer is full.
+	 * ----------------------------------------------------------------*/
+	private boolean writeResponses() throws IOException
+	{
+		while (!writeQueue.isEmpty())
+		{
+			ByteBuffer head = writeQueue.peek();
+			channel.write(head);
+			if (head.hasRemaining())
+				return false;
+			writeQueue.poll();
+		}
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes the connection once all queued responses have been written.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void closeAfterFlush()
+	{
+		closeAfterFlush = true;
+		if (writeQueue.isEmpty())
+			close();
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes the connection and its session. Safe to call more than once.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+		if (session != null)
+			sessionManager.closeSession(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Has the event loop close the connection on its next iteration.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void closeLater()
+	{
+		closeRequested = true;
+		eventLoop.scheduleWrite(this);
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+}
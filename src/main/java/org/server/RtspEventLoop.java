@@ -0,0 +1,168 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Selector thread serving a share of the RTSP control connections.
+ * Accepted channels are handed over by the RtspServer and registered on the next loop iteration.
+ * The loop also writes the packets of the sessions streaming over their RTSP connection, scheduled by the pacer.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspEventLoop implements Runnable
+{
+	private final Selector selector;
+	private final SessionManager sessionManager;
+	private final ConcurrentLinkedQueue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<RtspConnection> pendingWrites = new ConcurrentLinkedQueue<RtspConnection>();
+	private volatile boolean running = true;
+
+	public RtspEventLoop(SessionManager sessionManager) throws IOException
+	{
+		this.selector = Selector.open();
+		this.sessionManager = sessionManager;
+	}
+
+	/**----------------------------------------------------------------
+	 * Hands an accepted channel over to this loop (thread-safe).
+	 * ----------------------------------------------------------------*/
+	public void register(SocketChannel channel)
+	{
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**----------------------------------------------------------------
+	 * Has the connection's interleaved packets written on the next loop
+	 * iteration (thread-safe).
+	 * ----------------------------------------------------------------*/
+	void scheduleWrite(RtspConnection connection)
+	{
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				selector.select();
+				registerPending();
+				writePending();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+			}
+			catch (IOException ioe)
+			{
+				Log.error("Exception caught: " + ioe);
+			}
+		}
+		closeAll();
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops the loop and closes its connections.
+	 * ----------------------------------------------------------------*/
+	public void stop()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	private void handle(SelectionKey key)
+	{
+		RtspConnection connection = (RtspConnection) key.attachment();
+		try
+		{
+			if (key.isReadable())
+				connection.onReadable();
+			if (key.isValid() && key.isWritable())
+				connection.flush();
+		}
+		catch (IOException | CancelledKeyException ex)
+		{
+			connection.close();
+		}
+		catch (RuntimeException rex)
+		{
+			// a misbehaving session must not take the loop down
+			Log.error("Exception caught: " + rex);
+			connection.close();
+		}
+	}
+
+	private void writePending()
+	{
+		RtspConnection connection;
+		while ((connection = pendingWrites.poll()) != null)
+		{
+			try {
+				connection.flush();
+			}
+			catch (IOException | CancelledKeyException ex) {
+				connection.close();
+			}
+		}
+	}
+
+	private void registerPending()
+	{
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null)
+		{
+			try
+			{
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				RtspConnection connection = new RtspConnection(channel, key, sessionManager, this);
+				key.attach(connection);
+
+				connection.session = sessionManager.createSession(connection);
+				if (connection.session == null)
+				{
+					Log.warn("Session limit reached, rejecting " + connection.clientIp);
+					connection.close();
+					continue;
+				}
+				Log.info("New session " + connection.session.rtspId + " from " + connection.clientIp);
+			}
+			catch (IOException ioe)
+			{
+				Log.error("Exception caught: " + ioe);
+				try {
+					channel.close();
+				}
+				catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private void closeAll()
+	{
+		for (SelectionKey key : selector.keys())
+		{
+			if (key.attachment() instanceof RtspConnection)
+				((RtspConnection) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.StringTokenizer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Incremental RTSP request parser.
+ * Consumes whatever bytes are available, keeps partial lines between calls and returns one complete
+ * request at a time, so both partial reads and pipelined requests are handled.
+ *
+ * A request ends with an empty line. With legacy framing enabled, a request also ends after its third
+ * line, which is how the bundled client frames its requests (it never sends the empty line).
+ *
+ * A malformed request is answered once: the rest of it, up to its empty line (or its third line with legacy
+ * framing), is discarded before the next request is parsed.
+ *
+ * Between requests, a '$' starts a block of interleaved binary data: a channel byte, a 16-bit length and
+ * the data, returned as a pseudo-request.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspParser
+{
+	static int MAX_LINE_LENGTH = 4096;
+	static int MAX_HEADERS = 32;
+
+	private final boolean legacyFraming;
+	private final StringBuilder line = new StringBuilder(128);
+	private RtspRequest current;		// request being parsed, null between requests
+	private boolean discarding;			// skipping the rest of a malformed request
+	private int discardLines;			// lines left in a malformed legacy request
+	private int bodyRemaining;			// entity body bytes still to be skipped
+	private int binaryHeader;			// bytes of the interleaved header still expected, 0 outside of one
+	private int binaryChannel;
+	private byte[] binaryData;			// interleaved data being read, null outside of a block
+	private int binaryFill;
+
+	public RtspParser(boolean legacyFraming)
+	{
+		this.legacyFraming = legacyFraming;
+	}
+
+	/**----------------------------------------------------------------
+	 * Parses the available bytes of the buffer.
+	 * Returns the next complete request, or null if more bytes are needed.
+	 * Malformed input yields a malformed request and resets the parser.
+	 * ----------------------------------------------------------------*/
+	public RtspRequest parse(ByteBuffer in)
+	{
+		while (in.hasRemaining())
+		{
+			// skip the entity body of the previous request (e.g. SET_PARAMETER)
+			if (bodyRemaining > 0)
+			{
+				int skip = Math.min(bodyRemaining, in.remaining());
+				in.position(in.position() + skip);
+				bodyRemaining -= skip;
+				if (bodyRemaining == 0)
+					return complete();
+				continue;
+			}
+
+			if (binaryHeader > 0 || binaryData != null)
+			{
+				RtspRequest block = parseBinary(in);
+				if (block != null)
+					return block;
+				continue;
+			}
+
+			byte b = in.get();
+			if (b == '$' && current == null && line.length() == 0)
+			{
+				binaryHeader = 3;
+				binaryChannel = 0;
+			}
+			else if (b == '\n')
+			{
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+
+				RtspRequest request = onLine(line.toString());
+				line.setLength(0);
+				if (request != null)
+					return request;
+			}
+			else if (line.length() >= MAX_LINE_LENGTH)
+			{
+				reset();
+				return RtspRequest.malformed("line exceeds " + MAX_LINE_LENGTH + " bytes", true);
+			}
+			else
+			{
+				line.append((char)(b & 0xFF));
+			}
+		}
+		return null;
+	}
+
+	/**----------------------------------------------------------------
+	 * Reads the header and data of an interleaved block.
+	 * Returns the block once complete, null if more bytes are needed.
+	 * ----------------------------------------------------------------*/
+	private RtspRequest parseBinary(ByteBuffer in)
+	{
+		while (binaryHeader > 0 && in.hasRemaining())
+		{
+			// channel, then the length in network order, accumulated in binaryChannel
+			binaryChannel = (binaryChannel << 8) | (in.get() & 0xFF);
+			if (--binaryHeader == 0)
+			{
+				binaryData = new byte[binaryChannel & 0xFFFF];
+				binaryChannel >>>= 16;
+				binaryFill = 0;
+			}
+		}
+		if (binaryData == null)
+			return null;
+
+		int count = Math.min(binaryData.length - binaryFill, in.remaining());
+		in.get(binaryData, binaryFill, count);
+		binaryFill += count;
+		if (binaryFill < binaryData.length)
+			return null;
+
+		RtspRequest block = RtspRequest.interleaved(binaryChannel, binaryData);
+		binaryData = null;
+		return block;
+	}
+
+	/**----------------------------------------------------------------
+	 * Discards any partially parsed request.
+	 * ----------------------------------------------------------------*/
+	public void reset()
+	{
+		line.setLength(0);
+		current = null;
+		discarding = false;
+		bodyRemaining = 0;
+		binaryHeader = 0;
+		binaryData = null;
+	}
+
+	/**----------------------------------------------------------------
+	 * Discards the request being parsed and the rest of its lines,
+	 * linesLeft being the lines left with legacy framing.
+	 * ----------------------------------------------------------------*/
+	private void discard(int linesLeft)
+	{
+		reset();
+		discarding = !legacyFraming || linesLeft > 0;
+		discardLines = linesLeft;
+	}
+
+	private RtspRequest onLine(String text)
+	{
+		if (discarding)
+		{
+			if (text.isEmpty() || (legacyFraming && --discardLines == 0))
+				discarding = false;
+			return null;
+		}
+
+		if (current == null)
+		{
+			// empty lines between requests are ignored
+			if (text.isEmpty())
+				return null;
+
+			StringTokenizer tokens = new StringTokenizer(text);
+			if (tokens.countTokens() < 2)
+			{
+				discard(2);
+				return RtspRequest.malformed("bad request line: " + text, false);
+			}
+			String method = tokens.nextToken();
+			String uri = tokens.nextToken();
+			String version = tokens.hasMoreTokens() ? tokens.nextToken() : "RTSP/1.0";
+			current = new RtspRequest(method, uri, version);
+			return null;
+		}
+
+		if (text.isEmpty())
+		{
+			int contentLength = RtspRequest.parseInt(String.valueOf(current.getHeader("Content-Length")), 0);
+			if (contentLength > 0)
+			{
+				bodyRemaining = contentLength;
+				return null;
+			}
+			return complete();
+		}
+
+		int colon = text.indexOf(':');
+		if (colon <= 0)
+		{
+			discard(1 - current.getHeaderCount());
+			return RtspRequest.malformed("bad header line: " + text, false);
+		}
+		current.addHeader(text.substring(0, colon), text.substring(colon + 1));
+
+		if (current.getHeaderCount() > MAX_HEADERS)
+		{
+			reset();
+			return RtspRequest.malformed("too many headers", true);
+		}
+		if (legacyFraming && current.getHeaderCount() == 2)
+			return complete();
+		return null;
+	}
+
+	private RtspRequest complete()
+	{
+		RtspRequest request = current;
+		current = null;
+		return request;
+	}
+}
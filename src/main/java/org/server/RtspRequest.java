@@ -0,0 +1,244 @@
+package org.server;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * A single parsed RTSP request: request line, headers and CSeq.
+ * A request with type -1 is malformed, its error field describes why.
+ * Binary data interleaved on the connection ("$" framing, RFC 2326 10.12) is returned as a pseudo-request
+ * with its channel and data set.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspRequest
+{
+	final int type;				// one of the Server request types, -1 if unknown or malformed
+	final String method;
+	final String uri;
+	final String version;
+	int cseq = -1;				// CSeq header value, -1 if missing
+	String error;				// reason of a malformed request, null otherwise
+	boolean fatal;				// the connection can not be resynchronized after this request
+	int channel = -1;			// channel of interleaved binary data, -1 for a request
+	byte[] data;				// interleaved binary data
+
+	private final Map<String, String> headers = new HashMap<String, String>();
+
+	public RtspRequest(String method, String uri, String version)
+	{
+		this.method = method;
+		this.uri = uri;
+		this.version = version;
+		this.type = typeOf(method);
+	}
+
+	/**----------------------------------------------------------------
+	 * Creates a malformed request placeholder.
+	 * ----------------------------------------------------------------*/
+	static RtspRequest malformed(String error, boolean fatal)
+	{
+		RtspRequest request = new RtspRequest(null, null, null);
+		request.error = error;
+		request.fatal = fatal;
+		return request;
+	}
+
+	/**----------------------------------------------------------------
+	 * Creates the pseudo-request of interleaved binary data.
+	 * ----------------------------------------------------------------*/
+	static RtspRequest interleaved(int channel, byte[] data)
+	{
+		RtspRequest request = new RtspRequest(null, null, null);
+		request.channel = channel;
+		request.data = data;
+		return request;
+	}
+
+	boolean isInterleaved() {
+		return channel >= 0;
+	}
+
+	/**----------------------------------------------------------------
+	 * Maps the request method onto the Server request types.
+	 * ----------------------------------------------------------------*/
+	static int typeOf(String method)
+	{
+		if (method == null)
+			return -1;
+		else if (method.equals("SETUP"))
+			return Server.SETUP;
+		else if (method.equals("PLAY"))
+			return Server.PLAY;
+		else if (method.equals("PAUSE"))
+			return Server.PAUSE;
+		else if (method.equals("TEARDOWN"))
+			return Server.TEARDOWN;
+		else if (method.equals("DESCRIBE"))
+			return Server.DESCRIBE;
+		else if (method.equals("OPTIONS"))
+			return Server.OPTIONS;
+		return -1;
+	}
+
+	boolean isMalformed() {
+		return error != null;
+	}
+
+	void addHeader(String name, String value)
+	{
+		String key = name.trim().toLowerCase(Locale.ROOT);
+		headers.put(key, value.trim());
+		if (key.equals("cseq"))
+			cseq = parseInt(value.trim(), -1);
+	}
+
+	int getHeaderCount() {
+		return headers.size();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the header value (case-insensitive name) or null if absent.
+	 * ----------------------------------------------------------------*/
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the session ID of the Session header, -1 if absent or invalid.
+	 * The optional ";timeout=" parameter is ignored.
+	 * ----------------------------------------------------------------*/
+	public int getSessionId()
+	{
+		String session = getHeader("Session");
+		if (session == null)
+			return -1;
+		int end = session.indexOf(';');
+		return parseInt(end < 0 ? session : session.substring(0, end).trim(), -1);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the first client RTP port of the Transport header, -1 if absent.
+	 * Accepts both "client_port=5000-5001" and the bundled client's "client_port= 5000".
+	 * ----------------------------------------------------------------*/
+	public int getClientPort()
+	{
+		String transport = getHeader("Transport");
+		if (transport == null)
+			return -1;
+		int start = transport.indexOf("client_port=");
+		if (start < 0)
+			return -1;
+		start += "client_port=".length();
+		while (start < transport.length() && transport.charAt(start) == ' ')
+			start++;
+		int end = start;
+		while (end < transport.length() && Character.isDigit(transport.charAt(end)))
+			end++;
+		return parseInt(transport.substring(start, end), -1);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true if the Transport header requests multicast delivery.
+	 * ----------------------------------------------------------------*/
+	public boolean isMulticast()
+	{
+		String transport = getHeader("Transport");
+		if (transport == null)
+			return false;
+		for (String parameter : transport.split(";"))
+		{
+			if (parameter.trim().equalsIgnoreCase("multicast"))
+				return true;
+		}
+		return false;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the RTP channel of the Transport header's "interleaved=" parameter, 0 if the
+	 * header requests RTP over TCP without one, -1 for other transports.
+	 * ----------------------------------------------------------------*/
+	public int getInterleavedChannel()
+	{
+		String transport = getHeader("Transport");
+		if (transport == null)
+			return -1;
+		for (String parameter : transport.split(";"))
+		{
+			parameter = parameter.trim();
+			if (parameter.startsWith("interleaved="))
+			{
+				int dash = parameter.indexOf('-');
+				int channel = parseInt(parameter.substring("interleaved=".length(), dash < 0 ? parameter.length() : dash).trim(), -1);
+				return channel >= 0 && channel < 255 ? channel : -1;
+			}
+		}
+		return transport.toUpperCase(Locale.ROOT).startsWith("RTP/AVP/TCP") ? 0 : -1;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the start (index 0) and end (index 1) of the "Range: npt=" header in seconds.
+	 * A missing end or a start of "now" is -1. Returns null if the header is absent, and
+	 * NaN values if it is malformed or uses another time format.
+	 * ----------------------------------------------------------------*/
+	public double[] getNptRange()
+	{
+		String range = getHeader("Range");
+		if (range == null)
+			return null;
+
+		// drop the optional ";time=" parameter
+		int end = range.indexOf(';');
+		if (end >= 0)
+			range = range.substring(0, end);
+		range = range.trim();
+
+		double[] npt = { Double.NaN, Double.NaN };
+		if (!range.startsWith("npt="))
+			return npt;
+		int dash = range.indexOf('-');
+		if (dash < 0)
+			return npt;
+
+		String start = range.substring(4, dash).trim();
+		String stop = range.substring(dash + 1).trim();
+		npt[0] = start.isEmpty() || start.equals("now") ? -1 : parseNpt(start);
+		npt[1] = stop.isEmpty() ? -1 : parseNpt(stop);
+		return npt;
+	}
+
+	/**----------------------------------------------------------------
+	 * Parses an NPT time, either seconds ("12.5") or "h:mm:ss[.frac]". NaN if malformed.
+	 * ----------------------------------------------------------------*/
+	static double parseNpt(String value)
+	{
+		try
+		{
+			double seconds = 0;
+			for (String part : value.split(":", 3))
+				seconds = seconds * 60 + Double.parseDouble(part);
+			return seconds >= 0 ? seconds : Double.NaN;
+		}
+		catch (NumberFormatException nfe)
+		{
+			return Double.NaN;
+		}
+	}
+
+	static int parseInt(String value, int defaultValue)
+	{
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException nfe) {
+			return defaultValue;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		if (isInterleaved())
+			return "[RTSP] interleaved channel " + channel + ", " + data.length + " bytes";
+		return isMalformed() ? "[RTSP] malformed: " + error : "[RTSP] " + method + " " + uri + " CSeq: " + cseq;
+	}
+}
@@ -0,0 +1,186 @@
+package org.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Non-blocking RTSP acceptor.
+ * Accepts control connections on a selector and distributes them round-robin over a small,
+ * fixed number of RtspEventLoop threads.
+ *
+ * With BLOCKING_SESSIONS, each connection is served instead by a BlockingRtspConnection on a thread of its own,
+ * started by SessionThreads: a virtual thread when running the Java 21 classes of the multi-release jar, where
+ * this is the default, a platform thread otherwise.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspServer implements Runnable
+{
+	static int EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	static boolean BLOCKING_SESSIONS = SessionThreads.isVirtual();	// a thread per connection rather than the event loops
+
+	private final int port;
+	private final SessionManager sessionManager;
+	private final RtspEventLoop[] eventLoops;
+	private final boolean blockingSessions = BLOCKING_SESSIONS;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private int nextLoop;
+	private volatile boolean running;
+
+	public RtspServer(int port, SessionManager sessionManager)
+	{
+		this.port = port;
+		this.sessionManager = sessionManager;
+		this.eventLoops = new RtspEventLoop[EVENT_LOOPS];
+	}
+
+	/**----------------------------------------------------------------
+	 * Binds the RTSP port and starts the event loop threads.
+	 * The accept loop itself runs on the caller's thread (see run()).
+	 * ----------------------------------------------------------------*/
+	public void bind() throws IOException
+	{
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		try {
+			serverChannel.bind(new InetSocketAddress(port));
+		}
+		catch (IOException ioe) {
+			close();
+			throw ioe;
+		}
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		for (int i = 0; !blockingSessions && i < eventLoops.length; i++)
+		{
+			eventLoops[i] = new RtspEventLoop(sessionManager);
+			Thread thread = new Thread(eventLoops[i], "rtsp-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		running = true;
+		Log.info("RTSP server listening on port " + getLocalPort() + (blockingSessions
+				? " (" + (SessionThreads.isVirtual() ? "virtual" : "platform") + " thread per session)"
+				: " (" + eventLoops.length + " event loops)"));
+	}
+
+	/**----------------------------------------------------------------
+	 * Accept loop, runs until stop() is called or the thread is interrupted.
+	 * ----------------------------------------------------------------*/
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (running && !Thread.currentThread().isInterrupted())
+			{
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					keys.next();
+					keys.remove();
+					accept();
+				}
+			}
+		}
+		catch (IOException ioe)
+		{
+			if (running)
+				Log.error("Exception caught: " + ioe);
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops accepting. The accept loop then closes the listening socket,
+	 * the event loops or the blocking connections, and all sessions.
+	 * ----------------------------------------------------------------*/
+	public void stop()
+	{
+		running = false;
+		if (selector != null)
+			selector.wakeup();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bound RTSP port, -1 before bind().
+	 * ----------------------------------------------------------------*/
+	public int getLocalPort() {
+		return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+	}
+
+	private void close()
+	{
+		running = false;
+		for (RtspEventLoop loop : eventLoops)
+		{
+			if (loop != null)
+				loop.stop();
+		}
+		if (blockingSessions)
+		{
+			for (Server session : sessionManager.getSessions())
+				session.rtspConnection.close();
+		}
+		try
+		{
+			if (serverChannel != null)
+				serverChannel.close();
+			if (selector != null)
+				selector.close();
+		}
+		catch (IOException ioe)
+		{
+			Log.error("Exception caught: " + ioe);
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null)
+		{
+			if (blockingSessions)
+			{
+				startSession(channel);
+				continue;
+			}
+			eventLoops[nextLoop].register(channel);
+			nextLoop = (nextLoop + 1) % eventLoops.length;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts the thread serving a blocking connection.
+	 * ----------------------------------------------------------------*/
+	private void startSession(SocketChannel channel) throws IOException
+	{
+		BlockingRtspConnection connection = new BlockingRtspConnection(channel, sessionManager);
+		connection.session = sessionManager.createSession(connection);
+		if (connection.session == null)
+		{
+			Log.warn("Session limit reached, rejecting " + connection.clientIp);
+			channel.close();
+			return;
+		}
+		Log.info("New session " + connection.session.rtspId + " from " + connection.clientIp);
+		try {
+			SessionThreads.start(connection, "rtsp-session-" + connection.session.rtspId);
+		}
+		catch (OutOfMemoryError oom) {
+			// out of platform threads, the server keeps serving the sessions it has
+			Log.error("Can not start the session thread, rejecting " + connection.clientIp + ": " + oom);
+			connection.close();
+		}
+	}
+}
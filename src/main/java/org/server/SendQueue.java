@@ -0,0 +1,392 @@
+package org.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Bounded outbound packet queue of a session, filled by the session's pacer and drained by a PacketSender worker.
+ *
+ * The queue is a lock-free ring of reusable packets (after D. Vyukov's bounded queue): every slot carries a
+ * sequence number telling whether it is free, filled or being sent, so the producer never overwrites a packet
+ * the worker is still writing. A packet keeps its headers in a direct buffer of its own and references its
+ * payload in place, so queuing neither allocates nor copies payload data.
+ *
+ * The worker claims up to BATCH_SIZE packets at a time with a single update of the ring and hands them to a
+ * DatagramSender together, which still sends them with one system call each.
+ * Packets interleaved on a stream channel (RTSP over TCP) are written with gathering writes instead, a packet
+ * written partially is completed on the next call before any other.
+ *
+ * A packet may carry a reference to the shared live frame its payload lives in, released with the packet.
+ *
+ * When the queue is full, the drop policy decides which packet is lost: DROP_OLDEST evicts the oldest queued
+ * packet, DROP_NON_MARKER drops the new packet unless it ends a frame, in which case the oldest is evicted.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SendQueue
+{
+	final static int DROP_OLDEST = 0;
+	final static int DROP_NON_MARKER = 1;
+
+	static double LATENCY_GAIN = 1.0 / 16;	// weight of a new sample in the average send latency
+	static int BATCH_SIZE = 16;				// packets claimed and sent at a time
+
+	final static ByteBuffer NO_PAYLOAD = ByteBuffer.allocateDirect(0);	// data of packets made of headers only
+
+	/**--------------------------------------------------------------------------------------------
+	 * A queued packet: the headers, then length bytes of data starting at offset.
+	 * --------------------------------------------------------------------------------------------*/
+	static final class Packet
+	{
+		final ByteBuffer header;	// flipped by the producer before commit()
+		ByteBuffer data;			// payload source, never modified
+		int offset;
+		int length;
+		boolean marker;				// last packet of a frame
+		long enqueueTime;			// System.nanoTime() at commit()
+		LiveFrame owner;			// shared frame released once the packet is sent or dropped, null if none
+
+		Packet(ByteBuffer header) {
+			this.header = header;
+		}
+	}
+
+	private final Packet[] packets;
+	private final AtomicLongArray sequences;	// pos: free for pos, pos + 1: filled, pos + capacity: free again
+	private final int mask;
+	private final int policy;
+	private final AtomicLong head = new AtomicLong();
+	private volatile long tail;					// written by the producer only
+
+	// sending side, used by one worker at a time
+	final DatagramChannel channel;
+	final AtomicBoolean scheduled = new AtomicBoolean();	// true while queued at or served by a worker
+	private final ByteBuffer[][] batch;		// header and payload view of each claimed packet
+	private final ByteBuffer[] viewSources;	// data each payload view is a view of
+	private final ByteBuffer[] gather;		// header and payload views of the batch in a row, for stream channels
+	private long batchStart;				// position of the first claimed packet
+	private int batchCount;					// packets claimed
+	private int batchSent;					// claimed packets sent and released
+	private boolean sendFailing;			// the last packet sent was dropped on an error
+
+	private final LongAdder drops = new LongAdder();
+	private final LongAdder sent = new LongAdder();
+	private volatile double averageLatency;		// ns
+	private volatile long maxLatency;			// ns
+
+	/**----------------------------------------------------------------
+	 * Constructor.
+	 * capacity: number of packets, rounded up to a power of 2.
+	 * headerCapacity: largest header length in bytes.
+	 * ----------------------------------------------------------------*/
+	public SendQueue(DatagramChannel channel, int capacity, int headerCapacity, int policy)
+	{
+		this(channel, capacity, headerCapacity, policy, BATCH_SIZE);
+	}
+
+	public SendQueue(DatagramChannel channel, int capacity, int headerCapacity, int policy, int batchSize)
+	{
+		int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		this.channel = channel;
+		this.policy = policy;
+		this.mask = size - 1;
+		this.packets = new Packet[size];
+		this.sequences = new AtomicLongArray(size);
+		this.batch = new ByteBuffer[Math.min(batchSize, size)][2];
+		this.viewSources = new ByteBuffer[batch.length];
+		this.gather = new ByteBuffer[batch.length * 2];
+
+		ByteBuffer headers = ByteBuffer.allocateDirect(size * headerCapacity);
+		for (int i = 0; i < size; i++)
+		{
+			headers.limit((i + 1) * headerCapacity);
+			headers.position(i * headerCapacity);
+			packets[i] = new Packet(headers.slice());
+			sequences.set(i, i);
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the next packet to fill, its header cleared, or null if the drop policy drops it.
+	 * Producer side, to be followed by commit().
+	 * --------------------------------------------------------------------------------------------*/
+	Packet claim(boolean marker)
+	{
+		long pos = tail;
+		int index = (int) pos & mask;
+		if (sequences.get(index) != pos)
+		{
+			// full: make room, unless the new packet is the one to drop
+			if (policy == DROP_NON_MARKER && !marker)
+			{
+				drops.increment();
+				Metrics.packetsDropped.increment();
+				return null;
+			}
+			long oldest = poll();
+			if (oldest >= 0)
+			{
+				release(oldest);
+				drops.increment();
+				Metrics.packetsDropped.increment();
+			}
+			if (sequences.get(index) != pos)
+			{
+				// the slot is still being sent
+				drops.increment();
+				Metrics.packetsDropped.increment();
+				return null;
+			}
+		}
+
+		Packet packet = packets[index];
+		packet.header.clear();
+		packet.marker = marker;
+		return packet;
+	}
+
+	/**----------------------------------------------------------------
+	 * Queues the packet returned by claim().
+	 * ----------------------------------------------------------------*/
+	void commit(Packet packet)
+	{
+		long pos = tail;
+		packet.enqueueTime = System.nanoTime();
+		sequences.set((int) pos & mask, pos + 1);
+		tail = pos + 1;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Sends queued packets until the queue is empty (returns true) or the socket's send buffer is
+	 * full (returns false, the packets claimed are sent first on the next call). Worker side.
+	 * --------------------------------------------------------------------------------------------*/
+	boolean drain(DatagramSender sender) throws IOException
+	{
+		for (;;)
+		{
+			if (batchSent == batchCount)
+			{
+				batchSent = 0;
+				batchCount = pollBatch();
+				if (batchCount == 0)
+					return true;
+				prepareBatch();
+			}
+
+			int count = sender.send(channel, batch, batchSent, batchCount - batchSent);
+
+			long now = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				complete(now);
+			sent.add(count);
+			Metrics.packetsSent.add(count);
+
+			if (batchSent < batchCount)
+				return false;
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Writes queued packets to a stream channel until the queue is empty (returns true) or the
+	 * channel does not accept more bytes (returns false). The headers carry the stream framing.
+	 * Writer side, only one thread at a time.
+	 * --------------------------------------------------------------------------------------------*/
+	boolean drain(GatheringByteChannel stream) throws IOException
+	{
+		for (;;)
+		{
+			if (batchSent == batchCount)
+			{
+				batchSent = 0;
+				batchCount = pollBatch();
+				if (batchCount == 0)
+					return true;
+				prepareBatch();
+				for (int i = 0; i < batchCount; i++)
+				{
+					gather[i * 2] = batch[i][0];
+					gather[i * 2 + 1] = batch[i][1];
+				}
+			}
+
+			stream.write(gather, batchSent * 2, (batchCount - batchSent) * 2);
+
+			long now = System.nanoTime();
+			int count = 0;
+			while (batchSent < batchCount && !gather[batchSent * 2 + 1].hasRemaining() && !gather[batchSent * 2].hasRemaining())
+			{
+				complete(now);
+				count++;
+			}
+			sent.add(count);
+			Metrics.packetsSent.add(count);
+
+			if (batchSent < batchCount)
+				return false;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Drops the next claimed packet, which could not be sent. Returns
+	 * true for the first of a run of failures. Worker side.
+	 * ----------------------------------------------------------------*/
+	boolean dropSending()
+	{
+		if (batchSent < batchCount)
+		{
+			release(batchStart + batchSent);
+			batchSent++;
+			drops.increment();
+			Metrics.packetsDropped.increment();
+		}
+		boolean first = !sendFailing;
+		sendFailing = true;
+		return first;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true while packets claimed by the writer are not
+	 * completely written, the stream must not carry anything else.
+	 * ----------------------------------------------------------------*/
+	boolean isWriting() {
+		return batchSent < batchCount;
+	}
+
+	/**----------------------------------------------------------------
+	 * Accounts for and releases the next packet of the batch.
+	 * ----------------------------------------------------------------*/
+	private void complete(long now)
+	{
+		long pos = batchStart + batchSent;
+		Packet packet = packets[(int) pos & mask];
+		long latency = now - packet.enqueueTime;
+		averageLatency += LATENCY_GAIN * (latency - averageLatency);
+		if (latency > maxLatency)
+			maxLatency = latency;
+		Metrics.sendLatency.record(latency / 1000);
+		Metrics.bytesSent.add(packet.header.limit() + packet.length);
+		release(pos);
+		batchSent++;
+		sendFailing = false;
+	}
+
+	/**----------------------------------------------------------------
+	 * Points the batch at the headers and payloads of the packets claimed.
+	 * A payload view is only created when its data changes, once per frame.
+	 * ----------------------------------------------------------------*/
+	private void prepareBatch()
+	{
+		for (int i = 0; i < batchCount; i++)
+		{
+			Packet packet = packets[(int)(batchStart + i) & mask];
+			ByteBuffer[] parts = batch[i];
+			if (packet.data != viewSources[i])
+			{
+				viewSources[i] = packet.data;
+				parts[1] = packet.data.duplicate();
+			}
+			ByteBuffer view = parts[1];
+			view.limit(view.capacity());
+			view.position(packet.offset);
+			view.limit(packet.offset + packet.length);
+			parts[0] = packet.header;
+		}
+	}
+
+	boolean isEmpty() {
+		return getDepth() == 0;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets queued.
+	 * ----------------------------------------------------------------*/
+	public int getDepth() {
+		return (int) Math.max(0, tail - head.get());
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets dropped because the queue was full
+	 * or sending them failed.
+	 * ----------------------------------------------------------------*/
+	public long getDrops() {
+		return drops.sum();
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average time packets spend queued (us).
+	 * ----------------------------------------------------------------*/
+	public double getAverageLatency() {
+		return averageLatency / 1000;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the longest time a packet spent queued (us).
+	 * ----------------------------------------------------------------*/
+	public double getMaxLatency() {
+		return maxLatency / 1000.0;
+	}
+
+	/**----------------------------------------------------------------
+	 * Claims the oldest filled packet, returns its position or -1.
+	 * ----------------------------------------------------------------*/
+	private long poll()
+	{
+		for (;;)
+		{
+			long pos = head.get();
+			long state = sequences.get((int) pos & mask) - (pos + 1);
+			if (state < 0)
+				return -1;		// empty
+			if (state == 0 && head.compareAndSet(pos, pos + 1))
+				return pos;
+			// the producer evicted the packet meanwhile, retry
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Claims up to a batch of the oldest filled packets with a single
+	 * update of the head, returns their number.
+	 * ----------------------------------------------------------------*/
+	private int pollBatch()
+	{
+		for (;;)
+		{
+			long pos = head.get();
+			int count = 0;
+			while (count < batch.length && sequences.get((int)(pos + count) & mask) == pos + count + 1)
+				count++;
+
+			if (count == 0 && sequences.get((int) pos & mask) < pos + 1)
+				return 0;		// empty
+			if (count > 0 && head.compareAndSet(pos, pos + count))
+			{
+				batchStart = pos;
+				return count;
+			}
+			// the producer evicted packets meanwhile, retry
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Frees the slot of a claimed packet.
+	 * ----------------------------------------------------------------*/
+	private void release(long pos)
+	{
+		Packet packet = packets[(int) pos & mask];
+		LiveFrame owner = packet.owner;
+		if (owner != null)
+		{
+			packet.owner = null;
+			owner.release();
+		}
+		sequences.set((int) pos & mask, pos + packets.length);
+	}
+}
@@ -4,23 +4,25 @@
    ---------------------------------------------------------- */
 package org.server;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.StringWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.StringTokenizer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
-import javax.swing.Timer;
-
-public class Server implements ActionListener
+/**----------------------------------------------------------------------------------------------------------------
+ * Streaming state of a single RTSP client session.
+ * One instance is created per accepted RTSP connection, so concurrent clients never share
+ * session IDs, sockets, frame cursors or congestion state.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class Server implements PacketPacer.Stream, RtcpReceiver.Listener
 {
 	/*----------------------------------------------------------------
 	 * Video stream -related variables
@@ -28,24 +30,75 @@ public class Server implements ActionListener
 
 	static int MJPEG_TYPE = 26;		// MJPEG video RTP payload type
 	static int FRAME_PERIOD = 50;	// video frame period in ms
-	static int VIDEO_LENGTH = 500;	// video length in frames
+	static String VIDEO_FILE = "movie.Mjpeg";	// video file served to the clients
 
 	VideoStream videoStream;				// stream object used to access video frames
-	byte[] sendImageBuffer;				// buffer for images to be sent to client
 	int imageCounter = 0;			// currently transmitted image number/counter
+	int endFrame = -1;				// frame after which playback stops (Range end), -1 for the end of the video
+	volatile int pendingSeek = -1;	// frame to continue from at the next frame boundary, -1 if none
 
 	/* A delay required to send images over the wire.
 	 * Ideally equal to the video file frame rate but may be adjusted in case of congestion.*/
-	int sendDelay;
-	Timer sendTimer;					// timer used to send images at video frame rate
+	volatile int sendDelay;
+
+	/* Under congestion, frames are dropped while the media clock keeps running at the video frame
+	 * rate, so playback stays in sync with the wall clock. Disable to slow the clock down instead. */
+	static boolean DROP_FRAMES = true;
+	volatile double sendRatio = 1;	// share of the frames sent when dropping frames
+	double sendCredit;				// frames that may be sent before the next one is dropped
+	int framesDropped;				// frames dropped since SETUP
+	long framesSent;				// frames packetized since SETUP
+
+	/* A live source is read and packetized once for all sessions by its LiveHub, sessions only
+	 * rewrite the RTP header fields of their own. */
+	static String LIVE_SOURCE = null;				// source streamed to every session (see LiveSource.open()), null for on-demand playback
+
+	LiveHub liveHub;			// hub of the live source, null for on-demand playback
+	LiveFrame liveFrame;		// live frame being sent, referenced until its packets are sent
+	long livePosition;			// position of the next live frame in the hub's ring
+	final int timestampOffset;	// random offset of the live RTP timestamps
+
+	/*----------------------------------------------------------------
+	 * Pacing -related variables. The packets of a frame are spread over a share of the frame
+	 * interval instead of being sent in one burst.
+	 * ---------------------------------------------------------------*/
+
+	static double PACING_SPREAD = 0.8;				// share of the frame interval used to send a frame
+	static long MIN_PACKET_INTERVAL = 200000;		// minimum gap between two send bursts (ns)
+	static int MAX_LAG_FRAMES = 5;					// lag after which the frame clock is resynchronized
+
+	final PacketPacer pacer;
+	volatile PacketPacer.Handle pacerHandle;	// scheduling handle while PLAYING
+	volatile boolean starting;			// set by startStreaming(), the next onPace() resets the pacing state
+	long frameDeadline;					// ideal send time of the current frame (ns)
+	JpegFrame currentFrame;				// frame being sent, null between frames
+	int fragmentOffset;					// scan offset of the next fragment of currentFrame
+	int frameTimeStamp;					// RTP timestamp of currentFrame
+	int framePackets;					// packets currentFrame is split into
+	int packetsSent;					// packets of currentFrame sent so far
+	int packetsPerTick;					// packets sent per pacer invocation
+	long tickInterval;					// time between two pacer invocations within a frame (ns)
 
 	/*----------------------------------------------------------------
 	 * Real-Time Transfer Protocol (RTP) -related variables.
 	 * ---------------------------------------------------------------*/
 
-	DatagramSocket rtpSocket;	// a socket to send and receive UDP packets
-	DatagramPacket sendDp; 		// a UDP packet containing the video frames
+	static int RTP_MTU = 1400;	// maximum RTP packet size (header included), keeps packets below the path MTU
+
+	static int SEND_QUEUE_SIZE = 128;						// packets buffered per session
+	static int SEND_DROP_POLICY = SendQueue.DROP_OLDEST;	// packet lost when the send queue is full
+
+	static int INTERLEAVED_HEADER_SIZE = 4;	// "$", channel and length in front of packets sent over the RTSP connection
+
+	DatagramChannel rtpChannel;	// a non-blocking channel connected to the client's RTP port
+	int interleavedChannel = -1;	// RTP channel when streaming over the RTSP connection (RTCP on the next one), -1 over UDP
+	SendQueue sendQueue;		// packets waiting for the sender worker
+	final PacketSender sender;	// I/O workers writing the queued packets
+	JpegPacketizer packetizer;	// splits frames into RFC 2435 fragments
+	final int ssrc;				// synchronization source identifier of this session
+	int sequenceNumber;			// RTP sequence number of the next packet
 	InetAddress clientIp;
+	MulticastGroup multicastGroup;	// group the session receives, null for unicast sessions
 	int rtpDestPort = 0;		//destination port for RTP packets  (provided by the RTSP Client)
 	int rtspDestPort = 13569;
 
@@ -53,8 +106,8 @@ public class Server implements ActionListener
 	 * Real-Time Streaming Protocol (RTSP) -related variables.
 	 * ---------------------------------------------------------------*/
 
-	static int RTSP_ID = 123456; // RTSP session ID
 	static int RTSP_PORT = 13569;
+	final int rtspId;				// RTSP session ID, assigned by the SessionManager
 
 	// RTSP states
 	final static int INIT = 0;
@@ -67,284 +120,926 @@ public class Server implements ActionListener
 	final static int PAUSE = 5;
 	final static int TEARDOWN = 6;
 	final static int DESCRIBE = 7;
+	final static int OPTIONS = 8;
 
-	/* A socket used to send/receive RTSP messages */
-	Socket rtspSocket; //
+	/* The bundled client neither terminates requests nor expects responses to be terminated
+	 * with an empty line. Disable to serve standard RTSP clients. */
+	static boolean LEGACY_FRAMING = true;
 
-	// input/output stream filters
-	static BufferedReader rtspBufferedReader;
-	static BufferedWriter rtspBufferedWriter;
+	/* A non-blocking connection used to send/receive RTSP messages */
+	final ControlConnection rtspConnection;
 
-	static int state;				/* RTSP Server states: INIT, READY, PLAY */
+	volatile int state;				/* RTSP Server states: INIT, READY, PLAY */
 	int rtspSeqNum = 0;				/* RTSP messages sequence number, within a session */
-	static String videoFileName;	// video file name requested from the client
+	String videoFileName;			// video file name requested from the client
 
 	/*----------------------------------------------------------------
 	 * Real-Time Control Protocol (RTCP) -related variables.
 	 ----------------------------------------------------------------*/
 
-	static int RTCP_RCV_PORT = 19001;	// client's RTCP packets receiving port
-	static int RTCP_PERIOD = 400;		// control events check frequency
+	static int RTCP_RCV_PORT = 19001;	// client's RTCP packets receiving port, shared by all sessions
+
+	static int SR_PERIOD = 1000;		// average interval between two Sender Reports (ms), randomized by +-50%
+	static double RTT_GAIN = 0.125;		// weight of a new sample in the smoothed round-trip time
 	final static String CRLF = "\r\n";
 
-	DatagramSocket rtcpSocket;
-	RtcpReceiver rtcpReceiver;
-	int congestionLevel;
+	final SessionManager sessionManager;
+	final RtcpReceiver rtcpReceiver;		// routes the client's reports to this session, sends its SRs
+	InetSocketAddress rtcpAddress;			// client's RTCP port (RTP port + 1)
+	ByteBuffer reportBuffer;				// reusable Sender Report buffer
+	long nextSenderReport;					// time of the next Sender Report (ns)
+	int packetCount;						// RTP packets sent since SETUP
+	int octetCount;							// RTP payload octets sent since SETUP
+	volatile ReceptionReport lastReport;	// latest report about this session's stream, null if none
+	volatile double rtt = -1;				// smoothed round-trip time (ms), -1 until measured
+	volatile double minRtt = -1;			// lowest round-trip time measured (ms), -1 until measured
+	volatile double jitter;					// interarrival jitter reported by the client (ms)
+
+	/*----------------------------------------------------------------
+	 * Congestion control -related variables. The target bitrate of the strategy selects the
+	 * quality level and the frame interval.
+	 * ---------------------------------------------------------------*/
+
+	static String CONGESTION_CONTROL = "rate";	// strategy, "loss" for the loss buckets of the original server
+	static int MAX_SEND_DELAY = 200;			// longest frame interval the bitrate may stretch to (ms)
 
-	//Performance optimization and Congestion control
-	ImageEncoder imageEncoder;
-	CongestionController congestionController;
+	CongestionControl congestionControl;		// driven by the RTCP receiver thread
+	volatile int targetBitrate;					// latest target of congestionControl (bits/s)
+	volatile int congestionLevel;				// quality level of the frames sent, 0 (original) to 4
 
 	/**----------------------------------------------------------------
 	 * Constructor.
+	 * Heavy resources (frame buffer, sockets, encoder) are only allocated once the
+	 * session is set up, so idle connections stay cheap.
 	 * ----------------------------------------------------------------*/
-	public Server()
+	public Server(ControlConnection rtspConnection, int rtspId, SessionManager sessionManager)
 	{
-		// initialize RTP sending Timer
+		this.rtspConnection = rtspConnection;
+		this.rtspId = rtspId;
+		this.sessionManager = sessionManager;
+		this.pacer = sessionManager.getPacer();
+		this.sender = sessionManager.getSender();
+		this.rtcpReceiver = sessionManager.getRtcpReceiver();
+		this.clientIp = rtspConnection.getClientIp();
+		this.state = INIT;
+
+		// random SSRC and initial sequence number (RFC 3550 5.1)
+		Random random = new Random();
+		this.ssrc = random.nextInt();
+		this.sequenceNumber = random.nextInt(0x10000);
+		this.timestampOffset = random.nextInt();
+
+		// frames are sent at the video frame rate unless congestion is detected
 		sendDelay = FRAME_PERIOD;
-		sendTimer = new Timer(sendDelay, this);
-		sendTimer.setInitialDelay(0);
-		sendTimer.setCoalesce(true);
+	}
 
-		// initialize congestion controller
-		congestionController = new CongestionController(600);
+	/**----------------------------------------------------------------
+	 * Allocates per-session streaming resources in response to SETUP.
+	 * ----------------------------------------------------------------*/
+	void openStream(String fileName) throws Exception
+	{
+		if (LIVE_SOURCE != null)
+		{
+			liveHub = sessionManager.subscribeLive(LIVE_SOURCE, this);
+			livePosition = liveHub.getLatest();
+		}
+		else
+			videoStream = new VideoStream(fileName);
+		targetBitrate = levelBitrate(0);
+		congestionControl = CongestionControl.create(CONGESTION_CONTROL, targetBitrate);
+		packetizer = new JpegPacketizer(RTP_MTU);
 
-		// allocate memory for sending image buffer
-		sendImageBuffer = new byte[20000];
+		if (interleavedChannel >= 0)
+		{
+			// RTP and RTCP share the RTSP connection, written by the thread serving it
+			sendQueue = new SendQueue(null, SEND_QUEUE_SIZE, INTERLEAVED_HEADER_SIZE + JpegPacketizer.MAX_HEADER_LENGTH, SEND_DROP_POLICY);
+			rtspConnection.interleave(sendQueue);
+			return;
+		}
 
-		// initialize RTCP packet receiver
-		rtcpReceiver = new RtcpReceiver(RTCP_PERIOD);
+		rtcpReceiver.register(this);
+		rtcpAddress = new InetSocketAddress(clientIp, rtpDestPort + 1);
+		reportBuffer = ByteBuffer.allocateDirect(RtcpPacket.HEADER_SIZE + RtcpPacket.SENDER_INFO_SIZE);
 
-		// Video encoding and quality
-		imageEncoder = new ImageEncoder(0.8f);
+		rtpChannel = DatagramChannel.open();
+		rtpChannel.connect(new InetSocketAddress(clientIp, rtpDestPort));
+		rtpChannel.configureBlocking(false);
+		sendQueue = new SendQueue(rtpChannel, SEND_QUEUE_SIZE, JpegPacketizer.MAX_HEADER_LENGTH, SEND_DROP_POLICY);
 	}
 
-	//------------------------
-	// Handler for timer
-	//------------------------
-	@Override
-	public void actionPerformed(ActionEvent event)
+	/**----------------------------------------------------------------
+	 * Starts sending frames and processing control events.
+	 * ----------------------------------------------------------------*/
+	void startStreaming()
 	{
-		byte[] frame;
+		if (multicastGroup != null)
+		{
+			multicastGroup.play(this);
+			return;
+		}
+		// the pacing state is only written on the shard thread, where a just-cancelled handle may still run
+		starting = true;
+		pacerHandle = pacer.schedule(this, System.nanoTime());
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true while the pacer is sending frames of this session.
+	 * ----------------------------------------------------------------*/
+	boolean isStreaming()
+	{
+		if (multicastGroup != null)
+			return multicastGroup.isPlaying(this);
+		return pacerHandle != null && !pacerHandle.cancelled;
+	}
 
-		//if the current image nb is less than the length of the video
-		if (imageCounter < VIDEO_LENGTH)
+	/**----------------------------------------------------------------
+	 * Stops sending frames and processing control events.
+	 * ----------------------------------------------------------------*/
+	void stopStreaming()
+	{
+		if (multicastGroup != null)
+			multicastGroup.pause(this);
+		if (pacerHandle != null)
+			pacerHandle.cancel();
+	}
+
+	/**----------------------------------------------------------------
+	 * Releases all session resources. Safe to call more than once.
+	 * ----------------------------------------------------------------*/
+	void close()
+	{
+		stopStreaming();
+		state = INIT;
+		try {
+			if (rtpChannel != null)
+				rtpChannel.close();
+		}
+		catch (IOException ioe) {
+			Log.error("Exception caught: " + ioe);
+		}
+		rtcpReceiver.unregister(this);
+		if (liveHub != null)
+			sessionManager.unsubscribeLive(liveHub, this);
+		if (multicastGroup != null)
 		{
-			//update current imagenb
-			imageCounter++;
+			sessionManager.leaveMulticastGroup(multicastGroup, this);
+			multicastGroup = null;
+		}
+	}
 
-			try
+	/**--------------------------------------------------------------------------------------------
+	 * Pacer callback: sends the next burst of packets of the current frame, loading the next frame
+	 * when the previous one is complete. Returns the ideal time of the next burst.
+	 * --------------------------------------------------------------------------------------------*/
+	@Override
+	public long onPace(long now)
+	{
+		if (starting)
+		{
+			starting = false;
+			if (liveHub != null)
+				livePosition = liveHub.getLatest();	// live viewers resume with the latest frame
+			frameDeadline = now;
+			nextSenderReport = now;
+		}
+		try
+		{
+			if (currentFrame == null)
 			{
-				// get next frame to send from the video, as well as its size
-				int imageLength = videoStream.getNextFrame(sendImageBuffer);
-
-				//adjust quality of the image if there is congestion detected
-				if (congestionLevel > 0)
+				if (liveHub != null)
 				{
-					imageEncoder.setCompressionQuality(1.0f - (congestionLevel * 0.2f));
-					frame = imageEncoder.compress(Arrays.copyOfRange(sendImageBuffer, 0, imageLength));
-					imageLength = frame.length;
-					System.arraycopy(frame, 0, sendImageBuffer, 0, imageLength);
+					// live frames are sent as soon as they are published: the hub wakes the session up
+					if (!loadLiveFrame())
+						return livePosition < liveHub.getFramesPublished() ? now : PacketPacer.WAIT;
+				}
+				else
+				{
+					// the pacer fell far behind: with a fixed media clock, frames that are due already are
+					// dropped; otherwise resynchronize instead of bursting the backlog
+					long period = sendDelay * 1000000L;
+					if (DROP_FRAMES)
+					{
+						while (now - frameDeadline > period && skipFrame())
+							frameDeadline += period;
+					}
+					else if (now - frameDeadline > MAX_LAG_FRAMES * period)
+					{
+						Log.warn("[" + rtspId + "] Pacer lagging by " + (now - frameDeadline) / 1000000 + " ms, clock resynchronized");
+						frameDeadline = now;
+					}
+
+					if (!loadNextFrame())
+					{
+						//if we have reached the end of the video file, stop sending
+						stopStreaming();
+						return PacketPacer.STOP;
+					}
+					if (currentFrame == null)
+						return frameDeadline += period;
 				}
+				if (now - nextSenderReport >= 0)
+					sendSenderReport(now);
+			}
+
+			for (int i = 0; i < packetsPerTick && currentFrame != null; i++)
+			{
+				if (liveFrame != null)
+					sendLivePacket();
+				else
+					sendPacket();
+			}
+			scheduleSend();
+
+			if (currentFrame == null)
+				return liveHub != null ? now : (frameDeadline += sendDelay * 1000000L);
+			return frameDeadline + (packetsSent / packetsPerTick) * tickInterval;
+		}
+		catch (Exception ex)
+		{
+			// a failing session must not take the other sessions down
+			Log.error("Exception caught: " + ex);
+			stopStreaming();
+			return PacketPacer.STOP;
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Reads (and re-encodes under congestion) the next frame and plans how its packets are spread
+	 * over the frame interval. Returns false at the end of the video. Leaves currentFrame null if
+	 * the frame can not be sent.
+	 * --------------------------------------------------------------------------------------------*/
+	boolean loadNextFrame() throws Exception
+	{
+		// seeks requested by PLAY are applied between frames, on the pacer thread
+		int seek = pendingSeek;
+		if (seek >= 0)
+		{
+			pendingSeek = -1;
+			videoStream.seek(seek);
+			imageCounter = seek;
+		}
+
+		//stop at the end of the video or of the requested range
+		if (!videoStream.hasNextFrame() || (endFrame >= 0 && imageCounter >= endFrame))
+			return false;
+
+		//update current imagenb
+		imageCounter++;
+
+		// drop the frames above the target rate, the others keep their place on the media clock
+		if (DROP_FRAMES)
+		{
+			sendCredit += sendRatio;
+			if (sendCredit < 1)
+			{
+				videoStream.skipFrame();
+				framesDropped++;
+				Metrics.framesDropped.increment();
+				return true;
+			}
+			sendCredit -= 1;
+		}
 
-				// build an RTPpacket object containing the frame
-				RtpPacket rtpPacket = new RtpPacket(MJPEG_TYPE, imageCounter, imageCounter*FRAME_PERIOD, sendImageBuffer, imageLength);
+		// switching quality is a switch between pre-encoded variants; while the variant of the
+		// level is still being built, frames are re-encoded by the shared transcoding pool
+		int level = congestionLevel;
+
+		// get the next frame, shared with other sessions at the same quality level
+		JpegFrame jpegFrame = videoStream.getNextJpegFrame(level);
+		if (jpegFrame == null)
+		{
+			Log.warn("[" + rtspId + "] Frame #" + imageCounter + " is not RFC 2435 compatible, skipped");
+			return true;
+		}
+		int imageLength = jpegFrame.data.limit();
+		int packets = packetizer.packetCount(jpegFrame);
+		if (packets == 0)
+		{
+			Log.warn("[" + rtspId + "] Frame #" + imageCounter + " has no scan data, skipped");
+			return true;
+		}
 
-				// get to total length of the full rtp packet to send
-				int packetLength = rtpPacket.getlength();
+		currentFrame = jpegFrame;
+		fragmentOffset = 0;
+		packetsSent = 0;
+		// the RTP timestamp is the frame's capture time, dropped frames leave a gap on the media clock
+		frameTimeStamp = JpegPacketizer.timestamp((long) imageCounter * FRAME_PERIOD);
+		framePackets = packets;
+		planPacing();
+		framesSent++;
+		Metrics.framesSent.increment();
 
-				//retrieve the packet bitstream and store it in an array of bytes
-				byte[] packetBits = new byte[packetLength];
-				rtpPacket.getPacket(packetBits);
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug("[" + rtspId + "] Send frame #" + imageCounter + ", Frame size: " + imageLength + ", Packets: " + framePackets);
+		return true;
+	}
 
-				// send the packet as a DatagramPacket over the UDP socket
-				sendDp = new DatagramPacket(packetBits, packetLength, clientIp, rtpDestPort);
-				rtpSocket.send(sendDp);
+	/**--------------------------------------------------------------------------------------------
+	 * Takes the next frame published by the live hub, skipping to the latest one if this session
+	 * fell behind. Returns false if there is no frame to send yet.
+	 * --------------------------------------------------------------------------------------------*/
+	boolean loadLiveFrame()
+	{
+		LiveFrame frame = liveHub.poll(livePosition);
+		if (frame == null)
+			return false;
+		framesDropped += (int)(frame.sequence - livePosition);
+		Metrics.framesDropped.add(frame.sequence - livePosition);
+		livePosition = frame.sequence + 1;
+		imageCounter++;
 
-				System.out.println("Send frame #" + imageCounter + ", Frame size: " + imageLength + " (" + sendImageBuffer.length + ")");
-				// print the header bitstream
-				rtpPacket.printheader();
+		if (DROP_FRAMES)
+		{
+			sendCredit += sendRatio;
+			if (sendCredit < 1)
+			{
+				frame.release();
+				framesDropped++;
+				Metrics.framesDropped.increment();
+				return false;
 			}
-			catch(Exception ex)
+			sendCredit -= 1;
+		}
+
+		liveFrame = frame;
+		currentFrame = frame.frame;
+		fragmentOffset = 0;
+		packetsSent = 0;
+		// the timestamp is the capture time, the frame is due since then
+		frameTimeStamp = timestampOffset + JpegPacketizer.timestamp(frame.mediaTime);
+		frameDeadline = frame.captureTime;
+		framePackets = frame.packetCount;
+		planPacing();
+		framesSent++;
+		Metrics.framesSent.increment();
+
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug("[" + rtspId + "] Send live frame #" + frame.sequence + ", Frame size: " + frame.data.limit() + ", Packets: " + framePackets);
+		return true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Spreads the packets of the current frame evenly over the frame
+	 * interval, but never wakes up more often than MIN_PACKET_INTERVAL.
+	 * ----------------------------------------------------------------*/
+	private void planPacing()
+	{
+		long window = (long)(sendDelay * 1000000L * PACING_SPREAD);
+		int ticks = (int) Math.max(1, Math.min(framePackets, window / MIN_PACKET_INTERVAL));
+		packetsPerTick = Math.max(1, (framePackets + ticks - 1) / ticks);	// onPace() divides by it
+		tickInterval = window / ticks;
+	}
+
+	/**----------------------------------------------------------------
+	 * Drops the next frame. Returns false at the end of the video or
+	 * of the requested range, or if a seek is pending.
+	 * ----------------------------------------------------------------*/
+	boolean skipFrame()
+	{
+		if (pendingSeek >= 0 || !videoStream.hasNextFrame() || (endFrame >= 0 && imageCounter >= endFrame))
+			return false;
+		imageCounter++;
+		videoStream.skipFrame();
+		framesDropped++;
+		Metrics.framesDropped.increment();
+		return true;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Queues the next fragment of the current frame as one RTP packet, the marker bit flags the last one.
+	 * Headers are written into the queued packet's direct header buffer and the scan data is referenced
+	 * in the frame buffer, so no memory is allocated or copied per packet. A packet dropped by the full
+	 * send queue still consumes its sequence number, so the client detects the loss.
+	 * --------------------------------------------------------------------------------------------*/
+	void sendPacket()
+	{
+		JpegFrame jpegFrame = currentFrame;
+		int fragmentLength = packetizer.fragmentLength(jpegFrame, fragmentOffset);
+		boolean last = fragmentOffset + fragmentLength == jpegFrame.scanLength;
+
+		SendQueue.Packet packet = sendQueue.claim(last);
+		if (packet != null)
+		{
+			int framing = framingLength();
+			packet.header.position(framing);
+			RtpPacket.writeHeader(packet.header, last, MJPEG_TYPE, sequenceNumber, frameTimeStamp, ssrc);
+			packetizer.writeHeaders(jpegFrame, fragmentOffset, packet.header);
+			finishHeader(packet.header, interleavedChannel, fragmentLength);
+			packet.data = jpegFrame.data;
+			packet.offset = jpegFrame.scanOffset + fragmentOffset;
+			packet.length = fragmentLength;
+			sendQueue.commit(packet);
+
+			packetCount++;
+			octetCount += packet.header.limit() - framing - RtpPacket.HEADER_SIZE + fragmentLength;
+		}
+
+		sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+		fragmentOffset += fragmentLength;
+		packetsSent++;
+		if (last)
+			currentFrame = null;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Queues the next packet of the current live frame. Only the header is copied, with this
+	 * session's sequence number, timestamp and SSRC; the payload is referenced in the shared frame,
+	 * which every queued packet keeps referenced until it is sent or dropped.
+	 * --------------------------------------------------------------------------------------------*/
+	void sendLivePacket()
+	{
+		LiveFrame frame = liveFrame;
+		int index = packetsSent;
+		boolean last = index == frame.packetCount - 1;
+
+		SendQueue.Packet packet = sendQueue.claim(last);
+		if (packet != null)
+		{
+			int framing = framingLength();
+			packet.header.position(framing);
+			frame.writeHeader(index, packet.header, sequenceNumber, frameTimeStamp, ssrc);
+			finishHeader(packet.header, interleavedChannel, frame.payloadLength[index]);
+			packet.data = frame.data;
+			packet.offset = frame.payloadOffset[index];
+			packet.length = frame.payloadLength[index];
+			frame.retain();		// cannot fail, the session's own reference is held
+			packet.owner = frame;
+			sendQueue.commit(packet);
+
+			packetCount++;
+			octetCount += packet.header.limit() - framing - RtpPacket.HEADER_SIZE + packet.length;
+		}
+
+		sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+		packetsSent++;
+		if (last)
+		{
+			frame.release();
+			liveFrame = null;
+			currentFrame = null;
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the size of the framing in front of the RTP header.
+	 * ----------------------------------------------------------------*/
+	private int framingLength() {
+		return interleavedChannel >= 0 ? INTERLEAVED_HEADER_SIZE : 0;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Flips a packet header written after framingLength() bytes. Over the RTSP connection, the
+	 * interleaved framing is written in front of it: "$", the channel and the length of the packet
+	 * (RFC 2326 10.12).
+	 * --------------------------------------------------------------------------------------------*/
+	private void finishHeader(ByteBuffer header, int channel, int payloadLength)
+	{
+		header.flip();
+		if (interleavedChannel >= 0)
+		{
+			header.put(0, (byte) '$');
+			header.put(1, (byte) channel);
+			header.putShort(2, (short)(header.limit() - INTERLEAVED_HEADER_SIZE + payloadLength));
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Has the packets queued written by the sender workers, or by the
+	 * RTSP connection they are interleaved on.
+	 * ----------------------------------------------------------------*/
+	private void scheduleSend()
+	{
+		if (interleavedChannel >= 0)
+			rtspConnection.scheduleWrite();
+		else
+			sender.schedule(sendQueue);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Sends a Sender Report mapping the current time to the RTP clock, extrapolated from the
+	 * timestamp of the frame being sent, and schedules the next one. Over the RTSP connection,
+	 * the report is queued with the RTP packets.
+	 * --------------------------------------------------------------------------------------------*/
+	void sendSenderReport(long now) throws IOException
+	{
+		int rtpTime = frameTimeStamp + (int)((now - frameDeadline) * (JpegPacketizer.RTP_CLOCK_RATE / 1000) / 1000000L);
+
+		if (interleavedChannel >= 0)
+		{
+			SendQueue.Packet packet = sendQueue.claim(false);
+			if (packet != null)
 			{
-				System.out.println("Exception caught: " + ex);
-				System.exit(0);
+				packet.header.position(INTERLEAVED_HEADER_SIZE);
+				RtcpPacket.writeSenderReport(packet.header, ssrc, RtcpPacket.ntpTimestamp(now), rtpTime, packetCount, octetCount);
+				finishHeader(packet.header, interleavedChannel + 1, 0);
+				packet.data = SendQueue.NO_PAYLOAD;
+				packet.offset = 0;
+				packet.length = 0;
+				sendQueue.commit(packet);
 			}
 		}
 		else
 		{
-			//if we have reached the end of the video file, stop the timer
-			sendTimer.stop();
-			rtcpReceiver.stopRcv();
+			reportBuffer.clear();
+			RtcpPacket.writeSenderReport(reportBuffer, ssrc, RtcpPacket.ntpTimestamp(now), rtpTime, packetCount, octetCount);
+			reportBuffer.flip();
+			rtcpReceiver.send(reportBuffer, rtcpAddress);
 		}
+
+		nextSenderReport = now + (long)(SR_PERIOD * (0.5 + ThreadLocalRandom.current().nextDouble())) * 1000000L;
 	}
 
 	/**--------------------------------------------------------------------------------------------
-	 * Controls RTP sending rate based on traffic statistics.
+	 * Handles binary data the client interleaved on the RTSP connection: its RTCP reports when
+	 * streaming over the connection, anything else is ignored.
+	 * Invoked on the thread reading the connection.
 	 * --------------------------------------------------------------------------------------------*/
-	class CongestionController implements ActionListener
+	void onInterleavedData(int channel, byte[] data)
 	{
-		private Timer ccTimer;
-		int interval;   // interval to check traffic stats
-		int prevLevel;  // previously sampled congestion level
+		if (interleavedChannel < 0 || channel != interleavedChannel + 1 || congestionControl == null)
+			return;
 
-		public CongestionController(int interval)
+		List<ReceptionReport> reports = new ArrayList<ReceptionReport>();
+		if (RtcpPacket.parse(ByteBuffer.wrap(data), reports, System.nanoTime()) < 0)
 		{
-			this.interval = interval;
-			ccTimer = new Timer(interval, this);
-			ccTimer.start();
+			Log.warn("[" + rtspId + "] Malformed interleaved RTCP packet dropped");
+			return;
 		}
+		for (ReceptionReport report : reports)
+		{
+			if (report.legacy || report.sourceSsrc == ssrc)
+				onReceptionReport(report);
+		}
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Handles a report of the client about this session's stream.
+	 * Invoked on the RTCP receiver thread, or on the RTSP connection's thread for interleaved reports.
+	 * --------------------------------------------------------------------------------------------*/
+	@Override
+	public void onReceptionReport(ReceptionReport report)
+	{
+		lastReport = report;
+		Metrics.onReceptionReport(report);
+		if (Log.isEnabled(Log.DEBUG))
+			Log.debug("[" + rtspId + "] " + report);
 
-		@Override
-		public void actionPerformed(ActionEvent e)
+		// RTT = arrival time - LSR - DLSR, in 1/65536 s (RFC 3550 6.4.1)
+		if (report.lsr != 0)
 		{
-			//adjust the send rate
-			if (prevLevel != congestionLevel)
+			int delay = RtcpPacket.ntpMiddle(RtcpPacket.ntpTimestamp(report.arrivalTime)) - report.lsr - report.dlsr;
+			if (delay >= 0)
 			{
-				sendDelay = FRAME_PERIOD + (congestionLevel * (int)(FRAME_PERIOD * 0.1));
-				sendTimer.setDelay(sendDelay);
-				prevLevel = congestionLevel;
-				System.out.println("Send delay changed to: " + sendDelay);
+				double sample = delay * 1000.0 / 65536;
+				minRtt = minRtt < 0 ? sample : Math.min(minRtt, sample);
+				rtt = rtt < 0 ? sample : rtt + RTT_GAIN * (sample - rtt);
+				Metrics.rtcpRtt.record((long)(sample * 1000));
 			}
 		}
+		if (!report.legacy)
+			jitter = report.jitter * 1000.0 / JpegPacketizer.RTP_CLOCK_RATE;
+
+		congestionControl.onFeedback(report.arrivalTime, report.fractionLost, rtt, jitter);
+		applyTargetBitrate(congestionControl.getTargetBitrate());
 	}
 
 	/**--------------------------------------------------------------------------------------------
-	 * Listener for RTCP packets sent by client.
+	 * Sends the best quality level whose frames fit the bitrate at the video frame rate. If even
+	 * the lowest level does not fit, its frames are sent less often, down to 1 per MAX_SEND_DELAY:
+	 * frames are dropped from the fixed media clock (DROP_FRAMES), or the clock is slowed down.
 	 * --------------------------------------------------------------------------------------------*/
-	class RtcpReceiver implements ActionListener
+	void applyTargetBitrate(int bitrate)
 	{
-		private Timer rtcpTimer;
-		private byte[] rtcpBuffer;
-		int interval;
+		int level = 0;
+		while (level < QualityLadder.LEVELS - 1 && levelBitrate(level) > bitrate)
+			level++;
+		long frameBits = averageFrameLength(level) * 8L;
+		int delay = (int) Math.max(FRAME_PERIOD, Math.min(MAX_SEND_DELAY, frameBits * 1000 / bitrate));
+
+		double ratio = DROP_FRAMES ? (double) FRAME_PERIOD / delay : 1;
+		if (DROP_FRAMES)
+			delay = FRAME_PERIOD;
+
+		if (level != congestionLevel || delay != sendDelay || ratio != sendRatio)
+			Log.info("[" + rtspId + "] Target bitrate: " + bitrate / 1000 + " kbit/s, quality level: " + level
+					+ ", send delay: " + delay + " ms, frames sent: " + Math.round(ratio * 100) + "%");
+		targetBitrate = bitrate;
+		congestionLevel = level;
+		sendDelay = delay;
+		sendRatio = ratio;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bitrate of the given level at the video frame rate.
+	 * ----------------------------------------------------------------*/
+	int levelBitrate(int level) {
+		return (int)(averageFrameLength(level) * 8L * 1000 / FRAME_PERIOD);
+	}
 
-		public RtcpReceiver(int interval)
+	/**----------------------------------------------------------------
+	 * Returns the average frame size of the given level. Live frames
+	 * are not re-encoded, all levels have the size of the source.
+	 * ----------------------------------------------------------------*/
+	private int averageFrameLength(int level) {
+		return liveHub != null ? liveHub.getAverageFrameLength() : videoStream.ladder.getAverageFrameLength(level);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the smoothed round-trip time in ms, -1 until measured.
+	 * ----------------------------------------------------------------*/
+	public double getRtt() {
+		return rtt;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the delay queued on the path in ms, the smoothed
+	 * round-trip time above the lowest one measured.
+	 * ----------------------------------------------------------------*/
+	public double getQueuingDelay() {
+		return rtt < 0 ? 0 : rtt - minRtt;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets waiting in the send queue.
+	 * ----------------------------------------------------------------*/
+	public int getSendQueueDepth() {
+		return sendQueue == null ? 0 : sendQueue.getDepth();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets dropped by the full send queue.
+	 * ----------------------------------------------------------------*/
+	public long getPacketsDropped() {
+		return sendQueue == null ? 0 : sendQueue.getDrops();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the average time packets wait in the send queue (us).
+	 * ----------------------------------------------------------------*/
+	public double getSendLatency() {
+		return sendQueue == null ? 0 : sendQueue.getAverageLatency();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of frames dropped since SETUP.
+	 * ----------------------------------------------------------------*/
+	public int getFramesDropped() {
+		return framesDropped;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bitrate congestion control currently targets.
+	 * ----------------------------------------------------------------*/
+	public int getTargetBitrate() {
+		return targetBitrate;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the fraction of packets lost in the last report, 0 if none.
+	 * ----------------------------------------------------------------*/
+	public float getFractionLost()
+	{
+		ReceptionReport report = lastReport;
+		return report == null ? 0 : report.fractionLost;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the interarrival jitter reported by the client in ms.
+	 * ----------------------------------------------------------------*/
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Interprets a client request according to the session state and sends the response.
+	 * Invoked on the thread reading the session's RTSP connection.
+	 * --------------------------------------------------------------------------------------------*/
+	void handleRequest(RtspRequest request)
+	{
+		rtspSeqNum = request.cseq;
+
+		if (request.isMalformed())
 		{
-			//set timer with interval for receiving packets
-			this.interval = interval;
-			rtcpTimer = new Timer(interval, this);
-			rtcpTimer.setInitialDelay(0);
-			rtcpTimer.setCoalesce(true);
+			sendRtspError(400, "Bad Request");
+			return;
+		}
 
-			//allocate buffer for receiving RTCP packets
-			rtcpBuffer = new byte[512];
+		// requests past SETUP must refer to this session
+		if ((request.type == PLAY || request.type == PAUSE || request.type == TEARDOWN) && request.getSessionId() != rtspId)
+		{
+			sendRtspError(454, "Session Not Found");
+			return;
 		}
 
-		@Override
-		public void actionPerformed(ActionEvent e)
+		switch (request.type)
 		{
-			//Construct a DatagramPacket to receive data from the UDP socket
-			DatagramPacket dp = new DatagramPacket(rtcpBuffer, rtcpBuffer.length);
-			float fractionLost;
+			case OPTIONS:
+				sendRtspResponse("Public: OPTIONS, DESCRIBE, SETUP, PLAY, PAUSE, TEARDOWN" + CRLF);
+				break;
 
-			try
-			{
-				rtcpSocket.receive(dp);   // Blocking
-				RtcpPacket rtcpPkt = new RtcpPacket(dp.getData(), dp.getLength());
-				System.out.println("[RTCP] " + rtcpPkt);
-
-				//set congestion level between 0 to 4
-				fractionLost = rtcpPkt.fractionLost;
-				if ((fractionLost >= 0) && (fractionLost <= 0.01)) {
-					congestionLevel = 0;	//less than 0.01 assume negligible
-				}
-				else if ((fractionLost > 0.01) && (fractionLost <= 0.25)) {
-					congestionLevel = 1;
-				}
-				else if ((fractionLost > 0.25) && (fractionLost <= 0.5)) {
-					congestionLevel = 2;
-				}
-				else if ((fractionLost > 0.5) && (fractionLost <= 0.75)) {
-					congestionLevel = 3;
-				}
-				else {
-					congestionLevel = 4;
+			case DESCRIBE:
+				Log.debug("Received DESCRIBE request");
+				videoFileName = request.uri;
+				sendRtspDescribe();
+				break;
+
+			case SETUP:
+				setup(request);
+				break;
+
+			case PLAY:
+				if (state == INIT)
+					sendRtspError(455, "Method Not Valid in This State");
+				else
+					play(request);
+				break;
+
+			case PAUSE:
+				if (state == PLAYING) {
+					sendRtspResponse();
+					stopStreaming();
+					state = READY;
+					Log.debug("New RTSP state: READY");
 				}
-			}
-			catch (InterruptedIOException iioe)
+				else if (state == READY)
+					sendRtspResponse();
+				else
+					sendRtspError(455, "Method Not Valid in This State");
+				break;
+
+			case TEARDOWN:
+				Log.debug("DESTROYING ...");
+				sendRtspResponse();
+				stopStreaming();
+				state = INIT;
+				rtspConnection.closeAfterFlush();
+				break;
+
+			default:
+				sendRtspError(501, "Not Implemented");
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Handles PLAY: seeks if a "Range: npt=" is given, then (re)starts streaming.
+	 * Without a range, playback resumes where it was paused.
+	 * ----------------------------------------------------------------*/
+	private void play(RtspRequest request)
+	{
+		if (multicastGroup != null || liveHub != null)
+		{
+			playLive(request);
+			return;
+		}
+
+		int frameCount = videoStream.getFrameCount();
+		int startFrame = -1;
+		double[] range = request.getNptRange();
+		if (range != null)
+		{
+			if (Double.isNaN(range[0]) || Double.isNaN(range[1]))
 			{
-				System.out.println("Nothing to read");
+				sendRtspError(457, "Invalid Range");
+				return;
 			}
-			catch (IOException ioe)
+			startFrame = range[0] < 0 ? -1 : (int) Math.round(range[0] * 1000 / FRAME_PERIOD);
+			int stopFrame = range[1] < 0 ? -1 : (int) Math.round(range[1] * 1000 / FRAME_PERIOD);
+			if (startFrame >= frameCount || (stopFrame >= 0 && stopFrame <= Math.max(startFrame, 0)))
 			{
-				System.out.println("Exception caught: "+ioe);
+				sendRtspError(457, "Invalid Range");
+				return;
 			}
+			endFrame = stopFrame;
+			if (startFrame >= 0)
+				pendingSeek = startFrame;
 		}
 
-		public void startRcv() {
-			rtcpTimer.start();
+		// position playback continues from, for the Range and RTP-Info headers
+		int position = startFrame >= 0 ? startFrame : imageCounter;
+		double startTime = position * FRAME_PERIOD / 1000.0;
+		double endTime = (endFrame >= 0 ? endFrame : frameCount) * FRAME_PERIOD / 1000.0;
+		sendRtspResponse("Range: npt=" + formatNpt(startTime) + "-" + formatNpt(endTime) + CRLF
+				+ "RTP-Info: url=" + request.uri + ";seq=" + sequenceNumber
+				+ ";rtptime=" + (JpegPacketizer.timestamp((long)(position + 1) * FRAME_PERIOD) & 0xFFFFFFFFL) + CRLF);
+
+		// restart the pacer when resuming from READY, or after the previous range was played out
+		if (state == READY || !isStreaming())
+			startStreaming();
+		if (state != PLAYING)
+		{
+			state = PLAYING;
+			Log.debug("New RTSP state: PLAYING");
 		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Handles PLAY of a multicast or live session. The stream is live
+	 * and shared, so a Range is ignored and playback starts now.
+	 * ----------------------------------------------------------------*/
+	private void playLive(RtspRequest request)
+	{
+		int seq = multicastGroup != null ? multicastGroup.getSequenceNumber() : sequenceNumber;
+		long rtpTime = multicastGroup != null ? multicastGroup.getTimestamp()
+				: (timestampOffset + JpegPacketizer.timestamp(liveHub.getMediaTime() + FRAME_PERIOD)) & 0xFFFFFFFFL;
+		sendRtspResponse("Range: npt=now-" + CRLF
+				+ "RTP-Info: url=" + request.uri + ";seq=" + seq + ";rtptime=" + rtpTime + CRLF);
 
-		public void stopRcv() {
-			rtcpTimer.stop();
+		if (state == READY || !isStreaming())
+			startStreaming();
+		if (state != PLAYING)
+		{
+			state = PLAYING;
+			Log.debug("New RTSP state: PLAYING");
 		}
 	}
 
-	//------------------------------------
-	// Parse RTSP Request
-	//------------------------------------
-	public int parseRtspRequest()
+	private static String formatNpt(double seconds) {
+		return String.format(Locale.ROOT, "%.3f", seconds);
+	}
+
+	/**----------------------------------------------------------------
+	 * Handles SETUP: allocates the session resources and moves to READY.
+	 * ----------------------------------------------------------------*/
+	private void setup(RtspRequest request)
 	{
-		int request_type = -1;
-		try
+		if (state != INIT)
 		{
-			//parse request line and extract the request_type:
-			String RequestLine = rtspBufferedReader.readLine();
-			System.out.println("RTSP Server - Received from Client:");
-			System.out.println(RequestLine);
-
-			StringTokenizer tokens = new StringTokenizer(RequestLine);
-			String request_type_string = tokens.nextToken();
-
-			//convert to request_type structure:
-			if ((new String(request_type_string)).compareTo("SETUP") == 0)
-				request_type = SETUP;
-			else if ((new String(request_type_string)).compareTo("PLAY") == 0)
-				request_type = PLAY;
-			else if ((new String(request_type_string)).compareTo("PAUSE") == 0)
-				request_type = PAUSE;
-			else if ((new String(request_type_string)).compareTo("TEARDOWN") == 0)
-				request_type = TEARDOWN;
-			else if ((new String(request_type_string)).compareTo("DESCRIBE") == 0)
-				request_type = DESCRIBE;
-
-			if (request_type == SETUP) {
-				//extract VideoFileName from RequestLine
-				videoFileName = tokens.nextToken();
-			}
+			sendRtspError(455, "Method Not Valid in This State");
+			return;
+		}
 
-			//parse the SeqNumLine and extract CSeq field
-			String SeqNumLine = rtspBufferedReader.readLine();
-			System.out.println(SeqNumLine);
-			tokens = new StringTokenizer(SeqNumLine);
-			tokens.nextToken();
-			rtspSeqNum = Integer.parseInt(tokens.nextToken());
-
-			//get LastLine
-			String LastLine = rtspBufferedReader.readLine();
-			System.out.println(LastLine);
-
-			tokens = new StringTokenizer(LastLine);
-			if (request_type == SETUP) {
-				//extract RTP_dest_port from LastLine
-				for (int i=0; i<3; i++)
-					tokens.nextToken(); //skip unused stuff
-				rtpDestPort = Integer.parseInt(tokens.nextToken());
-			}
-			else if (request_type == DESCRIBE) {
-				tokens.nextToken();
-			}
-			else {
-				//otherwise LastLine will be the SessionId line
-				tokens.nextToken(); //skip Session:
-				RTSP_ID = Integer.parseInt(tokens.nextToken());
+		if (request.isMulticast())
+		{
+			setupMulticast(request);
+			return;
+		}
+
+		interleavedChannel = request.getInterleavedChannel();
+		if (interleavedChannel < 0)
+		{
+			rtpDestPort = request.getClientPort();
+			if (rtpDestPort <= 0)
+			{
+				sendRtspError(461, "Unsupported Transport");
+				return;
 			}
-		} catch(Exception ex) {
-			System.out.println("Exception caught: "+ex);
-			System.exit(0);
 		}
 
-		return(request_type);
+		try
+		{
+			videoFileName = request.uri;
+			openStream(VIDEO_FILE);
+		}
+		catch (FileNotFoundException fnfe)
+		{
+			Log.error("Exception caught: " + fnfe);
+			sendRtspError(404, "Not Found");
+			return;
+		}
+		catch (Exception ex)
+		{
+			Log.error("Exception caught: " + ex);
+			sendRtspError(500, "Internal Server Error");
+			return;
+		}
+
+		state = READY;
+		Log.debug("New RTSP state: READY");
+		if (interleavedChannel >= 0)
+			sendRtspResponse("Transport: RTP/AVP/TCP;unicast;interleaved=" + interleavedChannel + "-" + (interleavedChannel + 1) + CRLF);
+		else
+			sendRtspResponse("Transport: RTP/AVP;unicast;client_port=" + rtpDestPort + "-" + (rtpDestPort + 1)
+					+ ";server_port=" + rtpChannel.socket().getLocalPort() + "-" + rtcpReceiver.getLocalPort() + CRLF);
+	}
+
+	/**----------------------------------------------------------------
+	 * Handles SETUP of a multicast session: joins the group of the video
+	 * instead of allocating a stream of its own.
+	 * ----------------------------------------------------------------*/
+	private void setupMulticast(RtspRequest request)
+	{
+		try
+		{
+			videoFileName = request.uri;
+			multicastGroup = sessionManager.joinMulticastGroup(VIDEO_FILE, this);
+		}
+		catch (FileNotFoundException fnfe)
+		{
+			Log.error("Exception caught: " + fnfe);
+			sendRtspError(404, "Not Found");
+			return;
+		}
+		catch (Exception ex)
+		{
+			Log.error("Exception caught: " + ex);
+			sendRtspError(500, "Internal Server Error");
+			return;
+		}
+
+		state = READY;
+		Log.debug("New RTSP state: READY");
+		sendRtspResponse("Transport: RTP/AVP;multicast;destination=" + multicastGroup.address.getHostAddress()
+				+ ";port=" + multicastGroup.port + "-" + (multicastGroup.port + 1) + ";ttl=" + MulticastGroup.MULTICAST_TTL + CRLF);
 	}
 
 	// Creates a DESCRIBE response string in SDP format for current media
@@ -356,13 +1051,25 @@ public class Server implements ActionListener
 		// Write the body first so we can get the size later
 		writer2.write("v=0" + CRLF);
 		writer2.write("m=video " + rtspDestPort + " RTP/AVP " + MJPEG_TYPE + CRLF);
-		writer2.write("a=control:streamid=" + RTSP_ID + CRLF);
+		writer2.write("a=control:streamid=" + rtspId + CRLF);
 		writer2.write("a=mimetype:string;\"video/MJPEG\"" + CRLF);
+		if (!LEGACY_FRAMING && LIVE_SOURCE == null)
+		{
+			try {
+				int frameCount = MjpegFile.open(VIDEO_FILE).getFrameCount();
+				writer2.write("a=range:npt=0-" + formatNpt(frameCount * FRAME_PERIOD / 1000.0) + CRLF);
+			}
+			catch (IOException ioe) {
+				Log.error("Exception caught: " + ioe);
+			}
+		}
 		String body = writer2.toString();
 
 		writer1.write("Content-Base: " + videoFileName + CRLF);
 		writer1.write("Content-Type: " + "application/sdp" + CRLF);
 		writer1.write("Content-Length: " + body.length() + CRLF);
+		if (!LEGACY_FRAMING)
+			writer1.write(CRLF);
 		writer1.write(body);
 
 		return writer1.toString();
@@ -373,36 +1080,40 @@ public class Server implements ActionListener
 	//------------------------------------
 	void sendRtspResponse()
 	{
-		try
-		{
-			rtspBufferedWriter.write("RTSP/1.0 200 OK" + CRLF);
-			rtspBufferedWriter.write("CSeq: " + rtspSeqNum + CRLF);
-			rtspBufferedWriter.write("Session: " + RTSP_ID + CRLF);
-			rtspBufferedWriter.flush();
-			System.out.println("RTSP Server - Sent response to Client.");
-		}
-		catch(Exception ex)
-		{
-			System.out.println("Exception caught: " + ex);
-			System.exit(0);
-		}
+		sendRtspResponse("");
+	}
+
+	/**----------------------------------------------------------------
+	 * Sends a 200 response. The extra headers are only sent to standard clients,
+	 * the bundled client expects exactly three response lines.
+	 * ----------------------------------------------------------------*/
+	void sendRtspResponse(String headers)
+	{
+		StringBuilder response = new StringBuilder(128);
+		response.append("RTSP/1.0 200 OK" + CRLF);
+		response.append("CSeq: ").append(rtspSeqNum).append(CRLF);
+		response.append("Session: ").append(rtspId).append(CRLF);
+		if (!LEGACY_FRAMING)
+			response.append(headers).append(CRLF);
+		rtspConnection.send(response.toString());
+		Log.debug("RTSP Server - Sent response to Client.");
+	}
+
+	void sendRtspError(int code, String reason)
+	{
+		StringBuilder response = new StringBuilder(128);
+		response.append("RTSP/1.0 ").append(code).append(' ').append(reason).append(CRLF);
+		response.append("CSeq: ").append(rtspSeqNum).append(CRLF);
+		response.append("Session: ").append(rtspId).append(CRLF);
+		if (!LEGACY_FRAMING)
+			response.append(CRLF);
+		rtspConnection.send(response.toString());
+		Log.debug("RTSP Server - Sent " + code + " " + reason + " to Client.");
 	}
 
 	void sendRtspDescribe()
 	{
-		String des = describe();
-		try
-		{
-			rtspBufferedWriter.write("RTSP/1.0 200 OK"+CRLF);
-			rtspBufferedWriter.write("CSeq: "+rtspSeqNum+CRLF);
-			rtspBufferedWriter.write(des);
-			rtspBufferedWriter.flush();
-			System.out.println("RTSP Server - Sent response to Client.");
-		}
-		catch(Exception ex)
-		{
-			System.out.println("Exception caught: "+ex);
-			System.exit(0);
-		}
+		rtspConnection.send("RTSP/1.0 200 OK" + CRLF + "CSeq: " + rtspSeqNum + CRLF + describe());
+		Log.debug("RTSP Server - Sent response to Client.");
 	}
-}
\ No newline at end of file
+}
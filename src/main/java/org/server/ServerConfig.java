@@ -0,0 +1,214 @@
+package org.server;
+
+import java.util.Objects;
+import java.util.Properties;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Settings of a StreamServer. Defaults are the values of the static settings of the server classes.
+ *
+ * The sessions read their settings from those static fields, so apply() is process-wide: servers embedded in
+ * the same JVM share everything but their RTSP and metrics ports, and StreamServer refuses to start a server
+ * whose other settings differ from those of the servers running.
+ *
+ * Properties (see load()): rtsp.port, rtcp.port, video.file, live.source, legacy.framing, congestion.control,
+ * rtp.mtu, pacer.threads, sender.threads, event.loops, blocking.sessions, max.sessions, metrics.port, log.level.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class ServerConfig
+{
+	int rtspPort = Server.RTSP_PORT;			// 0 for an ephemeral port
+	int rtcpPort = Server.RTCP_RCV_PORT;
+	String videoFile = Server.VIDEO_FILE;
+	String liveSource = Server.LIVE_SOURCE;
+	boolean legacyFraming = Server.LEGACY_FRAMING;
+	String congestionControl = Server.CONGESTION_CONTROL;
+	int rtpMtu = Server.RTP_MTU;
+	int pacerThreads = PacketPacer.PACER_THREADS;
+	int senderThreads = PacketSender.SENDER_THREADS;
+	int eventLoops = RtspServer.EVENT_LOOPS;
+	boolean blockingSessions = RtspServer.BLOCKING_SESSIONS;
+	int maxSessions = SessionManager.MAX_SESSIONS;
+	int metricsPort = -1;						// HTTP metrics endpoint on loopback, -1 for none
+	int logLevel = Log.LEVEL;
+
+	public ServerConfig setRtspPort(int rtspPort)
+	{
+		this.rtspPort = rtspPort;
+		return this;
+	}
+
+	public ServerConfig setRtcpPort(int rtcpPort)
+	{
+		this.rtcpPort = rtcpPort;
+		return this;
+	}
+
+	public ServerConfig setVideoFile(String videoFile)
+	{
+		this.videoFile = videoFile;
+		return this;
+	}
+
+	public ServerConfig setLiveSource(String liveSource)
+	{
+		this.liveSource = liveSource;
+		return this;
+	}
+
+	public ServerConfig setLegacyFraming(boolean legacyFraming)
+	{
+		this.legacyFraming = legacyFraming;
+		return this;
+	}
+
+	public ServerConfig setCongestionControl(String congestionControl)
+	{
+		this.congestionControl = congestionControl;
+		return this;
+	}
+
+	public ServerConfig setRtpMtu(int rtpMtu)
+	{
+		this.rtpMtu = rtpMtu;
+		return this;
+	}
+
+	public ServerConfig setPacerThreads(int pacerThreads)
+	{
+		this.pacerThreads = pacerThreads;
+		return this;
+	}
+
+	public ServerConfig setSenderThreads(int senderThreads)
+	{
+		this.senderThreads = senderThreads;
+		return this;
+	}
+
+	public ServerConfig setEventLoops(int eventLoops)
+	{
+		this.eventLoops = eventLoops;
+		return this;
+	}
+
+	/**----------------------------------------------------------------
+	 * Serves each RTSP connection on a thread of its own, a virtual
+	 * thread on Java 21, rather than on the event loops.
+	 * ----------------------------------------------------------------*/
+	public ServerConfig setBlockingSessions(boolean blockingSessions)
+	{
+		this.blockingSessions = blockingSessions;
+		return this;
+	}
+
+	public ServerConfig setMaxSessions(int maxSessions)
+	{
+		this.maxSessions = maxSessions;
+		return this;
+	}
+
+	public ServerConfig setMetricsPort(int metricsPort)
+	{
+		this.metricsPort = metricsPort;
+		return this;
+	}
+
+	/**----------------------------------------------------------------
+	 * Sets the log level by name: error, warn, info or debug.
+	 * ----------------------------------------------------------------*/
+	public ServerConfig setLogLevel(String logLevel)
+	{
+		this.logLevel = Log.parseLevel(logLevel, this.logLevel);
+		return this;
+	}
+
+	public int getRtspPort() {
+		return rtspPort;
+	}
+
+	public String getVideoFile() {
+		return videoFile;
+	}
+
+	public String getLiveSource() {
+		return liveSource;
+	}
+
+	/**----------------------------------------------------------------
+	 * Overrides the settings given in the properties, keeps the others.
+	 * Throws NumberFormatException on a malformed number.
+	 * ----------------------------------------------------------------*/
+	public ServerConfig load(Properties properties)
+	{
+		rtspPort = intProperty(properties, "rtsp.port", rtspPort);
+		rtcpPort = intProperty(properties, "rtcp.port", rtcpPort);
+		videoFile = properties.getProperty("video.file", videoFile);
+		liveSource = properties.getProperty("live.source", liveSource);
+		legacyFraming = Boolean.parseBoolean(properties.getProperty("legacy.framing", String.valueOf(legacyFraming)));
+		congestionControl = properties.getProperty("congestion.control", congestionControl);
+		rtpMtu = intProperty(properties, "rtp.mtu", rtpMtu);
+		pacerThreads = intProperty(properties, "pacer.threads", pacerThreads);
+		senderThreads = intProperty(properties, "sender.threads", senderThreads);
+		eventLoops = intProperty(properties, "event.loops", eventLoops);
+		blockingSessions = Boolean.parseBoolean(properties.getProperty("blocking.sessions", String.valueOf(blockingSessions)));
+		maxSessions = intProperty(properties, "max.sessions", maxSessions);
+		metricsPort = intProperty(properties, "metrics.port", metricsPort);
+		logLevel = Log.parseLevel(properties.getProperty("log.level"), logLevel);
+		return this;
+	}
+
+	/**----------------------------------------------------------------
+	 * Copies the settings to the static fields read by the sessions.
+	 * Sessions already set up keep the settings they were set up with.
+	 * ----------------------------------------------------------------*/
+	void apply()
+	{
+		Server.RTSP_PORT = rtspPort;
+		Server.RTCP_RCV_PORT = rtcpPort;
+		Server.VIDEO_FILE = videoFile;
+		Server.LIVE_SOURCE = liveSource;
+		Server.LEGACY_FRAMING = legacyFraming;
+		Server.CONGESTION_CONTROL = congestionControl;
+		Server.RTP_MTU = rtpMtu;
+		PacketPacer.PACER_THREADS = Math.max(1, pacerThreads);
+		PacketSender.SENDER_THREADS = Math.max(1, senderThreads);
+		RtspServer.EVENT_LOOPS = Math.max(1, eventLoops);
+		RtspServer.BLOCKING_SESSIONS = blockingSessions;
+		SessionManager.MAX_SESSIONS = maxSessions;
+		Log.LEVEL = logLevel;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true if the static fields hold this configuration's
+	 * process-wide settings, i.e. all but the RTSP and metrics ports.
+	 * ----------------------------------------------------------------*/
+	boolean isApplied()
+	{
+		return Server.RTCP_RCV_PORT == rtcpPort
+				&& Objects.equals(Server.VIDEO_FILE, videoFile)
+				&& Objects.equals(Server.LIVE_SOURCE, liveSource)
+				&& Server.LEGACY_FRAMING == legacyFraming
+				&& Objects.equals(Server.CONGESTION_CONTROL, congestionControl)
+				&& Server.RTP_MTU == rtpMtu
+				&& PacketPacer.PACER_THREADS == Math.max(1, pacerThreads)
+				&& PacketSender.SENDER_THREADS == Math.max(1, senderThreads)
+				&& RtspServer.EVENT_LOOPS == Math.max(1, eventLoops)
+				&& RtspServer.BLOCKING_SESSIONS == blockingSessions
+				&& SessionManager.MAX_SESSIONS == maxSessions
+				&& Log.LEVEL == logLevel;
+	}
+
+	private static int intProperty(Properties properties, String key, int defaultValue)
+	{
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RTSP port " + rtspPort + ", RTCP port " + rtcpPort + ", "
+				+ (liveSource != null ? "live source " + liveSource : "video file " + videoFile)
+				+ ", " + (legacyFraming ? "legacy" : "standard") + " framing, " + congestionControl + " congestion control, "
+				+ (blockingSessions ? "thread per session" : eventLoops + " event loops");
+	}
+}
@@ -0,0 +1,159 @@
+package org.server;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Standard MBean publishing the metrics of a StreamServer, registered as org.server:type=StreamServer,port=<port>.
+ * The counters and histograms are process-wide, only the session counts are those of the server.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class ServerMetrics implements ServerMetricsMBean
+{
+	private final SessionManager sessionManager;
+	private ObjectName name;
+
+	ServerMetrics(SessionManager sessionManager)
+	{
+		this.sessionManager = sessionManager;
+	}
+
+	/**----------------------------------------------------------------
+	 * Registers the bean with the platform MBean server. Failures are
+	 * logged, the server runs without its MBean.
+	 * ----------------------------------------------------------------*/
+	void register(int port)
+	{
+		try
+		{
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("org.server:type=StreamServer,port=" + port);
+			mbeanServer.registerMBean(this, objectName);
+			name = objectName;
+		}
+		catch (JMException ex)
+		{
+			Log.warn("Metrics MBean not registered: " + ex);
+		}
+	}
+
+	void unregister()
+	{
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch (JMException ex) {
+			Log.warn("Metrics MBean not unregistered: " + ex);
+		}
+		name = null;
+	}
+
+	@Override
+	public long getFramesSent() {
+		return Metrics.framesSent.sum();
+	}
+
+	@Override
+	public long getFramesDropped() {
+		return Metrics.framesDropped.sum();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return Metrics.packetsSent.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return Metrics.bytesSent.sum();
+	}
+
+	@Override
+	public long getPacketsDropped() {
+		return Metrics.packetsDropped.sum();
+	}
+
+	@Override
+	public long getRtcpReports() {
+		return Metrics.rtcpReports.sum();
+	}
+
+	@Override
+	public long getSessionsOpened() {
+		return Metrics.sessionsOpened.sum();
+	}
+
+	@Override
+	public int getSessionsActive() {
+		return sessionManager.getSessionCount();
+	}
+
+	@Override
+	public long getSendLatencyP50() {
+		return Metrics.sendLatency.getPercentile(0.5);
+	}
+
+	@Override
+	public long getSendLatencyP99() {
+		return Metrics.sendLatency.getPercentile(0.99);
+	}
+
+	@Override
+	public long getPacingErrorP50() {
+		return Metrics.pacingError.getPercentile(0.5);
+	}
+
+	@Override
+	public long getPacingErrorP99() {
+		return Metrics.pacingError.getPercentile(0.99);
+	}
+
+	@Override
+	public long getEncoderTimeP50() {
+		return Metrics.encoderTime.getPercentile(0.5);
+	}
+
+	@Override
+	public long getEncoderTimeP99() {
+		return Metrics.encoderTime.getPercentile(0.99);
+	}
+
+	@Override
+	public long getRtcpLossP50Permille() {
+		return Metrics.rtcpLoss.getPercentile(0.5);
+	}
+
+	@Override
+	public long getRtcpLossP99Permille() {
+		return Metrics.rtcpLoss.getPercentile(0.99);
+	}
+
+	@Override
+	public long getRtcpJitterP50() {
+		return Metrics.rtcpJitter.getPercentile(0.5);
+	}
+
+	@Override
+	public long getRtcpJitterP99() {
+		return Metrics.rtcpJitter.getPercentile(0.99);
+	}
+
+	@Override
+	public long getRtcpRttP50() {
+		return Metrics.rtcpRtt.getPercentile(0.5);
+	}
+
+	@Override
+	public long getRtcpRttP99() {
+		return Metrics.rtcpRtt.getPercentile(0.99);
+	}
+
+	@Override
+	public String getText() {
+		return Metrics.scrape(sessionManager);
+	}
+}
@@ -0,0 +1,32 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * JMX view of the server metrics (see Metrics). Latencies and times are in microseconds.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public interface ServerMetricsMBean
+{
+	long getFramesSent();
+	long getFramesDropped();
+	long getPacketsSent();
+	long getBytesSent();
+	long getPacketsDropped();
+	long getRtcpReports();
+	long getSessionsOpened();
+	int getSessionsActive();
+
+	long getSendLatencyP50();
+	long getSendLatencyP99();
+	long getPacingErrorP50();
+	long getPacingErrorP99();
+	long getEncoderTimeP50();
+	long getEncoderTimeP99();
+	long getRtcpLossP50Permille();
+	long getRtcpLossP99Permille();
+	long getRtcpJitterP50();
+	long getRtcpJitterP99();
+	long getRtcpRttP50();
+	long getRtcpRttP99();
+
+	/** The metrics of the server and its sessions, in the Prometheus text format. */
+	String getText();
+}
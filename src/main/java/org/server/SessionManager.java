@@ -0,0 +1,221 @@
+package org.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Registry of active RTSP sessions.
+ * Allocates unique session IDs and keeps track of every client session served by this process.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SessionManager
+{
+	static int MAX_SESSIONS = 1000;		// upper bound of concurrently served sessions
+
+	/**--------------------------------------------------------------------------------------------
+	 * Notified when sessions are opened and closed, on the thread opening or closing them.
+	 * --------------------------------------------------------------------------------------------*/
+	public interface Listener
+	{
+		void onSessionOpened(Server session);
+		void onSessionClosed(Server session);
+	}
+
+	private final ConcurrentHashMap<Integer, Server> sessions = new ConcurrentHashMap<Integer, Server>();
+	private final Random random = new Random();
+	private final PacketPacer pacer = new PacketPacer(PacketPacer.PACER_THREADS);
+	private final PacketSender sender = new PacketSender(PacketSender.SENDER_THREADS);
+	private final RtcpReceiver rtcpReceiver = new RtcpReceiver(Server.RTCP_RCV_PORT);
+	private final HashMap<String, MulticastGroup> multicastGroups = new HashMap<String, MulticastGroup>();	// by source
+	private final HashMap<String, LiveHub> liveHubs = new HashMap<String, LiveHub>();	// by source
+	private volatile Listener listener;
+
+	/**----------------------------------------------------------------
+	 * Creates and registers a new session for the accepted RTSP connection.
+	 * Returns null if the session limit has been reached.
+	 * ----------------------------------------------------------------*/
+	public Server createSession(ControlConnection rtspConnection)
+	{
+		if (sessions.size() >= MAX_SESSIONS)
+			return null;
+
+		// the ID is taken by the put itself, as sessions are created on several event loops at once
+		Server session;
+		do {
+			session = new Server(rtspConnection, nextSessionId(), this);
+		} while (sessions.putIfAbsent(session.rtspId, session) != null);
+		Metrics.sessionsOpened.increment();
+
+		Listener l = listener;
+		if (l != null)
+			l.onSessionOpened(session);
+		return session;
+	}
+
+	/**----------------------------------------------------------------
+	 * Unregisters the session and releases its resources.
+	 * ----------------------------------------------------------------*/
+	public void closeSession(Server session)
+	{
+		boolean removed = sessions.remove(session.rtspId, session);
+		if (removed)
+			Log.info("Session " + session.rtspId + " closed, active sessions: " + sessions.size());
+		session.close();
+
+		Listener l = listener;
+		if (removed && l != null)
+			l.onSessionClosed(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Adds the session to the multicast group of the source, opening
+	 * the group if the session is its first member.
+	 * ----------------------------------------------------------------*/
+	public synchronized MulticastGroup joinMulticastGroup(String source, Server session) throws Exception
+	{
+		MulticastGroup group = multicastGroups.get(source);
+		if (group == null)
+		{
+			group = new MulticastGroup(source, freeGroupIndex(), this);
+			multicastGroups.put(source, group);
+		}
+		group.join(session);
+		return group;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the lowest address offset no open group uses, so the
+	 * addresses of closed groups are reused.
+	 * ----------------------------------------------------------------*/
+	private int freeGroupIndex()
+	{
+		int index = 0;
+		boolean used = true;
+		while (used)
+		{
+			used = false;
+			for (MulticastGroup group : multicastGroups.values())
+				used |= group.index == index;
+			if (used)
+				index++;
+		}
+		return index;
+	}
+
+	/**----------------------------------------------------------------
+	 * Removes the session from its multicast group, closing the group
+	 * once its last member left.
+	 * ----------------------------------------------------------------*/
+	public synchronized void leaveMulticastGroup(MulticastGroup group, Server session)
+	{
+		if (group.leave(session) && multicastGroups.remove(group.source, group))
+			group.close();
+	}
+
+	/**----------------------------------------------------------------
+	 * Subscribes the session to the live source, starting the source's
+	 * hub if the session is its first subscriber.
+	 * ----------------------------------------------------------------*/
+	public synchronized LiveHub subscribeLive(String source, Server session) throws Exception
+	{
+		LiveHub hub = liveHubs.get(source);
+		if (hub == null)
+		{
+			hub = new LiveHub(source, this);
+			liveHubs.put(source, hub);
+		}
+		hub.subscribe(session);
+		return hub;
+	}
+
+	/**----------------------------------------------------------------
+	 * Unsubscribes the session, stopping the hub once its last
+	 * subscriber left.
+	 * ----------------------------------------------------------------*/
+	public synchronized void unsubscribeLive(LiveHub hub, Server session)
+	{
+		if (hub.unsubscribe(session) && liveHubs.remove(hub.source, hub))
+			hub.close();
+	}
+
+	/**----------------------------------------------------------------
+	 * Drops the hub of a source that ended on its own and closes its
+	 * sessions, so the next SETUP opens the source again. Invoked on
+	 * the hub's producer thread.
+	 * ----------------------------------------------------------------*/
+	void endLive(LiveHub hub)
+	{
+		ArrayList<Server> subscribers;
+		synchronized (this)
+		{
+			if (!liveHubs.remove(hub.source, hub))
+				return;
+			subscribers = new ArrayList<Server>(hub.getSubscribers());
+		}
+		Log.warn("Live source " + hub.source + " ended, closing its " + subscribers.size() + " sessions");
+		for (Server session : subscribers)
+			session.rtspConnection.closeLater();
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes all registered sessions.
+	 * ----------------------------------------------------------------*/
+	public void closeAll()
+	{
+		for (Server session : sessions.values())
+			closeSession(session);
+	}
+
+	/**----------------------------------------------------------------
+	 * Closes all sessions and stops the shared pacer, sender and RTCP receiver threads.
+	 * ----------------------------------------------------------------*/
+	public void shutdown()
+	{
+		closeAll();
+		pacer.shutdown();
+		sender.shutdown();
+		rtcpReceiver.stop();
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public PacketPacer getPacer() {
+		return pacer;
+	}
+
+	public PacketSender getSender() {
+		return sender;
+	}
+
+	public RtcpReceiver getRtcpReceiver() {
+		return rtcpReceiver;
+	}
+
+	public Server getSession(int id) {
+		return sessions.get(id);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns a live view of the active sessions.
+	 * ----------------------------------------------------------------*/
+	public Collection<Server> getSessions() {
+		return Collections.unmodifiableCollection(sessions.values());
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**----------------------------------------------------------------
+	 * Draws a positive 6-digit session ID, createSession() retries on
+	 * IDs in use.
+	 * ----------------------------------------------------------------*/
+	private int nextSessionId() {
+		return 100000 + random.nextInt(900000);
+	}
+}
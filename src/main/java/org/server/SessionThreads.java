@@ -0,0 +1,31 @@
+package org.server;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Starts the threads serving blocking RTSP sessions (see BlockingRtspConnection).
+ *
+ * This version starts daemon platform threads with a reduced stack. The multi-release jar built for Java 21
+ * replaces it with the version in src/java21, starting virtual threads: a session parked in a blocking read
+ * then only holds its stack chunk on the heap, a few KB, instead of a platform thread and its stack.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SessionThreads
+{
+	static long STACK_SIZE = 256 * 1024;	// stack of a session thread, a hint the VM may ignore
+
+	/**----------------------------------------------------------------
+	 * Returns true if the session threads are virtual threads.
+	 * ----------------------------------------------------------------*/
+	static boolean isVirtual() {
+		return false;
+	}
+
+	/**----------------------------------------------------------------
+	 * Starts a daemon thread running the task.
+	 * ----------------------------------------------------------------*/
+	static Thread start(Runnable task, String name)
+	{
+		Thread thread = new Thread(null, task, name, STACK_SIZE);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
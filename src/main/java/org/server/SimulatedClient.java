@@ -0,0 +1,614 @@
+package org.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * A simulated RTSP/RTP client of the LoadGenerator. Sets up a unicast UDP stream, plays it, validates the
+ * RTP packets and RTP/JPEG fragments it receives and answers the Sender Reports with Receiver Reports.
+ * Loss and delay are injected on the receiving side, before the packets are processed. A stream that stalls
+ * at the end of the video is played again from the start (standard framing only).
+ *
+ * Frame-delivery latency runs from the wall-clock instant the server maps the frame's timestamp to (through
+ * its Sender Reports) to the arrival of the frame's last packet; both ends read the same clock on loopback.
+ * Inter-frame jitter is the deviation of the interval between two complete frames from the interval of their
+ * timestamps. Statistics are only recorded within the measurement window.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class SimulatedClient implements Runnable
+{
+	final static String CRLF = "\r\n";
+	static int REPORT_INTERVAL = 1000;		// interval between two Receiver Reports (ms)
+	static int STALL_TIMEOUT = 1000;		// silence after which the stream is considered ended (ms), on top of the injected delay
+	static int RTSP_TIMEOUT = 5000;			// RTSP response timeout (ms)
+	static int BUFFER_SIZE = 2048;			// largest datagram received
+
+	final int id;
+	private final InetSocketAddress server;
+	private final String url;
+	private final boolean legacyFraming;
+	private final double lossRate;			// fraction of the RTP packets dropped on arrival
+	private final long delay;				// delay added to every packet (ns)
+	private final long delayJitter;			// random delay added on top, up to this value (ns)
+	private final Random random;
+	private final int ssrc;
+
+	private Socket rtspSocket;
+	private BufferedReader rtspReader;
+	private Writer rtspWriter;
+	private int cseq;
+	private String session;
+	private final HashMap<String, String> responseHeaders = new HashMap<String, String>();
+	private DatagramChannel rtpChannel;
+	private DatagramChannel rtcpChannel;
+	private SocketAddress rtcpTarget;
+	private Selector selector;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer reportBuffer = ByteBuffer.allocate(RtcpPacket.HEADER_SIZE + RtcpPacket.REPORT_BLOCK_SIZE);
+	private final PriorityQueue<Delayed> delayLine = new PriorityQueue<Delayed>();
+	private long delayedCount;
+	private volatile boolean running = true;
+
+	// measurement window, System.nanoTime()
+	private volatile long windowStart = Long.MAX_VALUE;
+	private volatile long windowEnd = Long.MAX_VALUE;
+
+	// reception state (RFC 3550 A.1, A.3, A.8)
+	private boolean started;
+	private int sourceSsrc;
+	private int baseSeq;
+	private int maxSeq;
+	private int cycles;
+	private int received;
+	private int expectedPrior;
+	private int receivedPrior;
+	private double jitter;					// interarrival jitter, RTP timestamp units
+	private int lastTransit;
+	private boolean hasTransit;
+	private long lastArrival;
+
+	// frame being reassembled
+	private boolean frameOpen;
+	private boolean frameIntact;
+	private int frameTimestamp;
+	private int nextOffset;
+	private boolean hasLastFrame;
+	private int lastFrameTimestamp;
+	private long lastFrameArrival;
+
+	// last Sender Report
+	private boolean hasSenderReport;
+	private long senderNtp;
+	private int senderRtpTime;
+	private long senderArrival;
+
+	// statistics of the measurement window
+	int packets;
+	int lost;
+	int late;
+	int malformed;
+	int dropped;				// injected losses
+	int frames;
+	int brokenFrames;			// frames with a missing or misplaced fragment
+	int replays;
+	boolean ended;				// the stream ended and could not be played again
+	String error;				// why the client stopped early, null if it did not
+	final Samples latency = new Samples();		// frame-delivery latency (us)
+	final Samples interFrame = new Samples();	// inter-frame jitter (us)
+
+	public SimulatedClient(int id, InetSocketAddress server, String url, boolean legacyFraming,
+			double lossRate, int delayMs, int delayJitterMs, long seed)
+	{
+		this.id = id;
+		this.server = server;
+		this.url = url;
+		this.legacyFraming = legacyFraming;
+		this.lossRate = lossRate;
+		this.delay = delayMs * 1000000L;
+		this.delayJitter = delayJitterMs * 1000000L;
+		this.random = new Random(seed);
+		this.ssrc = random.nextInt();
+	}
+
+	/**----------------------------------------------------------------
+	 * Sets the interval statistics are recorded in (System.nanoTime()).
+	 * ----------------------------------------------------------------*/
+	public void setWindow(long start, long end)
+	{
+		windowEnd = end;
+		windowStart = start;
+	}
+
+	/**----------------------------------------------------------------
+	 * Makes the client tear its session down and return from run().
+	 * ----------------------------------------------------------------*/
+	public void stop()
+	{
+		running = false;
+		Selector s = selector;
+		if (s != null)
+			s.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			setup();
+			play(false);
+
+			selector = Selector.open();
+			rtpChannel.configureBlocking(false);
+			rtcpChannel.configureBlocking(false);
+			rtpChannel.register(selector, SelectionKey.OP_READ, Boolean.FALSE);
+			rtcpChannel.register(selector, SelectionKey.OP_READ, Boolean.TRUE);
+
+			lastArrival = System.nanoTime();
+			long nextReport = lastArrival + REPORT_INTERVAL * 1000000L;
+			while (running)
+			{
+				long now = System.nanoTime();
+				Delayed next;
+				while ((next = delayLine.peek()) != null && now - next.release >= 0)
+				{
+					delayLine.poll();
+					process(ByteBuffer.wrap(next.data), next.rtcp, next.release);
+				}
+				if (now - nextReport >= 0)
+				{
+					sendReceiverReport(now);
+					nextReport = now + REPORT_INTERVAL * 1000000L;
+				}
+				if (!ended && now - lastArrival > STALL_TIMEOUT * 1000000L + delay + delayJitter)
+				{
+					if (legacyFraming)
+						ended = true;
+					else
+						play(true);
+					lastArrival = System.nanoTime();
+				}
+
+				long wait = nextReport - now;
+				if (next != null)
+					wait = Math.min(wait, next.release - now);
+				selector.select(Math.max(1, wait / 1000000L));
+				for (SelectionKey key : selector.selectedKeys())
+					receive((DatagramChannel) key.channel(), (Boolean) key.attachment());
+				selector.selectedKeys().clear();
+			}
+			request("TEARDOWN", "Session: " + session);
+		}
+		catch (Exception ex)
+		{
+			if (running)
+				error = ex.toString();
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Opens the RTSP connection and a pair of consecutive RTP/RTCP ports
+	 * and sends SETUP.
+	 * ----------------------------------------------------------------*/
+	private void setup() throws IOException
+	{
+		rtspSocket = new Socket();
+		rtspSocket.connect(server, RTSP_TIMEOUT);
+		rtspSocket.setSoTimeout(RTSP_TIMEOUT);
+		rtspSocket.setTcpNoDelay(true);
+		rtspReader = new BufferedReader(new InputStreamReader(rtspSocket.getInputStream(), StandardCharsets.ISO_8859_1));
+		rtspWriter = new OutputStreamWriter(rtspSocket.getOutputStream(), StandardCharsets.ISO_8859_1);
+
+		for (int attempt = 0; rtcpChannel == null; attempt++)
+		{
+			rtpChannel = DatagramChannel.open().bind(new InetSocketAddress(server.getAddress(), 0));
+			int port = rtpChannel.socket().getLocalPort();
+			try {
+				rtcpChannel = DatagramChannel.open().bind(new InetSocketAddress(server.getAddress(), port + 1));
+			}
+			catch (BindException be) {
+				rtpChannel.close();
+				if (attempt == 100)
+					throw be;
+			}
+		}
+		int port = rtpChannel.socket().getLocalPort();
+
+		request("SETUP", "Transport: RTP/AVP;unicast;client_port=" + port + "-" + (port + 1));
+		session = responseHeaders.get("session");
+		if (session == null)
+			throw new IOException("no session in the SETUP response");
+
+		// RTCP goes to the second server port, or to the shared receiver port of the bundled client
+		int rtcpPort = Server.RTCP_RCV_PORT;
+		String transport = responseHeaders.get("transport");
+		int start = transport != null ? transport.indexOf("server_port=") : -1;
+		if (start >= 0)
+		{
+			String[] ports = transport.substring(start + "server_port=".length()).split("[-;]");
+			if (ports.length > 1)
+				rtcpPort = Integer.parseInt(ports[1].trim());
+		}
+		rtcpTarget = new InetSocketAddress(server.getAddress(), rtcpPort);
+	}
+
+	/**----------------------------------------------------------------
+	 * Sends PLAY, from the start of the video on a replay. The reception
+	 * state tied to the media clock is reset on a replay.
+	 * ----------------------------------------------------------------*/
+	private void play(boolean replay) throws IOException
+	{
+		if (!replay)
+		{
+			request("PLAY", "Session: " + session);
+			return;
+		}
+
+		request("PLAY", "Session: " + session + CRLF + "Range: npt=0.000-");
+		hasSenderReport = false;
+		hasTransit = false;
+		hasLastFrame = false;
+		frameOpen = false;
+		if (inWindow(System.nanoTime()))
+			replays++;
+	}
+
+	/**----------------------------------------------------------------
+	 * Sends a request and reads its response, whose headers are kept in
+	 * responseHeaders (lower case names). Throws on errors.
+	 * ----------------------------------------------------------------*/
+	private void request(String method, String headers) throws IOException
+	{
+		// two headers at most (but on replays), so a server expecting the bundled client's three-line
+		// requests reads them as well; the empty line ends them for the others
+		rtspWriter.write(method + " " + url + " RTSP/1.0" + CRLF
+				+ "CSeq: " + (++cseq) + CRLF
+				+ headers + CRLF + CRLF);
+		rtspWriter.flush();
+
+		String status = rtspReader.readLine();
+		if (status == null)
+			throw new IOException("connection closed by the server");
+		responseHeaders.clear();
+		String line;
+		int count = 0;
+		while ((line = rtspReader.readLine()) != null && !line.isEmpty())
+		{
+			int colon = line.indexOf(':');
+			if (colon > 0)
+				responseHeaders.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			if (legacyFraming && ++count == 2)
+				break;	// the bundled client's responses have three lines and no empty line
+		}
+		if (!status.startsWith("RTSP/1.0 200"))
+			throw new IOException(method + ": " + status);
+	}
+
+	/**----------------------------------------------------------------
+	 * Drains the channel, dropping or delaying the packets as configured.
+	 * ----------------------------------------------------------------*/
+	private void receive(DatagramChannel channel, boolean rtcp) throws IOException
+	{
+		buffer.clear();
+		while (channel.receive(buffer) != null)
+		{
+			long now = System.nanoTime();
+			buffer.flip();
+			if (!rtcp && lossRate > 0 && random.nextDouble() < lossRate)
+			{
+				if (inWindow(now))
+					dropped++;
+			}
+			else if (delay > 0 || delayJitter > 0)
+			{
+				long release = now + delay + (delayJitter > 0 ? (long)(random.nextDouble() * delayJitter) : 0);
+				byte[] data = new byte[buffer.remaining()];
+				buffer.get(data);
+				delayLine.add(new Delayed(data, rtcp, release, delayedCount++));
+			}
+			else
+			{
+				process(buffer, rtcp, now);
+			}
+			buffer.clear();
+		}
+	}
+
+	private void process(ByteBuffer packet, boolean rtcp, long arrival)
+	{
+		if (rtcp)
+			onSenderReport(packet, arrival);
+		else
+			onRtpPacket(packet, arrival);
+	}
+
+	/**----------------------------------------------------------------
+	 * Keeps the NTP/RTP time mapping of a Sender Report.
+	 * ----------------------------------------------------------------*/
+	private void onSenderReport(ByteBuffer packet, long arrival)
+	{
+		if (packet.remaining() < RtcpPacket.HEADER_SIZE + RtcpPacket.SENDER_INFO_SIZE
+				|| (packet.get(0) & 0xC0) != 0x80 || (packet.get(1) & 0xFF) != RtcpPacket.SR)
+			return;
+		if (started && packet.getInt(4) != sourceSsrc)
+			return;
+		senderNtp = packet.getLong(RtcpPacket.HEADER_SIZE);
+		senderRtpTime = packet.getInt(RtcpPacket.HEADER_SIZE + 8);
+		senderArrival = arrival;
+		hasSenderReport = true;
+	}
+
+	/**----------------------------------------------------------------
+	 * Validates an RTP/JPEG packet and updates the loss, jitter and frame
+	 * statistics. Packets arriving out of order are counted, not reassembled.
+	 * ----------------------------------------------------------------*/
+	private void onRtpPacket(ByteBuffer packet, long arrival)
+	{
+		boolean measured = inWindow(arrival);
+		int length = packet.remaining();
+		if (length < RtpPacket.HEADER_SIZE + JpegPacketizer.JPEG_HEADER_SIZE
+				|| (packet.get(0) & 0xC0) != 0x80 || (packet.get(1) & 0x7F) != Server.MJPEG_TYPE)
+		{
+			if (measured)
+				malformed++;
+			return;
+		}
+
+		int seq = packet.getShort(2) & 0xFFFF;
+		int timestamp = packet.getInt(4);
+		int source = packet.getInt(8);
+		lastArrival = arrival;
+		if (!started)
+		{
+			started = true;
+			sourceSsrc = source;
+			baseSeq = seq;
+			maxSeq = seq;
+		}
+		else if (source != sourceSsrc)
+		{
+			if (measured)
+				malformed++;
+			return;
+		}
+		else
+		{
+			int delta = (short)(seq - maxSeq);
+			if (delta <= 0)
+			{
+				received++;
+				if (measured)
+				{
+					late++;
+					lost = Math.max(0, lost - 1);
+				}
+				return;
+			}
+			if (seq < maxSeq)
+				cycles += 65536;
+			maxSeq = seq;
+			if (measured)
+				lost += delta - 1;
+		}
+		received++;
+		if (measured)
+			packets++;
+
+		// interarrival jitter (RFC 3550 6.4.1), arrival time in RTP clock units
+		int transit = (int)(arrival / 1000 * (JpegPacketizer.RTP_CLOCK_RATE / 1000) / 1000) - timestamp;
+		if (hasTransit)
+			jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+		lastTransit = transit;
+		hasTransit = true;
+
+		// fragments of a frame share the timestamp and follow each other without gaps
+		int offset = packet.getInt(RtpPacket.HEADER_SIZE) & 0xFFFFFF;
+		int type = packet.get(RtpPacket.HEADER_SIZE + 4) & 0xFF;
+		int q = packet.get(RtpPacket.HEADER_SIZE + 5) & 0xFF;
+		int header = RtpPacket.HEADER_SIZE + JpegPacketizer.JPEG_HEADER_SIZE;
+		if (type >= 64 && type < 128)
+			header += JpegPacketizer.RESTART_HEADER_SIZE;
+		if (q >= 128 && offset == 0 && header + JpegPacketizer.QTABLE_HEADER_SIZE <= length)
+			header += JpegPacketizer.QTABLE_HEADER_SIZE + (packet.getShort(header + 2) & 0xFFFF);
+		if (header > length)
+		{
+			if (measured)
+				malformed++;
+			return;
+		}
+
+		if (!frameOpen || timestamp != frameTimestamp)
+		{
+			if (frameOpen && measured)
+				brokenFrames++;		// the last packet of the previous frame never came
+			frameOpen = true;
+			frameIntact = true;
+			frameTimestamp = timestamp;
+			nextOffset = 0;
+		}
+		if (offset != nextOffset)
+			frameIntact = false;
+		nextOffset = offset + length - header;
+
+		if ((packet.get(1) & 0x80) != 0)
+		{
+			frameOpen = false;
+			if (frameIntact)
+				onFrame(timestamp, arrival, measured);
+			else if (measured)
+				brokenFrames++;
+		}
+	}
+
+	private void onFrame(int timestamp, long arrival, boolean measured)
+	{
+		if (measured)
+		{
+			frames++;
+			if (hasSenderReport)
+			{
+				long frameNtp = senderNtp + ((long)(timestamp - senderRtpTime) << 32) / JpegPacketizer.RTP_CLOCK_RATE;
+				latency.add((long)((RtcpPacket.ntpTimestamp(arrival) - frameNtp) * 1e6 / 4294967296.0));
+			}
+			if (hasLastFrame)
+			{
+				long expected = (long)(timestamp - lastFrameTimestamp) * 1000000L / JpegPacketizer.RTP_CLOCK_RATE;
+				interFrame.add(Math.abs((arrival - lastFrameArrival) / 1000 - expected));
+			}
+		}
+		hasLastFrame = true;
+		lastFrameTimestamp = timestamp;
+		lastFrameArrival = arrival;
+	}
+
+	/**----------------------------------------------------------------
+	 * Sends a Receiver Report about the stream (RFC 3550 6.4.2, A.3).
+	 * ----------------------------------------------------------------*/
+	private void sendReceiverReport(long now) throws IOException
+	{
+		if (!started)
+			return;
+
+		int extendedMax = cycles + maxSeq;
+		int expected = extendedMax - baseSeq + 1;
+		int expectedInterval = expected - expectedPrior;
+		int receivedInterval = received - receivedPrior;
+		expectedPrior = expected;
+		receivedPrior = received;
+		float fractionLost = expectedInterval <= 0 ? 0 : (expectedInterval - receivedInterval) / (float) expectedInterval;
+
+		int lsr = 0;
+		int dlsr = 0;
+		if (hasSenderReport)
+		{
+			lsr = RtcpPacket.ntpMiddle(senderNtp);
+			dlsr = (int)((now - senderArrival) * 65536 / 1000000000L);
+		}
+
+		reportBuffer.clear();
+		RtcpPacket.writeReceiverReport(reportBuffer, ssrc, sourceSsrc, fractionLost, expected - received,
+				extendedMax, (int) jitter, lsr, dlsr);
+		reportBuffer.flip();
+		rtcpChannel.send(reportBuffer, rtcpTarget);
+	}
+
+	private boolean inWindow(long time) {
+		return time - windowStart >= 0 && time - windowEnd < 0;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the interarrival jitter last reported, in ms.
+	 * ----------------------------------------------------------------*/
+	public double getJitter() {
+		return jitter * 1000 / JpegPacketizer.RTP_CLOCK_RATE;
+	}
+
+	private void close()
+	{
+		try
+		{
+			if (selector != null)
+				selector.close();
+			if (rtpChannel != null)
+				rtpChannel.close();
+			if (rtcpChannel != null)
+				rtcpChannel.close();
+			if (rtspSocket != null)
+				rtspSocket.close();
+		}
+		catch (IOException ioe)
+		{
+			System.out.println("Exception caught: " + ioe);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * A packet held back by the injected delay.
+	 * ----------------------------------------------------------------*/
+	private static class Delayed implements Comparable<Delayed>
+	{
+		final byte[] data;
+		final boolean rtcp;
+		final long release;		// System.nanoTime() the packet is processed at
+		final long order;		// arrival order, keeps packets released at the same time in order
+
+		Delayed(byte[] data, boolean rtcp, long release, long order)
+		{
+			this.data = data;
+			this.rtcp = rtcp;
+			this.release = release;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Delayed other)
+		{
+			int c = Long.compare(release - other.release, 0);
+			return c != 0 ? c : Long.compare(order, other.order);
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Growable list of samples with percentiles.
+	 * ----------------------------------------------------------------*/
+	static class Samples
+	{
+		private long[] values = new long[256];
+		private int count;
+		private boolean sorted = true;
+
+		void add(long value)
+		{
+			if (count == values.length)
+				values = Arrays.copyOf(values, count * 2);
+			values[count++] = value;
+			sorted = false;
+		}
+
+		void addAll(Samples other)
+		{
+			for (int i = 0; i < other.count; i++)
+				add(other.values[i]);
+		}
+
+		int size() {
+			return count;
+		}
+
+		/**----------------------------------------------------------------
+		 * Returns the value below which the given fraction of the samples
+		 * falls (nearest rank), 0 without samples.
+		 * ----------------------------------------------------------------*/
+		long percentile(double fraction)
+		{
+			if (count == 0)
+				return 0;
+			if (!sorted)
+			{
+				Arrays.sort(values, 0, count);
+				sorted = true;
+			}
+			int rank = (int) Math.ceil(fraction * count);
+			return values[Math.max(0, Math.min(count, rank) - 1)];
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package org.server;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Embeddable streaming server: the RTSP server and its sessions, without any GUI toolkit.
+ *
+ *	StreamServer server = new StreamServer(new ServerConfig().setRtspPort(8554));
+ *	server.addListener(listener);
+ *	server.start();
+ *	...
+ *	server.stop();
+ *
+ * The accept loop runs on a daemon thread; awaitTermination() keeps a process alive while the server runs.
+ * A server is started once, a stopped server can not be restarted. Servers running in the same JVM must share
+ * their settings but the ports, see ServerConfig.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class StreamServer
+{
+	/**--------------------------------------------------------------------------------------------
+	 * Lifecycle listener. onStarted() is invoked on the thread calling start(), the session events
+	 * on the RTSP event loop threads and onStopped() on the accept thread, once the sessions are
+	 * closed. error is null for a server stopped by stop().
+	 * --------------------------------------------------------------------------------------------*/
+	public interface Listener
+	{
+		void onStarted(StreamServer server);
+		void onSessionOpened(StreamServer server, Server session);
+		void onSessionClosed(StreamServer server, Server session);
+		void onStopped(StreamServer server, Throwable error);
+	}
+
+	/**----------------------------------------------------------------
+	 * Listener with empty methods, for listeners interested in a few events.
+	 * ----------------------------------------------------------------*/
+	public static class Adapter implements Listener
+	{
+		@Override
+		public void onStarted(StreamServer server) {
+		}
+
+		@Override
+		public void onSessionOpened(StreamServer server, Server session) {
+		}
+
+		@Override
+		public void onSessionClosed(StreamServer server, Server session) {
+		}
+
+		@Override
+		public void onStopped(StreamServer server, Throwable error) {
+		}
+	}
+
+	private static int runningServers;		// servers started and not terminated yet, guarded by StreamServer.class
+
+	private final ServerConfig config;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private SessionManager sessionManager;
+	private RtspServer rtspServer;
+	private ServerMetrics metrics;
+	private MetricsEndpoint metricsEndpoint;
+	private volatile boolean running;
+	private boolean started;
+
+	public StreamServer(ServerConfig config)
+	{
+		this.config = config;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Applies the configuration, binds the RTSP port and the metrics port, if any, and starts
+	 * accepting clients. Throws if a port can not be bound; the server is then stopped. Throws
+	 * IllegalStateException if another server runs with different settings.
+	 * --------------------------------------------------------------------------------------------*/
+	public synchronized void start() throws IOException
+	{
+		if (started)
+			throw new IllegalStateException("server already started");
+		synchronized (StreamServer.class)
+		{
+			if (runningServers > 0 && !config.isApplied())
+				throw new IllegalStateException("another server runs with different settings, which are process-wide");
+			config.apply();
+			runningServers++;
+		}
+		started = true;
+
+		sessionManager = new SessionManager();
+		sessionManager.setListener(new SessionManager.Listener() {
+			@Override
+			public void onSessionOpened(Server session)
+			{
+				for (Listener listener : listeners)
+					listener.onSessionOpened(StreamServer.this, session);
+			}
+
+			@Override
+			public void onSessionClosed(Server session)
+			{
+				for (Listener listener : listeners)
+					listener.onSessionClosed(StreamServer.this, session);
+			}
+		});
+
+		rtspServer = new RtspServer(config.rtspPort, sessionManager);
+		try
+		{
+			if (config.metricsPort >= 0)
+			{
+				metricsEndpoint = new MetricsEndpoint(sessionManager);
+				metricsEndpoint.start(config.metricsPort);
+			}
+			rtspServer.bind();
+		}
+		catch (IOException ioe)
+		{
+			terminate(ioe);
+			throw ioe;
+		}
+
+		metrics = new ServerMetrics(sessionManager);
+		metrics.register(rtspServer.getLocalPort());
+
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				Throwable error = null;
+				try {
+					rtspServer.run();	// accept loop, returns once stopped
+				}
+				catch (RuntimeException ex) {
+					error = ex;
+				}
+				finally {
+					terminate(error);
+				}
+			}
+		}, "rtsp-accept");
+		thread.setDaemon(true);
+		thread.start();
+
+		Log.info("Stream server started: " + config);
+		for (Listener listener : listeners)
+			listener.onStarted(this);
+	}
+
+	/**----------------------------------------------------------------
+	 * Stops accepting clients and closes all sessions, asynchronously
+	 * (see awaitTermination()).
+	 * ----------------------------------------------------------------*/
+	public synchronized void stop()
+	{
+		if (rtspServer != null)
+			rtspServer.stop();
+	}
+
+	/**----------------------------------------------------------------
+	 * Waits until the server is stopped and its sessions closed.
+	 * ----------------------------------------------------------------*/
+	public void awaitTermination() throws InterruptedException {
+		terminated.await();
+	}
+
+	/**----------------------------------------------------------------
+	 * Waits at most the given time, returns true if the server stopped.
+	 * ----------------------------------------------------------------*/
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	private void terminate(Throwable error)
+	{
+		synchronized (StreamServer.class) {
+			runningServers--;
+		}
+		running = false;
+		sessionManager.shutdown();
+		if (metricsEndpoint != null)
+			metricsEndpoint.stop();
+		if (metrics != null)
+			metrics.unregister();
+		Log.info("Stream server stopped");
+		for (Listener listener : listeners)
+			listener.onStopped(this, error);
+		terminated.countDown();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bound RTSP port, -1 if the server is not started.
+	 * ----------------------------------------------------------------*/
+	public int getPort() {
+		return rtspServer != null ? rtspServer.getLocalPort() : -1;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the bound port of the metrics endpoint, -1 if none.
+	 * ----------------------------------------------------------------*/
+	public int getMetricsPort() {
+		return metricsEndpoint != null ? metricsEndpoint.getPort() : -1;
+	}
+
+	public ServerConfig getConfig() {
+		return config;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the session registry, null before start().
+	 * ----------------------------------------------------------------*/
+	public SessionManager getSessionManager() {
+		return sessionManager;
+	}
+}
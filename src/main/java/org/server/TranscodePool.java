@@ -0,0 +1,82 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Fixed pool of JPEG transcoding workers shared by all streams.
+ * Every worker thread owns its ImageEncoder (and thus its ImageWriter), so encoding scales with
+ * the number of cores without any sharing between workers. Work is submitted through TranscodeRings,
+ * which bound how far each stream may run ahead.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class TranscodePool
+{
+	static int TRANSCODE_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private final static TranscodePool shared = new TranscodePool(TRANSCODE_THREADS);
+
+	private final ExecutorService workers;
+	private final ThreadLocal<ImageEncoder> encoders = new ThreadLocal<ImageEncoder>() {
+		@Override
+		protected ImageEncoder initialValue() {
+			return new ImageEncoder(QualityLadder.qualityOf(1));
+		}
+	};
+
+	public TranscodePool(int threads)
+	{
+		final AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "transcoder-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the pool shared by all streams of the process.
+	 * ----------------------------------------------------------------*/
+	public static TranscodePool getShared() {
+		return shared;
+	}
+
+	/**----------------------------------------------------------------
+	 * Encodes the image at the given quality level on a worker thread
+	 * and hands the result (null on failure) to the ring.
+	 * ----------------------------------------------------------------*/
+	void submit(final TranscodeRing ring, final long ticket, final ByteBuffer image, final int quality)
+	{
+		workers.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				byte[] bytes = new byte[image.remaining()];
+				image.duplicate().get(bytes);
+
+				byte[] result = null;
+				try
+				{
+					ImageEncoder encoder = encoders.get();
+					encoder.setCompressionQuality(QualityLadder.qualityOf(quality));
+					result = encoder.compress(bytes);
+				}
+				catch (IllegalStateException ise)
+				{
+					Log.error("Exception caught: " + ise);
+				}
+				ring.complete(ticket, result);
+			}
+		});
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+}
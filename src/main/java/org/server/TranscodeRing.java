@@ -0,0 +1,113 @@
+package org.server;
+
+import java.nio.ByteBuffer;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Bounded look-ahead of frames being transcoded for one stream.
+ *
+ * The reader submits frames ahead of the send cursor, at most "capacity" frames ahead; offer() refuses
+ * beyond that, which is the backpressure to the reader. The sender polls the frame it is about to send
+ * and never waits: a frame that is not encoded yet is reported as missing, so the caller sends it
+ * unencoded and encoding never delays a scheduled send.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class TranscodeRing
+{
+	static int LOOKAHEAD = 8;		// frames transcoded ahead of the send cursor
+
+	private static final class Slot
+	{
+		long ticket;		// identifies the submission, stale worker results are dropped
+		int frame = -1;
+		int quality;
+		byte[] result;
+		boolean done;
+	}
+
+	private final TranscodePool pool;
+	private final Slot[] slots;
+	private int head;			// next frame the sender polls
+	private int tail;			// next frame the reader submits
+	private long nextTicket;
+	private int quality;		// level of the frames in flight
+
+	public TranscodeRing(TranscodePool pool, int capacity)
+	{
+		this.pool = pool;
+		this.slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++)
+			slots[i] = new Slot();
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the next frame number the reader should submit.
+	 * ----------------------------------------------------------------*/
+	public synchronized int nextFrame() {
+		return tail;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns true if another frame can be submitted without blocking.
+	 * ----------------------------------------------------------------*/
+	public synchronized boolean hasCapacity() {
+		return tail - head < slots.length;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Submits the next frame (nextFrame()) for transcoding at the given level.
+	 * Returns false without submitting if the look-ahead is full.
+	 * --------------------------------------------------------------------------------------------*/
+	public synchronized boolean offer(ByteBuffer image, int quality)
+	{
+		if (tail - head >= slots.length)
+			return false;
+
+		this.quality = quality;
+		Slot slot = slots[tail % slots.length];
+		slot.ticket = ++nextTicket;
+		slot.frame = tail;
+		slot.quality = quality;
+		slot.result = null;
+		slot.done = false;
+		tail++;
+
+		pool.submit(this, slot.ticket, image, quality);
+		return true;
+	}
+
+	/**--------------------------------------------------------------------------------------------
+	 * Returns the encoded frame if it was transcoded at the given level and is ready, null otherwise.
+	 * Never blocks. The sender then moves past the frame: earlier frames are discarded and, after a
+	 * seek or a change of level, the look-ahead restarts right after the polled frame.
+	 * --------------------------------------------------------------------------------------------*/
+	public synchronized byte[] poll(int frame, int quality)
+	{
+		byte[] result = null;
+		if (frame >= head && frame < tail)
+		{
+			Slot slot = slots[frame % slots.length];
+			if (slot.frame == frame && slot.quality == quality && slot.done)
+				result = slot.result;
+		}
+
+		head = frame + 1;
+		if (tail < head || quality != this.quality)
+			tail = head;
+		return result;
+	}
+
+	/**----------------------------------------------------------------
+	 * Worker callback, drops results of slots reused in the meantime.
+	 * ----------------------------------------------------------------*/
+	synchronized void complete(long ticket, byte[] result)
+	{
+		for (Slot slot : slots)
+		{
+			if (slot.ticket == ticket)
+			{
+				slot.result = result;
+				slot.done = true;
+				return;
+			}
+		}
+	}
+}
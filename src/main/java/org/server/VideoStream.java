@@ -1,11 +1,18 @@
 package org.server;
 
-import java.io.FileInputStream;
+import java.nio.ByteBuffer;
 
+/**----------------------------------------------------------------------------------------------------------------
+ * Per-session cursor over a shared, memory-mapped MJPEG file and its quality ladder.
+ * Frames ready to be packetized are taken from the shared FrameCache when possible.
+ * ----------------------------------------------------------------------------------------------------------------*/
 public class VideoStream
 {
-	FileInputStream fis;	//video file
-	int frameNumber;		//current frame nb
+	final MjpegFile file;	//video file
+	final QualityLadder ladder;	//pre-encoded quality variants of the video file
+	int frameNumber;		//current frame nb (0-based index of the next frame)
+	private final FrameCache cache;
+	private TranscodeRing transcodeRing;	//live re-encoding look-ahead, created on first use
 
 	//-----------------------------------
 	// constructor
@@ -13,26 +20,111 @@ public class VideoStream
 	public VideoStream(String filename) throws Exception
 	{
 		// init variables
-		fis = new FileInputStream(filename);
+		ladder = QualityLadder.open(filename);
+		file = ladder.original;
 		frameNumber = 0;
+		cache = FrameCache.getShared();
 	}
 
 	//-----------------------------------
-	// returns the next frame as an array of byte and the size of the frame
+	// returns true if the video has frames left
+	//-----------------------------------
+	public boolean hasNextFrame() {
+		return frameNumber < file.getFrameCount();
+	}
+
+	//-----------------------------------
+	// returns a zero-copy view of the next frame, null at the end of the video
+	//-----------------------------------
+	public ByteBuffer getNextFrame()
+	{
+		if (!hasNextFrame())
+			return null;
+		return file.getFrame(frameNumber++);
+	}
+
+	//-----------------------------------
+	// copies the next frame into the array and returns its size, -1 at the end of the video
 	//-----------------------------------
 	public int getNextFrame(byte[] frame) throws Exception
 	{
-		int length = 0;
-		String length_string;
-		byte[] frameLength = new byte[5];
+		ByteBuffer view = getNextFrame();
+		if (view == null)
+			return -1;
+		int length = view.remaining();
+		view.get(frame, 0, length);
+		return length;
+	}
+
+	//-----------------------------------
+	// returns the next frame parsed for RTP/JPEG at the given quality level (0 = original),
+	// from the shared cache or by parsing on a miss. The frame is read from the pre-encoded
+	// variant of the level; only while that variant is being built, frames are re-encoded by
+	// the transcoding pool ahead of the cursor. A frame not encoded in time is sent at the
+	// original quality rather than delaying the send.
+	// Returns null if the frame can not be sent, the cursor advances in any case.
+	//-----------------------------------
+	public JpegFrame getNextJpegFrame(int quality)
+	{
+		MjpegFile variant = ladder.getVariant(quality);
+		FrameCache.Key key = variant != null ? new FrameCache.Key(variant, frameNumber, 0) : new FrameCache.Key(file, frameNumber, quality);
+		JpegFrame frame = cache.get(key);
+		if (frame != null)
+		{
+			frameNumber++;
+			return frame;
+		}
 
-		//read current frame length
-		fis.read(frameLength, 0, 5);
+		if (variant != null)
+		{
+			frame = JpegFrame.parse(variant.getFrame(frameNumber++));
+			return frame == null ? null : cache.put(key, frame);
+		}
 
-		//transform frame_length to integer
-		length_string = new String(frameLength);
-		length = Integer.parseInt(length_string);
+		if (transcodeRing == null)
+			transcodeRing = new TranscodeRing(TranscodePool.getShared(), TranscodeRing.LOOKAHEAD);
+
+		byte[] encoded = transcodeRing.poll(frameNumber, quality);
+		if (encoded != null && (frame = JpegFrame.parse(ByteBuffer.wrap(encoded))) != null)
+		{
+			frameNumber++;
+			frame = cache.put(key, frame);
+		}
+		else
+		{
+			key = new FrameCache.Key(file, frameNumber, 0);
+			frame = cache.get(key);
+			if (frame == null && (frame = JpegFrame.parse(file.getFrame(frameNumber))) != null)
+				frame = cache.put(key, frame);
+			frameNumber++;
+		}
+
+		// keep the workers busy with the frames ahead of the cursor
+		int next;
+		while (transcodeRing.hasCapacity() && (next = transcodeRing.nextFrame()) < file.getFrameCount())
+			transcodeRing.offer(file.getFrame(next), quality);
+
+		return frame;
+	}
+
+	//-----------------------------------
+	// moves the cursor past the next frame without reading it
+	//-----------------------------------
+	public void skipFrame()
+	{
+		if (hasNextFrame())
+			frameNumber++;
+	}
+
+	//-----------------------------------
+	// moves the cursor to the given frame (0-based), O(1)
+	//-----------------------------------
+	public void seek(int frame)
+	{
+		frameNumber = Math.max(0, Math.min(frame, file.getFrameCount()));
+	}
 
-		return fis.read(frame, 0, length);
+	public int getFrameCount() {
+		return file.getFrameCount();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,164 @@
+package org.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Congestion control strategies replaying the feedback traces of this package (see CongestionTrace).
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class CongestionControlTest
+{
+	private final static int INITIAL_BITRATE = 4000000;	// bits/s
+	private final static String[] STRATEGIES = { "loss", "rate" };
+	private final static int CLEAN_END = 9;				// last clean report of the congested traces
+
+	/**----------------------------------------------------------------
+	 * Replays the trace against a new instance of the strategy.
+	 * ----------------------------------------------------------------*/
+	private static int[] replay(String trace, String strategy) throws IOException {
+		return CongestionTrace.load(trace).replay(CongestionControl.create(strategy, INITIAL_BITRATE));
+	}
+
+	private static int last(int[] targets) {
+		return targets[targets.length - 1];
+	}
+
+	/**----------------------------------------------------------------
+	 * TFRC throughput equation of RFC 5348 (bits/s).
+	 * ----------------------------------------------------------------*/
+	private static double tcpFriendlyRate(double p, double rttMs)
+	{
+		double r = rttMs / 1000;
+		return RateControl.PACKET_SIZE / (r * Math.sqrt(2 * p / 3) + 4 * r * 3 * Math.sqrt(3 * p / 8) * p * (1 + 32 * p * p));
+	}
+
+	@Test
+	public void parsesTraceLines() throws IOException
+	{
+		CongestionTrace trace = CongestionTrace.parse(new StringReader("# comment\n\n0 0 -1 0\n 1000  0.25 40.5 3 \n"));
+		assertEquals(2, trace.size());
+		assertEquals(1000, trace.times[1]);
+		assertEquals(0.25f, trace.losses[1], 0);
+		assertEquals(-1, trace.rtts[0], 0);
+		assertEquals(40.5, trace.rtts[1], 0);
+		assertEquals(3, trace.jitters[1], 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMalformedTraceLine() throws IOException {
+		CongestionTrace.parse(new StringReader("0 0 20\n"));
+	}
+
+	@Test
+	public void replaysDeterministically() throws IOException
+	{
+		for (String strategy : STRATEGIES)
+			assertArrayEquals(strategy, replay("heavy-loss.trace", strategy), replay("heavy-loss.trace", strategy));
+	}
+
+	@Test
+	public void cleanPathNeverBacksOff() throws IOException
+	{
+		for (String strategy : STRATEGIES)
+		{
+			int[] targets = replay("clean.trace", strategy);
+			for (int i = 1; i < targets.length; i++)
+				assertTrue(strategy + " report " + i, targets[i] >= targets[i - 1] && targets[i] >= INITIAL_BITRATE);
+		}
+
+		int[] loss = replay("clean.trace", "loss");
+		assertEquals(INITIAL_BITRATE, last(loss));
+
+		int[] rate = replay("clean.trace", "rate");
+		for (int i = 1; i < 10; i++)
+			assertTrue("report " + i, rate[i] > rate[i - 1]);
+		assertEquals(RateControl.MAX_BITRATE, last(rate));
+	}
+
+	@Test
+	public void queueBuildUpBacksOff() throws IOException
+	{
+		for (String strategy : STRATEGIES)
+		{
+			// the smoothed RTT gradient signals the queue from its second report on
+			int[] targets = replay("queue-build-up.trace", strategy);
+			for (int i = CLEAN_END + 2; i < targets.length; i++)
+				assertTrue(strategy + " report " + i, targets[i] <= targets[CLEAN_END]);
+		}
+
+		// the loss buckets ignore delay
+		for (int target : replay("queue-build-up.trace", "loss"))
+			assertEquals(INITIAL_BITRATE, target);
+
+		// the rate controller backs off while the queue grows, then down to the minimum under a standing queue
+		int[] rate = replay("queue-build-up.trace", "rate");
+		for (int i = CLEAN_END + 2; i < CLEAN_END + 11; i++)
+			assertTrue("report " + i, rate[i] < rate[i - 1]);
+		assertTrue(rate[CLEAN_END + 10] < rate[CLEAN_END] / 2);
+		assertEquals(RateControl.MIN_BITRATE, last(rate));
+	}
+
+	@Test
+	public void lightLossConvergesBelowCleanRate() throws IOException
+	{
+		for (String strategy : STRATEGIES)
+		{
+			int[] targets = replay("light-loss.trace", strategy);
+			assertTrue(strategy, last(targets) < targets[CLEAN_END]);
+			assertEquals(strategy + " converged", targets[targets.length - 2], last(targets));
+		}
+
+		assertEquals((int)(INITIAL_BITRATE * 0.8), last(replay("light-loss.trace", "loss")));
+
+		// capped by the TCP-friendly rate from the first lossy report, and converging to it
+		int[] rate = replay("light-loss.trace", "rate");
+		double expected = tcpFriendlyRate(0.05, 20);
+		for (int i = CLEAN_END + 1; i < rate.length; i++)
+			assertTrue("report " + i, rate[i] <= expected + 1);
+		assertEquals(expected, last(rate), expected * 0.01);
+	}
+
+	@Test
+	public void heavyLossBacksOffAndRecovers() throws IOException
+	{
+		int lossEnd = CLEAN_END + 10;
+		for (String strategy : STRATEGIES)
+		{
+			int[] targets = replay("heavy-loss.trace", strategy);
+			for (int i = CLEAN_END + 1; i <= lossEnd; i++)
+				assertTrue(strategy + " report " + i, targets[i] <= INITIAL_BITRATE * 0.6);
+			assertTrue(strategy + " recovered", last(targets) >= INITIAL_BITRATE);
+		}
+
+		int[] loss = replay("heavy-loss.trace", "loss");
+		assertEquals((int)(INITIAL_BITRATE * 0.6), loss[lossEnd]);
+		assertEquals(INITIAL_BITRATE, loss[lossEnd + 1]);
+
+		// the TCP-friendly rate of 30% loss is below the minimum: the first lossy report cuts to it
+		int[] rate = replay("heavy-loss.trace", "rate");
+		assertTrue(tcpFriendlyRate(0.3, 60) < RateControl.MIN_BITRATE);
+		for (int i = CLEAN_END + 1; i <= lossEnd; i++)
+			assertEquals(RateControl.MIN_BITRATE, rate[i]);
+		for (int i = lossEnd + 2; i < lossEnd + 60; i++)
+			assertTrue("report " + i, rate[i] > rate[i - 1]);
+	}
+
+	@Test
+	public void createsStrategiesByName()
+	{
+		assertTrue(CongestionControl.create("loss", INITIAL_BITRATE) instanceof LossBasedControl);
+		assertTrue(CongestionControl.create("rate", INITIAL_BITRATE) instanceof RateControl);
+		assertEquals(INITIAL_BITRATE, CongestionControl.create("rate", INITIAL_BITRATE).getTargetBitrate());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownStrategy() {
+		CongestionControl.create("bbr", INITIAL_BITRATE);
+	}
+}
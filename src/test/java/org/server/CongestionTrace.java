@@ -0,0 +1,119 @@
+package org.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Feedback trace replayed deterministically against congestion control strategies.
+ *
+ * A trace has one reception report per line: "time(ms) fractionLost rtt(ms) jitter(ms)", where rtt is -1 if
+ * not measured. Empty lines and lines starting with '#' are skipped. The strategies only see the trace's time.
+ * The traces of the tests are resources of this package, with one report per second from time 0.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class CongestionTrace
+{
+	final long[] times;			// ms
+	final float[] losses;
+	final double[] rtts;		// ms, -1 if not measured
+	final double[] jitters;		// ms
+
+	private CongestionTrace(List<double[]> reports)
+	{
+		int count = reports.size();
+		times = new long[count];
+		losses = new float[count];
+		rtts = new double[count];
+		jitters = new double[count];
+		for (int i = 0; i < count; i++)
+		{
+			double[] report = reports.get(i);
+			times[i] = (long) report[0];
+			losses[i] = (float) report[1];
+			rtts[i] = report[2];
+			jitters[i] = report[3];
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Parses a trace. Throws IOException on a malformed line.
+	 * ----------------------------------------------------------------*/
+	static CongestionTrace parse(Reader trace) throws IOException
+	{
+		List<double[]> reports = new ArrayList<double[]>();
+		BufferedReader reader = new BufferedReader(trace);
+		String line;
+		int number = 0;
+		while ((line = reader.readLine()) != null)
+		{
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] fields = line.split("\\s+");
+			if (fields.length != 4)
+				throw new IOException("line " + number + ": expected time loss rtt jitter: " + line);
+			double[] report = new double[4];
+			try
+			{
+				for (int i = 0; i < 4; i++)
+					report[i] = Double.parseDouble(fields[i]);
+			}
+			catch (NumberFormatException nfe)
+			{
+				throw new IOException("line " + number + ": " + nfe.getMessage());
+			}
+			reports.add(report);
+		}
+		return new CongestionTrace(reports);
+	}
+
+	/**----------------------------------------------------------------
+	 * Loads a trace resource of this package.
+	 * ----------------------------------------------------------------*/
+	static CongestionTrace load(String name) throws IOException
+	{
+		InputStream in = CongestionTrace.class.getResourceAsStream(name);
+		if (in == null)
+			throw new IOException("No trace " + name);
+		Reader reader = new InputStreamReader(in, StandardCharsets.US_ASCII);
+		try {
+			return parse(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**----------------------------------------------------------------
+	 * Parses the trace and replays it, see replay(CongestionControl).
+	 * ----------------------------------------------------------------*/
+	static int[] replay(Reader trace, CongestionControl control) throws IOException {
+		return parse(trace).replay(control);
+	}
+
+	/**----------------------------------------------------------------
+	 * Feeds every report to the strategy, returns the target bitrate
+	 * after each (bits/s).
+	 * ----------------------------------------------------------------*/
+	int[] replay(CongestionControl control)
+	{
+		int[] targets = new int[times.length];
+		for (int i = 0; i < times.length; i++)
+		{
+			control.onFeedback(times[i] * 1000000L, losses[i], rtts[i], jitters[i]);
+			targets[i] = control.getTargetBitrate();
+		}
+		return targets;
+	}
+
+	int size() {
+		return times.length;
+	}
+}
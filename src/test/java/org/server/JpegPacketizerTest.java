@@ -0,0 +1,265 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * JpegFrame parsing and RFC 2435 packetization, on synthetic baseline frames.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class JpegPacketizerTest
+{
+	private final static int MTU = 600;
+	private final static int RTP_JPEG_HEADER = RtpPacket.HEADER_SIZE + JpegPacketizer.JPEG_HEADER_SIZE;
+
+	/**----------------------------------------------------------------
+	 * Builds SOI, DQT (table 0 luma, 1 chroma), SOF0, an optional DRI,
+	 * SOS, the scan data and EOI.
+	 * ----------------------------------------------------------------*/
+	static byte[] jpeg(int width, int height, int lumaSampling, boolean sixteenBit, int restartInterval, int scanLength)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0xFF);
+		out.write(JpegFrame.SOI);
+
+		int tableSize = sixteenBit ? 128 : 64;
+		marker(out, JpegFrame.DQT, 2 * (1 + tableSize));
+		for (int id = 0; id < 2; id++)
+		{
+			out.write((sixteenBit ? 0x10 : 0) | id);
+			for (int i = 0; i < tableSize; i++)
+				out.write(id * 100 + i);
+		}
+
+		marker(out, JpegFrame.SOF0, 15);
+		out.write(8);
+		out.write(height >> 8);
+		out.write(height);
+		out.write(width >> 8);
+		out.write(width);
+		out.write(3);
+		int[][] components = { { 1, lumaSampling, 0 }, { 2, 0x11, 1 }, { 3, 0x11, 1 } };
+		for (int[] component : components)
+		{
+			out.write(component[0]);
+			out.write(component[1]);
+			out.write(component[2]);
+		}
+
+		if (restartInterval > 0)
+		{
+			marker(out, JpegFrame.DRI, 2);
+			out.write(restartInterval >> 8);
+			out.write(restartInterval);
+		}
+
+		marker(out, JpegFrame.SOS, 10);
+		out.write(new byte[] { 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0 }, 0, 10);
+
+		for (int i = 0; i < scanLength; i++)
+			out.write(i % 0xFF);	// never 0xFF, no marker in the scan
+		out.write(0xFF);
+		out.write(JpegFrame.EOI);
+		return out.toByteArray();
+	}
+
+	private static void marker(ByteArrayOutputStream out, int marker, int payloadLength)
+	{
+		out.write(0xFF);
+		out.write(marker);
+		out.write((payloadLength + 2) >> 8);
+		out.write(payloadLength + 2);
+	}
+
+	private static LiveFrame packetize(byte[] jpeg)
+	{
+		LiveFrame frame = new LiveFrame(null);
+		frame.copy(ByteBuffer.wrap(jpeg));
+		assertTrue(frame.packetize(new JpegPacketizer(MTU)));
+		return frame;
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the header of the given packet, as sent.
+	 * ----------------------------------------------------------------*/
+	private static ByteBuffer header(LiveFrame frame, int packet)
+	{
+		ByteBuffer header = ByteBuffer.allocate(JpegPacketizer.MAX_HEADER_LENGTH);
+		frame.writeHeader(packet, header, 1000 + packet, 90000, 0x12345678);
+		header.flip();
+		return header;
+	}
+
+	@Test
+	public void parsesFrameParameters()
+	{
+		byte[] jpeg = jpeg(320, 240, 0x22, false, 0, 1000);
+		JpegFrame frame = JpegFrame.parse(ByteBuffer.wrap(jpeg));
+
+		assertNotNull(frame);
+		assertEquals(320, frame.width);
+		assertEquals(240, frame.height);
+		assertEquals(1, frame.type);
+		assertEquals(0, frame.restartInterval);
+		assertEquals(0, frame.qPrecision);
+		assertEquals(128, frame.qTables.length);
+		assertEquals(jpeg.length - 2 - 1000, frame.scanOffset);
+		assertEquals(1000, frame.scanLength);
+	}
+
+	@Test
+	public void rejectsFramesWithoutScanData()
+	{
+		byte[] empty = jpeg(320, 240, 0x22, false, 0, 0);
+		assertNull("SOS followed by EOI", JpegFrame.parse(ByteBuffer.wrap(empty)));
+
+		ByteBuffer truncated = ByteBuffer.wrap(empty, 0, empty.length - 2).slice();
+		assertNull("truncated after SOS", JpegFrame.parse(truncated));
+	}
+
+	@Test
+	public void rejectsTruncatedSegments()
+	{
+		// SOF0 declaring its 6 header bytes but none of the 3 component specifications, at the end of the data
+		byte[] jpeg = jpeg(320, 240, 0x22, false, 100, 100);
+		int sof = 2 + 4 + 2 * (1 + 64);
+		byte[] sofOnly = Arrays.copyOf(jpeg, sof + 4 + 6);
+		sofOnly[sof + 3] = 2 + 6;
+		assertNull("truncated SOF", JpegFrame.parse(ByteBuffer.wrap(sofOnly)));
+
+		// DRI declaring no interval, at the end of the data
+		int dri = sof + 4 + 6 + 3 * 3;
+		byte[] driOnly = Arrays.copyOf(jpeg, dri + 4);
+		driOnly[dri + 3] = 2;
+		assertNull("truncated DRI", JpegFrame.parse(ByteBuffer.wrap(driOnly)));
+	}
+
+	@Test
+	public void rejectsUnsupportedSampling() {
+		assertNull(JpegFrame.parse(ByteBuffer.wrap(jpeg(320, 240, 0x11, false, 0, 100))));
+	}
+
+	@Test
+	public void splitsScanDataIntoContiguousFragments()
+	{
+		int scanLength = 5000;
+		byte[] jpeg = jpeg(640, 480, 0x21, false, 0, scanLength);
+		LiveFrame frame = packetize(jpeg);
+		JpegPacketizer packetizer = new JpegPacketizer(MTU);
+
+		assertEquals(packetizer.packetCount(frame.frame), frame.packetCount);
+		assertTrue(frame.packetCount > 1);
+
+		int offset = 0;
+		for (int i = 0; i < frame.packetCount; i++)
+		{
+			ByteBuffer header = header(frame, i);
+			assertTrue("packet " + i + " exceeds the MTU", header.remaining() + frame.payloadLength[i] <= MTU);
+
+			// RTP/JPEG main header: type-specific 0, 24-bit fragment offset, type, Q, width / 8, height / 8
+			int jpegHeader = RtpPacket.HEADER_SIZE;
+			assertEquals(0, header.get(jpegHeader));
+			assertEquals(offset, header.getInt(jpegHeader) & 0x00FFFFFF);
+			assertEquals(0, header.get(jpegHeader + 4));
+			assertEquals(JpegPacketizer.DYNAMIC_Q, header.get(jpegHeader + 5) & 0xFF);
+			assertEquals(640 / 8, header.get(jpegHeader + 6) & 0xFF);
+			assertEquals(480 / 8, header.get(jpegHeader + 7) & 0xFF);
+
+			assertEquals(frame.frame.scanOffset + offset, frame.payloadOffset[i]);
+			offset += frame.payloadLength[i];
+		}
+		assertEquals(scanLength, offset);
+	}
+
+	@Test
+	public void setsMarkerOnLastPacketOnly()
+	{
+		LiveFrame frame = packetize(jpeg(640, 480, 0x22, false, 0, 3000));
+		for (int i = 0; i < frame.packetCount; i++)
+		{
+			ByteBuffer header = header(frame, i);
+			assertEquals(2, (header.get(0) & 0xFF) >> 6);
+			assertEquals(Server.MJPEG_TYPE, header.get(1) & 0x7F);
+			assertEquals("marker of packet " + i, i == frame.packetCount - 1, (header.get(1) & 0x80) != 0);
+			assertEquals(1000 + i, header.getShort(2) & 0xFFFF);
+			assertEquals(90000, header.getInt(4));
+			assertEquals(0x12345678, header.getInt(8));
+		}
+	}
+
+	@Test
+	public void sendsQuantizationTablesInFirstPacketOnly()
+	{
+		byte[] jpeg = jpeg(320, 240, 0x22, false, 0, 3000);
+		LiveFrame frame = packetize(jpeg);
+
+		ByteBuffer first = header(frame, 0);
+		assertEquals(RTP_JPEG_HEADER + JpegPacketizer.QTABLE_HEADER_SIZE + 128, first.remaining());
+		first.position(RTP_JPEG_HEADER);
+		assertEquals(0, first.get());			// MBZ
+		assertEquals(0, first.get());			// precision: 8-bit tables
+		assertEquals(128, first.getShort());	// length
+		byte[] tables = new byte[128];
+		first.get(tables);
+		for (int i = 0; i < 64; i++)
+		{
+			assertEquals((byte) i, tables[i]);
+			assertEquals((byte)(100 + i), tables[64 + i]);
+		}
+
+		for (int i = 1; i < frame.packetCount; i++)
+			assertEquals(RTP_JPEG_HEADER, header(frame, i).remaining());
+	}
+
+	@Test
+	public void flagsSixteenBitTables()
+	{
+		LiveFrame frame = packetize(jpeg(320, 240, 0x22, true, 0, 1000));
+		ByteBuffer first = header(frame, 0);
+		first.position(RTP_JPEG_HEADER);
+		assertEquals(0, first.get());
+		assertEquals(3, first.get());		// both tables 16-bit
+		assertEquals(256, first.getShort());
+	}
+
+	@Test
+	public void addsRestartHeaderToEveryPacket()
+	{
+		LiveFrame frame = packetize(jpeg(320, 240, 0x21, false, 40, 3000));
+		assertEquals(64, frame.frame.type);
+		assertTrue(frame.packetCount > 1);
+
+		for (int i = 0; i < frame.packetCount; i++)
+		{
+			ByteBuffer header = header(frame, i);
+			assertEquals(64, header.get(RtpPacket.HEADER_SIZE + 4) & 0xFF);
+			int restart = RTP_JPEG_HEADER;
+			assertEquals(40, header.getShort(restart) & 0xFFFF);	// restart interval
+			assertEquals(0xFFFF, header.getShort(restart + 2) & 0xFFFF);	// F = L = 1, count 0x3FFF
+			int expected = RTP_JPEG_HEADER + JpegPacketizer.RESTART_HEADER_SIZE
+					+ (i == 0 ? JpegPacketizer.QTABLE_HEADER_SIZE + 128 : 0);
+			assertEquals(expected, header.remaining());
+		}
+	}
+
+	@Test
+	public void fillsPacketsUpToMtu()
+	{
+		JpegPacketizer packetizer = new JpegPacketizer(MTU);
+		JpegFrame frame = JpegFrame.parse(ByteBuffer.wrap(jpeg(320, 240, 0x22, false, 0, 2000)));
+		int first = packetizer.fragmentLength(frame, 0);
+		assertEquals(MTU - RTP_JPEG_HEADER - JpegPacketizer.QTABLE_HEADER_SIZE - 128, first);
+		assertEquals(MTU - RTP_JPEG_HEADER, packetizer.fragmentLength(frame, first));
+
+		JpegFrame small = JpegFrame.parse(ByteBuffer.wrap(jpeg(16, 16, 0x22, false, 0, 10)));
+		assertEquals(10, packetizer.fragmentLength(small, 0));
+		assertEquals(1, packetizer.packetCount(small));
+	}
+}
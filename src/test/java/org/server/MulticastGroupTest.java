@@ -0,0 +1,233 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Multicast groups streaming a synthetic video to a receiver joined on the loopback interface.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class MulticastGroupTest
+{
+	private final static int TEST_PORT = 22400;
+	private final static int RECEIVE_TIMEOUT = 2000;	// ms
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SessionManager sessionManager;
+	private String savedAddress;
+	private int savedPort;
+	private MulticastSocket receiver;
+
+	/**----------------------------------------------------------------
+	 * Session with a control connection that ignores what is sent.
+	 * ----------------------------------------------------------------*/
+	private Server session()
+	{
+		return new Server(new ControlConnection() {
+			@Override
+			public InetAddress getClientIp() {
+				return InetAddress.getLoopbackAddress();
+			}
+			@Override
+			public void send(String message) {
+			}
+			@Override
+			public void interleave(SendQueue queue) {
+			}
+			@Override
+			public void scheduleWrite() {
+			}
+			@Override
+			public void closeAfterFlush() {
+			}
+			@Override
+			public void close() {
+			}
+			@Override
+			public void closeLater() {
+			}
+			@Override
+			public boolean isClosed() {
+				return false;
+			}
+		}, 1, sessionManager);
+	}
+
+	@Before
+	public void setUp() throws IOException
+	{
+		savedAddress = MulticastGroup.MULTICAST_ADDRESS;
+		savedPort = MulticastGroup.MULTICAST_PORT;
+		MulticastGroup.MULTICAST_INTERFACE = "lo";
+		MulticastGroup.MULTICAST_PORT = TEST_PORT;
+		sessionManager = new SessionManager();
+	}
+
+	/**----------------------------------------------------------------
+	 * Writes a video of synthetic frames, returns its path.
+	 * ----------------------------------------------------------------*/
+	private String video(String name) throws IOException
+	{
+		File file = folder.newFile(name);
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				byte[] frame = JpegPacketizerTest.jpeg(320, 240, 0x22, false, 0, 3000);
+				out.write(String.format("%05d", frame.length).getBytes("US-ASCII"));
+				out.write(frame);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		return file.getPath();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if (receiver != null)
+			receiver.close();
+		sessionManager.shutdown();
+		MulticastGroup.MULTICAST_ADDRESS = savedAddress;
+		MulticastGroup.MULTICAST_INTERFACE = null;
+		MulticastGroup.MULTICAST_PORT = savedPort;
+	}
+
+	/**----------------------------------------------------------------
+	 * Joins the group on the loopback interface.
+	 * ----------------------------------------------------------------*/
+	private void receive(MulticastGroup group) throws IOException
+	{
+		receiver = new MulticastSocket(group.port);
+		receiver.joinGroup(new InetSocketAddress(group.address, group.port), NetworkInterface.getByName("lo"));
+		receiver.setSoTimeout(RECEIVE_TIMEOUT);
+	}
+
+	/**----------------------------------------------------------------
+	 * Returns the number of packets received before the timeout,
+	 * checking the RTP header of each.
+	 * ----------------------------------------------------------------*/
+	private int receivePackets(int expected) throws IOException
+	{
+		int received = 0;
+		int markers = 0;
+		byte[] buffer = new byte[Server.RTP_MTU];
+		try
+		{
+			while (received < expected)
+			{
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				receiver.receive(packet);
+				assertEquals(2, (buffer[0] & 0xFF) >> 6);
+				assertEquals(Server.MJPEG_TYPE, buffer[1] & 0x7F);
+				if ((buffer[1] & 0x80) != 0)
+					markers++;
+				received++;
+			}
+		}
+		catch (SocketTimeoutException ste)
+		{
+			// stream stopped
+		}
+		if (received == expected)
+			assertTrue("no frame completed", markers > 0);
+		return received;
+	}
+
+	@Test
+	public void streamsToGroupMembers() throws Exception
+	{
+		Server session = session();
+		MulticastGroup group = sessionManager.joinMulticastGroup(video("test.Mjpeg"), session);
+		receive(group);
+
+		group.play(session);
+		assertTrue(group.isPlaying(session));
+		assertEquals(30, receivePackets(30));
+
+		group.pause(session);
+		receivePackets(Integer.MAX_VALUE);		// drains the packets sent before the pause
+		assertEquals(0, receivePackets(1));
+	}
+
+	@Test
+	public void restartsAfterFailure() throws Exception
+	{
+		Server session = session();
+		MulticastGroup group = sessionManager.joinMulticastGroup(video("test.Mjpeg"), session);
+		receive(group);
+		group.play(session);
+		assertEquals(10, receivePackets(10));
+
+		group.stop();
+		assertFalse(group.isPlaying(session));
+		receivePackets(Integer.MAX_VALUE);
+		assertEquals(0, receivePackets(1));
+
+		group.play(session);
+		assertEquals(10, receivePackets(10));
+	}
+
+	@Test
+	public void reusesAddressesOfClosedGroups() throws Exception
+	{
+		Server first = session();
+		Server second = session();
+		String video = video("one.Mjpeg");
+		MulticastGroup one = sessionManager.joinMulticastGroup(video, first);
+		MulticastGroup two = sessionManager.joinMulticastGroup(video("two.Mjpeg"), second);
+		assertNotEquals(one.address, two.address);
+
+		sessionManager.leaveMulticastGroup(one, first);
+		MulticastGroup three = sessionManager.joinMulticastGroup(video, first);
+		assertEquals(one.address, three.address);
+	}
+
+	@Test
+	public void carriesAddressIntoUpperBytes() throws IOException
+	{
+		MulticastGroup.MULTICAST_ADDRESS = "239.255.255.250";
+		assertEquals(InetAddress.getByName("239.255.255.251"), MulticastGroup.groupAddress(1));
+		MulticastGroup.MULTICAST_ADDRESS = "239.0.0.250";
+		assertEquals(InetAddress.getByName("239.0.1.4"), MulticastGroup.groupAddress(10));
+	}
+
+	@Test
+	public void rejectsAddressesPastMulticastRange()
+	{
+		MulticastGroup.MULTICAST_ADDRESS = "239.255.255.250";
+		try
+		{
+			MulticastGroup.groupAddress(6);
+			fail("240.0.0.0 is not a multicast address");
+		}
+		catch (IOException expected)
+		{
+			// no address left
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * RtspParser resynchronization after malformed requests.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class RtspParserTest
+{
+	private static ByteBuffer bytes(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void skipsRestOfRequestAfterBadHeader()
+	{
+		RtspParser parser = new RtspParser(false);
+		ByteBuffer in = bytes("OPTIONS * RTSP/1.0\r\nCSeq: 1\r\nno colon here\r\nSession: 12\r\nRange: npt=0-\r\n\r\n"
+				+ "OPTIONS * RTSP/1.0\r\nCSeq: 2\r\n\r\n");
+
+		RtspRequest bad = parser.parse(in);
+		assertNotNull(bad);
+		assertTrue(bad.isMalformed());
+
+		RtspRequest next = parser.parse(in);
+		assertNotNull(next);
+		assertEquals("OPTIONS", next.method);
+		assertEquals(2, next.cseq);
+		assertNull(parser.parse(in));
+	}
+
+	@Test
+	public void skipsRestOfRequestAfterBadRequestLine()
+	{
+		RtspParser parser = new RtspParser(false);
+		ByteBuffer in = bytes("GARBAGE\r\nCSeq: 1\r\nSession: 12\r\n\r\nDESCRIBE rtsp://host/movie RTSP/1.0\r\nCSeq: 2\r\n\r\n");
+
+		assertTrue(parser.parse(in).isMalformed());
+		RtspRequest next = parser.parse(in);
+		assertEquals("DESCRIBE", next.method);
+		assertEquals(2, next.cseq);
+	}
+
+	@Test
+	public void skipsRestOfLegacyRequest()
+	{
+		// legacy requests are three lines, without the empty line
+		RtspParser parser = new RtspParser(true);
+		ByteBuffer in = bytes("SETUP movie.Mjpeg RTSP/1.0\nbad\nTransport: RTP/UDP; client_port= 25000\n"
+				+ "PLAY movie.Mjpeg RTSP/1.0\nCSeq: 2\nSession: 123456\n");
+
+		assertTrue(parser.parse(in).isMalformed());
+		RtspRequest next = parser.parse(in);
+		assertEquals("PLAY", next.method);
+		assertEquals(2, next.cseq);
+	}
+
+	@Test
+	public void answersEachMalformedRequestOnce()
+	{
+		RtspParser parser = new RtspParser(false);
+		ByteBuffer in = bytes("OPTIONS * RTSP/1.0\r\nbad one\r\nbad two\r\nbad three\r\n\r\n");
+
+		assertTrue(parser.parse(in).isMalformed());
+		assertNull(parser.parse(in));
+	}
+}
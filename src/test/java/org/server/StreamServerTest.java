@@ -0,0 +1,80 @@
+package org.server;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**----------------------------------------------------------------------------------------------------------------
+ * Embedded servers sharing the process-wide settings.
+ * ----------------------------------------------------------------------------------------------------------------*/
+public class StreamServerTest
+{
+	private StreamServer first;
+	private StreamServer second;
+
+	@After
+	public void tearDown() throws InterruptedException
+	{
+		for (StreamServer server : new StreamServer[] { first, second })
+		{
+			if (server != null && server.isRunning())
+			{
+				server.stop();
+				assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+			}
+		}
+	}
+
+	private static ServerConfig config(String videoFile) {
+		return new ServerConfig().setRtspPort(0).setVideoFile(videoFile);
+	}
+
+	@Test
+	public void startsServersSharingSettings() throws IOException
+	{
+		first = new StreamServer(config("a.Mjpeg"));
+		first.start();
+		second = new StreamServer(config("a.Mjpeg"));
+		second.start();
+		assertTrue(first.isRunning() && second.isRunning());
+		assertTrue(first.getPort() != second.getPort());
+	}
+
+	@Test
+	public void rejectsServerWithOtherSettings() throws Exception
+	{
+		first = new StreamServer(config("a.Mjpeg"));
+		first.start();
+		second = new StreamServer(config("b.Mjpeg"));
+		try
+		{
+			second.start();
+			fail("the video file is process-wide");
+		}
+		catch (IllegalStateException expected)
+		{
+			// first server still running
+		}
+		assertTrue(first.isRunning());
+		assertTrue(!second.isRunning());
+
+		// once the first server stopped, the settings are free again
+		first.stop();
+		assertTrue(first.awaitTermination(5, TimeUnit.SECONDS));
+		second.start();
+		assertTrue(second.isRunning());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsSecondStart() throws IOException
+	{
+		first = new StreamServer(config("a.Mjpeg"));
+		first.start();
+		first.start();
+	}
+}